@@ -0,0 +1,172 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.pets;
+
+import android.app.Instrumentation;
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.DataSetObserver;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.SystemClock;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import com.example.android.pets.data.PetContract.PetEntry;
+import com.example.android.pets.data.PetDbHelper;
+import com.example.android.pets.data.TestDatabases;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Measures the time to first content of the catalog: from a closed database to the first page
+ * shown by {@link PetAdapter}, the way {@link CatalogActivity} starts, on an empty database and
+ * on a large one.
+ */
+@RunWith(AndroidJUnit4.class)
+public class FirstContentTest {
+
+    private static final String LOG_TAG = FirstContentTest.class.getSimpleName();
+
+    private static final String DATABASE_NAME = "first-content-test.db";
+
+    /** Number of pets in the large database */
+    private static final int LARGE_COUNT = 20000;
+
+    /** Longest time to first content allowed, whatever the number of pets */
+    private static final long MAX_FIRST_CONTENT_MS = 1000;
+
+    private Instrumentation mInstrumentation;
+    private Context mContext;
+    private PetDbHelper mDbHelper;
+    private PetAdapter mAdapter;
+
+    @Before
+    public void setUp() {
+        mInstrumentation = InstrumentationRegistry.getInstrumentation();
+        mContext = InstrumentationRegistry.getTargetContext();
+        mContext.deleteDatabase(DATABASE_NAME);
+    }
+
+    @After
+    public void tearDown() {
+        if (mAdapter != null) {
+            mInstrumentation.runOnMainSync(new Runnable() {
+                @Override
+                public void run() {
+                    mAdapter.cancel();
+                }
+            });
+        }
+        if (mDbHelper != null) {
+            mDbHelper.close();
+        }
+        mContext.deleteDatabase(DATABASE_NAME);
+    }
+
+    @Test
+    public void firstContentOnEmptyDatabase() throws InterruptedException {
+        createDatabase(0);
+
+        int shown = measureFirstContent("empty");
+
+        assertEquals(0, shown);
+    }
+
+    @Test
+    public void firstContentOnLargeDatabase() throws InterruptedException {
+        createDatabase(LARGE_COUNT);
+
+        int shown = measureFirstContent("large");
+
+        // Only the first page is read before the pets are shown
+        assertTrue("Showed " + shown + " pets", shown > 0 && shown < LARGE_COUNT);
+    }
+
+    /**
+     * Creates the database with the given number of pets, and closes it, as it is when the app
+     * is launched.
+     */
+    private void createDatabase(int count) {
+        PetDbHelper dbHelper = TestDatabases.open(mContext, DATABASE_NAME);
+        try {
+            SQLiteDatabase db = dbHelper.getWritableDatabase();
+            ContentValues values = new ContentValues();
+            db.beginTransaction();
+            try {
+                for (int i = 0; i < count; i++) {
+                    values.put(PetEntry.COLUMN_PET_NAME, "Pet " + i);
+                    values.put(PetEntry.COLUMN_PET_BREED, "Breed " + (i % 50));
+                    values.put(PetEntry.COLUMN_PET_GENDER, i % 3);
+                    values.put(PetEntry.COLUMN_PET_WEIGHT, i % 60);
+                    db.insertOrThrow(PetEntry.TABLE_NAME, null, values);
+                }
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+        } finally {
+            dbHelper.close();
+        }
+    }
+
+    /**
+     * Opens the database and loads the catalog like {@link CatalogActivity#onCreate} does, and
+     * waits for the first pets to be shown.
+     *
+     * @return the number of pets shown first
+     */
+    private int measureFirstContent(String name) throws InterruptedException {
+        final CountDownLatch shown = new CountDownLatch(1);
+        final long[] elapsedMs = new long[1];
+        final int[] count = new int[1];
+        mInstrumentation.runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                final long start = SystemClock.elapsedRealtime();
+                mDbHelper = TestDatabases.open(mContext, DATABASE_NAME);
+                mAdapter = new PetAdapter(mContext,
+                        TestDatabases.newDataSource(mContext, mDbHelper));
+                mAdapter.registerDataSetObserver(new DataSetObserver() {
+                    @Override
+                    public void onChanged() {
+                        if (shown.getCount() > 0) {
+                            elapsedMs[0] = SystemClock.elapsedRealtime() - start;
+                            count[0] = mAdapter.getCount();
+                            shown.countDown();
+                        }
+                    }
+                });
+                mAdapter.reload();
+            }
+        });
+
+        assertTrue("Nothing was shown", shown.await(10, TimeUnit.SECONDS));
+        Log.i(LOG_TAG, "First content on the " + name + " database in " + elapsedMs[0] + " ms");
+        assertTrue("First content took " + elapsedMs[0] + " ms",
+                elapsedMs[0] <= MAX_FIRST_CONTENT_MS);
+        return count[0];
+    }
+}
@@ -0,0 +1,212 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.pets;
+
+import android.app.Instrumentation;
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.os.SystemClock;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+
+import com.example.android.pets.data.Pet;
+import com.example.android.pets.data.PetContract.PetEntry;
+import com.example.android.pets.data.PetDbHelper;
+import com.example.android.pets.data.PetQuery;
+import com.example.android.pets.data.TestDatabases;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+/**
+ * Checks that the pets shown by {@link PetAdapter} stay in the order of its {@link PetQuery}
+ * when pets change while the list is loaded again, on a scratch database.
+ */
+@RunWith(AndroidJUnit4.class)
+public class PetAdapterTest {
+
+    private static final String DATABASE_NAME = "adapter-test.db";
+
+    /** Number of pets in the database, more than a page */
+    private static final int PET_COUNT = 120;
+
+    /** How long the list may take to settle after a change */
+    private static final long TIMEOUT_MS = 5000;
+
+    /** Pets sorted by name, which is the reverse of the order they are added in */
+    private static final PetQuery BY_NAME = new PetQuery.Builder()
+            .setSortOrder(PetQuery.SORT_BY_NAME, false)
+            .build();
+
+    private Instrumentation mInstrumentation;
+    private Context mContext;
+    private PetDbHelper mDbHelper;
+    private PetAdapter mAdapter;
+
+    @Before
+    public void setUp() {
+        mInstrumentation = InstrumentationRegistry.getInstrumentation();
+        mContext = InstrumentationRegistry.getTargetContext();
+        mContext.deleteDatabase(DATABASE_NAME);
+        mDbHelper = TestDatabases.open(mContext, DATABASE_NAME);
+        ContentValues values = new ContentValues();
+        for (int i = 0; i < PET_COUNT; i++) {
+            values.put(PetEntry.COLUMN_PET_NAME, String.format("Pet %03d", PET_COUNT - i));
+            values.put(PetEntry.COLUMN_PET_GENDER, PetEntry.GENDER_UNKNOWN);
+            values.put(PetEntry.COLUMN_PET_WEIGHT, i);
+            mDbHelper.insert(PetEntry.TABLE_NAME, values);
+        }
+
+        mInstrumentation.runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                mAdapter = new PetAdapter(mContext,
+                        TestDatabases.newDataSource(mContext, mDbHelper));
+                mAdapter.reload();
+            }
+        });
+        awaitOrder(PetQuery.ALL);
+    }
+
+    @After
+    public void tearDown() {
+        mInstrumentation.runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                mAdapter.cancel();
+            }
+        });
+        mDbHelper.close();
+        mContext.deleteDatabase(DATABASE_NAME);
+    }
+
+    @Test
+    public void refreshDuringSortChangeKeepsNewOrder() {
+        long renamedId = shownPets().get(0).id;
+        rename(renamedId, "Aardvark");
+
+        // The change is noticed before the first page sorted by name arrives
+        mInstrumentation.runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                mAdapter.setPetQuery(BY_NAME);
+                mAdapter.refresh();
+            }
+        });
+
+        awaitOrder(BY_NAME);
+        assertEquals(renamedId, shownPets().get(0).id);
+    }
+
+    @Test
+    public void refreshAfterSortChangePatchesNewOrder() {
+        mInstrumentation.runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                mAdapter.setPetQuery(BY_NAME);
+            }
+        });
+        awaitOrder(BY_NAME);
+
+        long renamedId = shownPets().get(shownPets().size() - 1).id;
+        rename(renamedId, "Aardvark");
+        mInstrumentation.runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                mAdapter.refresh();
+            }
+        });
+
+        awaitOrder(BY_NAME);
+        assertEquals(renamedId, shownPets().get(0).id);
+    }
+
+    private void rename(long id, String name) {
+        ContentValues values = new ContentValues();
+        values.put(PetEntry.COLUMN_PET_NAME, name);
+        mDbHelper.update(PetEntry.TABLE_NAME, values, PetEntry._ID + " = ?",
+                new String[] { String.valueOf(id) });
+    }
+
+    /**
+     * Waits until the adapter shows the first pets of the given query, in its order, and still
+     * does once the pending loads are done.
+     */
+    private void awaitOrder(PetQuery petQuery) {
+        long deadline = SystemClock.elapsedRealtime() + TIMEOUT_MS;
+        List<Long> shown = ids(shownPets());
+        while (SystemClock.elapsedRealtime() < deadline) {
+            if (!shown.isEmpty() && shown.equals(expectedIds(petQuery, shown.size()))) {
+                // A load that was still running could change the list again
+                SystemClock.sleep(200);
+                mInstrumentation.waitForIdleSync();
+                List<Long> settled = ids(shownPets());
+                if (settled.equals(shown)) {
+                    return;
+                }
+                shown = settled;
+                continue;
+            }
+            SystemClock.sleep(20);
+            shown = ids(shownPets());
+        }
+        fail("Expected the pets in the order " + expectedIds(petQuery, shown.size())
+                + " but the list shows " + shown);
+    }
+
+    private List<Long> expectedIds(PetQuery petQuery, int count) {
+        List<Long> ids = new ArrayList<>();
+        Cursor cursor = petQuery.queryPage(mDbHelper, null, count);
+        try {
+            while (cursor.moveToNext()) {
+                ids.add(Pet.fromCursor(cursor).id);
+            }
+        } finally {
+            cursor.close();
+        }
+        return ids;
+    }
+
+    private List<Pet> shownPets() {
+        final List<Pet> pets = new ArrayList<>();
+        mInstrumentation.runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 0; i < mAdapter.getCount(); i++) {
+                    pets.add((Pet) mAdapter.getItem(i));
+                }
+            }
+        });
+        return pets;
+    }
+
+    private static List<Long> ids(List<Pet> pets) {
+        List<Long> ids = new ArrayList<>(pets.size());
+        for (Pet pet : pets) {
+            ids.add(pet.id);
+        }
+        return ids;
+    }
+}
@@ -0,0 +1,178 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.pets.data;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.SystemClock;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+
+import com.example.android.pets.data.PetContract.PetEntry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that the catalog can read pages of pets while a long bulk insert holds the write lock,
+ * on a scratch database set up like the one of the app.
+ */
+@RunWith(AndroidJUnit4.class)
+public class PetDbHelperTest {
+
+    private static final String DATABASE_NAME = "concurrency-test.db";
+
+    /** Number of pets committed before the bulk insert starts */
+    private static final int SEED_COUNT = 2000;
+
+    /** Number of pets inserted by the bulk insert, in a single transaction */
+    private static final int BULK_COUNT = 20000;
+
+    /** Number of pets in a page of the catalog */
+    private static final int PAGE_SIZE = 50;
+
+    /** Slowest page read allowed while the bulk insert runs */
+    private static final long MAX_PAGE_MS = 250;
+
+    private Context mContext;
+    private PetDbHelper mDbHelper;
+    private ExecutorService mExecutor;
+
+    @Before
+    public void setUp() {
+        mContext = InstrumentationRegistry.getTargetContext();
+        mContext.deleteDatabase(DATABASE_NAME);
+        mDbHelper = new PetDbHelper(mContext, DATABASE_NAME);
+        mExecutor = Executors.newFixedThreadPool(2);
+    }
+
+    @After
+    public void tearDown() {
+        mExecutor.shutdownNow();
+        mDbHelper.close();
+        mContext.deleteDatabase(DATABASE_NAME);
+    }
+
+    @Test
+    public void readsPagesDuringBulkInsert() throws Exception {
+        SQLiteDatabase db = mDbHelper.getWritableDatabase();
+        db.beginTransaction();
+        try {
+            insertPets(db, SEED_COUNT, "Seed");
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+
+        final CountDownLatch writing = new CountDownLatch(1);
+        final CountDownLatch readsDone = new CountDownLatch(1);
+        Future<?> writer = mExecutor.submit(new Callable<Void>() {
+            @Override
+            public Void call() throws InterruptedException {
+                // Like PetProvider.bulkInsert: every pet in one transaction, which is held open
+                // until the reads are done
+                SQLiteDatabase db = mDbHelper.getWritableDatabase();
+                db.beginTransactionNonExclusive();
+                try {
+                    insertPets(db, BULK_COUNT / 10, "Bulk");
+                    writing.countDown();
+                    insertPets(db, BULK_COUNT - BULK_COUNT / 10, "Bulk");
+                    readsDone.await(30, TimeUnit.SECONDS);
+                    db.setTransactionSuccessful();
+                } finally {
+                    db.endTransaction();
+                }
+                return null;
+            }
+        });
+
+        assertTrue(writing.await(30, TimeUnit.SECONDS));
+        long slowest;
+        int read;
+        try {
+            // Read on another thread, so that a read blocked by the writer fails the test
+            // instead of waiting for a commit that waits for it
+            Future<long[]> reader = mExecutor.submit(new Callable<long[]>() {
+                @Override
+                public long[] call() {
+                    return readAllPages();
+                }
+            });
+            long[] result = reader.get(10, TimeUnit.SECONDS);
+            read = (int) result[0];
+            slowest = result[1];
+        } finally {
+            readsDone.countDown();
+        }
+        writer.get(60, TimeUnit.SECONDS);
+
+        // The reads see the pets as they were before the bulk insert began
+        assertEquals(SEED_COUNT, read);
+        assertTrue("Slowest page took " + slowest + " ms", slowest <= MAX_PAGE_MS);
+    }
+
+    /**
+     * Reads every pet a page at a time, like the catalog does.
+     *
+     * @return the number of pets read and the time of the slowest page, in milliseconds
+     */
+    private long[] readAllPages() {
+        long slowest = 0;
+        int count = 0;
+        Pet last = null;
+        boolean more = true;
+        while (more) {
+            long start = SystemClock.elapsedRealtime();
+            Cursor cursor = PetQuery.ALL.queryPage(mDbHelper, last, PAGE_SIZE);
+            try {
+                more = cursor.getCount() == PAGE_SIZE;
+                while (cursor.moveToNext()) {
+                    last = Pet.fromCursor(cursor);
+                    count++;
+                }
+            } finally {
+                cursor.close();
+            }
+            slowest = Math.max(slowest, SystemClock.elapsedRealtime() - start);
+        }
+        return new long[] { count, slowest };
+    }
+
+    private static void insertPets(SQLiteDatabase db, int count, String prefix) {
+        ContentValues values = new ContentValues();
+        for (int i = 0; i < count; i++) {
+            values.put(PetEntry.COLUMN_PET_NAME, prefix + " " + i);
+            values.put(PetEntry.COLUMN_PET_BREED, "Breed " + (i % 50));
+            values.put(PetEntry.COLUMN_PET_GENDER, i % 3);
+            values.put(PetEntry.COLUMN_PET_WEIGHT, i % 60);
+            db.insertOrThrow(PetEntry.TABLE_NAME, null, values);
+        }
+    }
+}
@@ -0,0 +1,236 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.pets.data;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.os.SystemClock;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.text.TextUtils;
+import android.util.Log;
+
+import com.example.android.pets.data.PetContract.PetEntry;
+import com.example.android.pets.data.PetContract.PetSearchEntry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Upgrades a large database of the first version of the schema with {@link PetMigrations}, and
+ * checks that no pet is lost and that it ends up with the same schema as a new database.
+ */
+@RunWith(AndroidJUnit4.class)
+public class PetMigrationsTest {
+
+    private static final String LOG_TAG = PetMigrationsTest.class.getSimpleName();
+
+    private static final String UPGRADED_DATABASE_NAME = "migrations-upgraded-test.db";
+
+    private static final String NEW_DATABASE_NAME = "migrations-new-test.db";
+
+    /** Number of pets in the database to upgrade */
+    private static final int PET_COUNT = 50000;
+
+    /** The pets table as the first version of the app created it */
+    private static final String SQL_CREATE_PETS_V1 = "CREATE TABLE " + PetEntry.TABLE_NAME + " ("
+            + PetEntry._ID + " INTEGER PRIMARY KEY AUTOINCREMENT, "
+            + PetEntry.COLUMN_PET_NAME + " TEXT NOT NULL, "
+            + PetEntry.COLUMN_PET_BREED + " TEXT, "
+            + PetEntry.COLUMN_PET_GENDER + " INTEGER NOT NULL, "
+            + PetEntry.COLUMN_PET_WEIGHT + " INTEGER NOT NULL DEFAULT 0);";
+
+    /** Every table, index and trigger, other than the internal ones of SQLite */
+    private static final String SQL_SCHEMA = "SELECT type, name, tbl_name, sql FROM sqlite_master"
+            + " WHERE name NOT LIKE 'sqlite_%' ORDER BY type, name";
+
+    /** Sums up the pets, to compare them before and after the upgrade */
+    private static final String SQL_CHECKSUM = "SELECT COUNT(*) || ':' || SUM("
+            + PetEntry._ID + ") || ':' || SUM(" + PetEntry.COLUMN_PET_WEIGHT + ") || ':' || SUM("
+            + PetEntry.COLUMN_PET_GENDER + ") || ':' || SUM(LENGTH(" + PetEntry.COLUMN_PET_NAME
+            + ")) || ':' || COUNT(" + PetEntry.COLUMN_PET_BREED + ") FROM " + PetEntry.TABLE_NAME;
+
+    private Context mContext;
+    private PetDbHelper mUpgradedDbHelper;
+    private PetDbHelper mNewDbHelper;
+
+    @Before
+    public void setUp() {
+        mContext = InstrumentationRegistry.getTargetContext();
+        mContext.deleteDatabase(UPGRADED_DATABASE_NAME);
+        mContext.deleteDatabase(NEW_DATABASE_NAME);
+    }
+
+    @After
+    public void tearDown() {
+        if (mUpgradedDbHelper != null) {
+            mUpgradedDbHelper.close();
+        }
+        if (mNewDbHelper != null) {
+            mNewDbHelper.close();
+        }
+        mContext.deleteDatabase(UPGRADED_DATABASE_NAME);
+        mContext.deleteDatabase(NEW_DATABASE_NAME);
+    }
+
+    @Test
+    public void upgradesLargeDatabaseWithoutLosingPets() {
+        String checksum = createVersion1Database();
+
+        // Opening the database with the helper runs every migration, as it does in the app
+        mUpgradedDbHelper = new PetDbHelper(mContext, UPGRADED_DATABASE_NAME);
+        long start = SystemClock.elapsedRealtime();
+        SQLiteDatabase db = mUpgradedDbHelper.getWritableDatabase();
+        Log.i(LOG_TAG, "Migrated " + PET_COUNT + " pets from version 1 to "
+                + PetMigrations.LATEST_VERSION + " in " + (SystemClock.elapsedRealtime() - start)
+                + " ms");
+
+        assertEquals(PetMigrations.LATEST_VERSION, db.getVersion());
+        assertEquals(checksum, DatabaseUtils.stringForQuery(db, SQL_CHECKSUM, null));
+
+        // The tables the migrations added are filled from the pets that were already there
+        assertEquals(PET_COUNT, DatabaseUtils.queryNumEntries(db, PetSearchEntry.TABLE_NAME));
+        assertEquals(PET_COUNT, DatabaseUtils.longForQuery(db, "SELECT COUNT(DISTINCT "
+                + PetEntry.COLUMN_PET_REMOTE_ID + ") FROM " + PetEntry.TABLE_NAME, null));
+        assertEquals(0, DatabaseUtils.queryNumEntries(db, PetEntry.TABLE_NAME,
+                PetEntry.COLUMN_PET_DELETED + " != 0 OR " + PetEntry.COLUMN_PET_MODIFIED
+                        + " IS NULL"));
+        List<String> differences = new PetStats(mUpgradedDbHelper).verify();
+        assertTrue("Wrong stats " + differences, differences.isEmpty());
+    }
+
+    @Test
+    public void upgradedSchemaMatchesNewSchema() {
+        createVersion1Database();
+        mUpgradedDbHelper = new PetDbHelper(mContext, UPGRADED_DATABASE_NAME);
+        mNewDbHelper = new PetDbHelper(mContext, NEW_DATABASE_NAME);
+
+        List<String> upgraded = readSchema(mUpgradedDbHelper.getReadableDatabase());
+        List<String> created = readSchema(mNewDbHelper.getReadableDatabase());
+
+        assertEquals(created, upgraded);
+        assertTrue(upgraded.contains("index " + PetMigrations.INDEX_DELETED));
+        assertTrue(upgraded.contains("index " + PetMigrations.INDEX_REMOTE_ID));
+    }
+
+    @Test
+    public void pagesAreReadFromCoveringIndexes() {
+        createVersion1Database();
+        mUpgradedDbHelper = new PetDbHelper(mContext, UPGRADED_DATABASE_NAME);
+        SQLiteDatabase db = mUpgradedDbHelper.getReadableDatabase();
+
+        // The first pages of PetQuery sorted by name, and of the pets of a gender by weight
+        String columns = TextUtils.join(", ", Pet.PROJECTION);
+        String live = " FROM " + PetEntry.TABLE_NAME + " WHERE " + PetEntry.COLUMN_PET_DELETED
+                + " = 0";
+        String[] pages = {
+                "SELECT " + columns + live + " ORDER BY " + PetEntry.COLUMN_PET_NAME
+                        + " COLLATE NOCASE ASC, " + PetEntry._ID + " ASC LIMIT 50",
+                "SELECT " + columns + live + " AND " + PetEntry.COLUMN_PET_GENDER + " = 2"
+                        + " ORDER BY " + PetEntry.COLUMN_PET_WEIGHT + " ASC, " + PetEntry._ID
+                        + " ASC LIMIT 50" };
+        for (String page : pages) {
+            String plan = explain(db, page);
+            assertTrue(page + ": " + plan,
+                    plan.contains("COVERING INDEX") && !plan.contains("TEMP B-TREE"));
+        }
+    }
+
+    /**
+     * Creates the pets table of the first version of the app, with {@link #PET_COUNT} pets, as a
+     * database of that version.
+     *
+     * @return the checksum of the pets, see {@link #SQL_CHECKSUM}
+     */
+    private String createVersion1Database() {
+        SQLiteDatabase db = SQLiteDatabase.openOrCreateDatabase(
+                mContext.getDatabasePath(UPGRADED_DATABASE_NAME), null);
+        try {
+            db.beginTransaction();
+            try {
+                db.execSQL(SQL_CREATE_PETS_V1);
+                SQLiteStatement insert = db.compileStatement("INSERT INTO "
+                        + PetEntry.TABLE_NAME + " (" + PetEntry.COLUMN_PET_NAME + ", "
+                        + PetEntry.COLUMN_PET_BREED + ", " + PetEntry.COLUMN_PET_GENDER + ", "
+                        + PetEntry.COLUMN_PET_WEIGHT + ") VALUES (?, ?, ?, ?)");
+                for (int i = 0; i < PET_COUNT; i++) {
+                    insert.bindString(1, "Pet " + i);
+                    if (i % 10 == 0) {
+                        insert.bindNull(2);
+                    } else {
+                        insert.bindString(2, "Breed " + (i % 40));
+                    }
+                    insert.bindLong(3, i % 3);
+                    insert.bindLong(4, i % 60);
+                    insert.executeInsert();
+                }
+                insert.close();
+                db.setVersion(1);
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+            return DatabaseUtils.stringForQuery(db, SQL_CHECKSUM, null);
+        } finally {
+            db.close();
+        }
+    }
+
+    /**
+     * Returns every table, index and trigger of the database with the statement that created
+     * it, each one preceded by a line with its type and name.
+     */
+    private static List<String> readSchema(SQLiteDatabase db) {
+        List<String> schema = new ArrayList<>();
+        Cursor cursor = db.rawQuery(SQL_SCHEMA, null);
+        try {
+            while (cursor.moveToNext()) {
+                schema.add(cursor.getString(0) + " " + cursor.getString(1));
+                schema.add(cursor.getString(2) + ": " + cursor.getString(3));
+            }
+        } finally {
+            cursor.close();
+        }
+        return schema;
+    }
+
+    /**
+     * Returns the query plan of the given statement, one step per line.
+     */
+    private static String explain(SQLiteDatabase db, String sql) {
+        StringBuilder plan = new StringBuilder();
+        Cursor cursor = db.rawQuery("EXPLAIN QUERY PLAN " + sql, null);
+        try {
+            while (cursor.moveToNext()) {
+                plan.append(cursor.getString(cursor.getColumnCount() - 1)).append('\n');
+            }
+        } finally {
+            cursor.close();
+        }
+        return plan.toString();
+    }
+}
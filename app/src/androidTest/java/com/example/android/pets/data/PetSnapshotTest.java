@@ -0,0 +1,142 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.pets.data;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.SystemClock;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import com.example.android.pets.data.PetContract.PetEntry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Measures the heap kept by a {@link PetSnapshot} of a large table, against a list of one
+ * {@link Pet} per row read from the same table.
+ */
+@RunWith(AndroidJUnit4.class)
+public class PetSnapshotTest {
+
+    private static final String LOG_TAG = PetSnapshotTest.class.getSimpleName();
+
+    private static final String DATABASE_NAME = "snapshot-test.db";
+
+    private static final int PET_COUNT = 20000;
+
+    private static final int BREED_COUNT = 40;
+
+    private Context mContext;
+    private PetDbHelper mDbHelper;
+
+    @Before
+    public void setUp() {
+        mContext = InstrumentationRegistry.getTargetContext();
+        mContext.deleteDatabase(DATABASE_NAME);
+        mDbHelper = new PetDbHelper(mContext, DATABASE_NAME);
+
+        SQLiteDatabase db = mDbHelper.getWritableDatabase();
+        ContentValues values = new ContentValues();
+        db.beginTransaction();
+        try {
+            for (int i = 0; i < PET_COUNT; i++) {
+                values.put(PetEntry.COLUMN_PET_NAME, "Pet " + i);
+                if (i % 10 == 0) {
+                    values.putNull(PetEntry.COLUMN_PET_BREED);
+                } else {
+                    values.put(PetEntry.COLUMN_PET_BREED, "Breed " + (i % BREED_COUNT));
+                }
+                values.put(PetEntry.COLUMN_PET_GENDER, i % 3);
+                values.put(PetEntry.COLUMN_PET_WEIGHT, i % 60);
+                db.insertOrThrow(PetEntry.TABLE_NAME, null, values);
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    @After
+    public void tearDown() {
+        mDbHelper.close();
+        mContext.deleteDatabase(DATABASE_NAME);
+    }
+
+    @Test
+    public void snapshotUsesLessHeapThanPets() {
+        long before = usedHeap();
+        PetSnapshot snapshot = PetSnapshot.load(mDbHelper);
+        long snapshotBytes = usedHeap() - before;
+        assertEquals(PET_COUNT, snapshot.size());
+        snapshot = null;
+
+        before = usedHeap();
+        List<Pet> pets = loadPets();
+        long petsBytes = usedHeap() - before;
+        assertEquals(PET_COUNT, pets.size());
+
+        Log.i(LOG_TAG, "Snapshot of " + PET_COUNT + " pets: " + snapshotBytes + " bytes, list of "
+                + "pets: " + petsBytes + " bytes");
+        // The snapshot keeps 13 bytes a row, the pets well over 100, so even with the noise of
+        // measuring the heap it must be several times smaller
+        assertTrue("Snapshot kept " + snapshotBytes + " bytes, the pets " + petsBytes,
+                snapshotBytes * 4 < petsBytes);
+    }
+
+    /**
+     * Reads every pet into its own {@link Pet}, like a dashboard would without the snapshot.
+     */
+    private List<Pet> loadPets() {
+        List<Pet> pets = new ArrayList<>();
+        Cursor cursor = mDbHelper.query(PetEntry.TABLE_NAME, Pet.PROJECTION,
+                PetEntry.COLUMN_PET_DELETED + " = 0", null, PetEntry._ID, null);
+        try {
+            while (cursor.moveToNext()) {
+                pets.add(Pet.fromCursor(cursor));
+            }
+        } finally {
+            cursor.close();
+        }
+        return pets;
+    }
+
+    /**
+     * Returns the bytes of the Java heap in use once the objects that nothing refers to anymore
+     * are collected.
+     */
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            runtime.gc();
+            runtime.runFinalization();
+            SystemClock.sleep(50);
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
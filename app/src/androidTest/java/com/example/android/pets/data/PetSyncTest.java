@@ -0,0 +1,194 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.pets.data;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.DatabaseUtils;
+import android.os.SystemClock;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+
+import com.example.android.pets.data.PetContract.PetEntry;
+import com.example.android.pets.data.PetContract.PetSyncEntry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Syncs a scratch database with a {@link MockRegistryServer}, to check how {@link PetSync}
+ * settles conflicts, resumes and retries.
+ */
+@RunWith(AndroidJUnit4.class)
+public class PetSyncTest {
+
+    private static final String DATABASE_NAME = "sync-test.db";
+
+    /** ID on the registry of the pet the conflict tests change on both sides */
+    private static final String REMOTE_ID = "0123456789abcdef0123456789abcdef";
+
+    private Context mContext;
+    private PetDbHelper mDbHelper;
+    private MockRegistryServer mServer;
+    private PetSync mSync;
+
+    @Before
+    public void setUp() throws IOException {
+        mContext = InstrumentationRegistry.getTargetContext();
+        mContext.deleteDatabase(DATABASE_NAME);
+        mDbHelper = new PetDbHelper(mContext, DATABASE_NAME);
+        mServer = new MockRegistryServer();
+        mServer.start();
+        mSync = new PetSync(mDbHelper, mServer.getUrl());
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        mServer.stop();
+        mDbHelper.close();
+        mContext.deleteDatabase(DATABASE_NAME);
+    }
+
+    @Test
+    public void newerLocalChangeWins() throws IOException {
+        changeOnBothSides(3000, 2000);
+
+        mSync.sync();
+
+        assertEquals("Local", localName());
+        assertEquals("Local", mServer.getPetName(REMOTE_ID));
+    }
+
+    @Test
+    public void newerRegistryChangeWins() throws IOException {
+        changeOnBothSides(2000, 3000);
+
+        mSync.sync();
+
+        assertEquals("Remote", localName());
+        assertEquals("Remote", mServer.getPetName(REMOTE_ID));
+    }
+
+    @Test
+    public void registryWinsTies() throws IOException {
+        changeOnBothSides(2000, 2000);
+
+        mSync.sync();
+
+        assertEquals("Remote", localName());
+        assertEquals("Remote", mServer.getPetName(REMOTE_ID));
+    }
+
+    @Test
+    public void resumesAfterFailedPage() throws IOException {
+        mServer.addPets(PetSync.PULL_PAGE_SIZE * 2 + 100);
+        // The first page is served, the second is rejected without retrying
+        mServer.failRequests(1, 1, 400);
+        try {
+            mSync.sync();
+            fail("The sync should have failed on the second page");
+        } catch (PetSync.HttpException e) {
+            assertEquals(400, e.status);
+        }
+        assertEquals(PetSync.PULL_PAGE_SIZE, localCount());
+
+        PetSync.Result result = mSync.sync();
+
+        assertEquals(PetSync.PULL_PAGE_SIZE + 100, result.getPulledCount());
+        assertEquals(PetSync.PULL_PAGE_SIZE * 2 + 100, localCount());
+    }
+
+    @Test
+    public void retriesServerErrors() throws IOException {
+        mServer.putPet(REMOTE_ID, "Rex", 1000);
+        mServer.failNextRequests(2, 503);
+
+        PetSync.Result result = mSync.sync();
+
+        assertEquals(1, result.getPulledCount());
+        assertEquals(3, mServer.getRequestCount());
+    }
+
+    @Test
+    public void waitsForRetryAfter() throws IOException {
+        mServer.putPet(REMOTE_ID, "Rex", 1000);
+        mServer.setRetryAfter(2);
+        mServer.failNextRequests(1, 429);
+
+        long start = SystemClock.elapsedRealtime();
+        PetSync.Result result = mSync.sync();
+        long elapsed = SystemClock.elapsedRealtime() - start;
+
+        assertEquals(1, result.getPulledCount());
+        assertTrue("Retried after " + elapsed + " ms", elapsed >= 2000);
+    }
+
+    @Test
+    public void pushesDeletedPets() throws IOException {
+        mServer.putPet(REMOTE_ID, "Rex", 1000);
+        mSync.sync();
+        mDbHelper.delete(PetEntry.TABLE_NAME, PetEntry.COLUMN_PET_REMOTE_ID + " = ?",
+                new String[] { REMOTE_ID });
+
+        PetSync.Result result = mSync.sync();
+
+        assertEquals(1, result.getPushedCount());
+        assertTrue(mServer.isPetDeleted(REMOTE_ID));
+        assertEquals(0, DatabaseUtils.queryNumEntries(mDbHelper.getReadableDatabase(),
+                PetSyncEntry.DELETES_TABLE_NAME));
+    }
+
+    /**
+     * Syncs a pet, then renames it to "Local" on the device and to "Remote" on the registry, at
+     * the given times.
+     */
+    private void changeOnBothSides(long localModified, long remoteModified) throws IOException {
+        mServer.putPet(REMOTE_ID, "Rex", 1000);
+        mSync.sync();
+
+        ContentValues values = new ContentValues();
+        values.put(PetEntry.COLUMN_PET_NAME, "Local");
+        mDbHelper.update(PetEntry.TABLE_NAME, values, PetEntry.COLUMN_PET_REMOTE_ID + " = ?",
+                new String[] { REMOTE_ID });
+        // Only the time changes, so the trigger leaves the pet as it is
+        mDbHelper.getWritableDatabase().execSQL("UPDATE " + PetEntry.TABLE_NAME + " SET "
+                + PetEntry.COLUMN_PET_MODIFIED + " = ? WHERE "
+                + PetEntry.COLUMN_PET_REMOTE_ID + " = ?",
+                new Object[] { localModified, REMOTE_ID });
+
+        mServer.putPet(REMOTE_ID, "Remote", remoteModified);
+    }
+
+    private String localName() {
+        return DatabaseUtils.stringForQuery(mDbHelper.getReadableDatabase(),
+                "SELECT " + PetEntry.COLUMN_PET_NAME + " FROM " + PetEntry.TABLE_NAME
+                        + " WHERE " + PetEntry.COLUMN_PET_REMOTE_ID + " = ?",
+                new String[] { REMOTE_ID });
+    }
+
+    private long localCount() {
+        return DatabaseUtils.queryNumEntries(mDbHelper.getReadableDatabase(),
+                PetEntry.TABLE_NAME);
+    }
+}
@@ -0,0 +1,43 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.pets.data;
+
+import android.content.Context;
+
+/**
+ * Opens scratch databases for the tests outside of this package, so that they don't read or
+ * write the pets of the app.
+ */
+public final class TestDatabases {
+
+    private TestDatabases() {
+    }
+
+    /**
+     * Opens the scratch database with the given name, created like the database of the app. The
+     * caller must close it.
+     */
+    public static PetDbHelper open(Context context, String name) {
+        return new PetDbHelper(context, name);
+    }
+
+    /**
+     * Returns a {@link PetDataSource} that runs its operations against the given database.
+     */
+    public static PetDataSource newDataSource(Context context, PetDbHelper dbHelper) {
+        return new PetDataSource(context, dbHelper);
+    }
+}
@@ -0,0 +1,80 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.pets;
+
+import android.os.Bundle;
+import android.support.v7.app.AppCompatActivity;
+import android.util.Log;
+import android.widget.TextView;
+
+import com.example.android.pets.data.PetBenchmark;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Runs the {@link PetBenchmark} of the data layer and shows its results. Only part of debug
+ * builds, start it with:
+ *
+ *   adb shell am start -n com.example.android.pets/.BenchmarkActivity
+ *
+ * then pull the JSON file whose path is shown once the benchmarks are done.
+ */
+public class BenchmarkActivity extends AppCompatActivity {
+
+    public static final String LOG_TAG = BenchmarkActivity.class.getSimpleName();
+
+    /** TextView that shows the progress, then the results */
+    private TextView mResultTextView;
+
+    @Override
+    protected void onCreate(Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+        setContentView(R.layout.activity_benchmark);
+
+        mResultTextView = (TextView) findViewById(R.id.benchmark_text);
+        mResultTextView.setText(R.string.benchmark_running);
+
+        // The benchmarks have a database of their own, so they don't go through the executor of
+        // PetDataSource and don't hold up the rest of the app
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                final PetBenchmark benchmark = new PetBenchmark(BenchmarkActivity.this);
+                String result;
+                try {
+                    File file = benchmark.run();
+                    result = getString(R.string.benchmark_done, file, benchmark.getSummary());
+                } catch (IOException | RuntimeException e) {
+                    Log.e(LOG_TAG, "Benchmarks failed", e);
+                    result = getString(R.string.benchmark_failed, e);
+                }
+                showResult(result);
+            }
+        }, "PetBenchmark").start();
+    }
+
+    private void showResult(final String result) {
+        runOnUiThread(new Runnable() {
+            @Override
+            public void run() {
+                if (!isFinishing()) {
+                    mResultTextView.setText(result);
+                }
+            }
+        });
+    }
+}
@@ -0,0 +1,80 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.pets;
+
+import android.os.Bundle;
+import android.support.v7.app.AppCompatActivity;
+import android.view.Menu;
+import android.view.MenuItem;
+import android.widget.TextView;
+
+import com.example.android.pets.data.PetCache;
+import com.example.android.pets.data.QueryMetrics;
+
+/**
+ * Shows the {@link QueryMetrics} of the process and the state of the {@link PetCache}. Only part
+ * of debug builds, start it with:
+ *
+ *   adb shell am start -n com.example.android.pets/.QueryMetricsActivity
+ */
+public class QueryMetricsActivity extends AppCompatActivity {
+
+    /** TextView that shows the metrics */
+    private TextView mMetricsTextView;
+
+    @Override
+    protected void onCreate(Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+        setContentView(R.layout.activity_query_metrics);
+
+        mMetricsTextView = (TextView) findViewById(R.id.query_metrics_text);
+    }
+
+    @Override
+    protected void onResume() {
+        super.onResume();
+        showMetrics();
+    }
+
+    /**
+     * Shows the current metrics. They are kept in memory, so reading them doesn't need a
+     * background thread.
+     */
+    private void showMetrics() {
+        mMetricsTextView.setText(PetCache.getInstance() + "\n\n"
+                + QueryMetrics.getInstance().dump());
+    }
+
+    @Override
+    public boolean onCreateOptionsMenu(Menu menu) {
+        getMenuInflater().inflate(R.menu.menu_query_metrics, menu);
+        return true;
+    }
+
+    @Override
+    public boolean onOptionsItemSelected(MenuItem item) {
+        switch (item.getItemId()) {
+            case R.id.action_refresh:
+                showMetrics();
+                return true;
+            case R.id.action_reset:
+                QueryMetrics.getInstance().reset();
+                showMetrics();
+                return true;
+        }
+        return super.onOptionsItemSelected(item);
+    }
+}
@@ -0,0 +1,541 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.pets.data;
+
+import android.util.JsonReader;
+import android.util.JsonToken;
+import android.util.JsonWriter;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.URLDecoder;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * A registry that {@link PetSync} can sync with, running in the app on a local port, for trying
+ * the sync and measuring it without a real server.
+ *
+ * It speaks the protocol described in {@link PetSync} with an in-memory set of pets: every change
+ * it accepts gets the next sequence number, and the cursor it hands out is the last sequence
+ * number of a page. A pushed change that is not based on its current version of the pet is
+ * rejected as a conflict. Failures can be injected to see the client retry.
+ *
+ * Serves one connection at a time, which is enough for one client.
+ */
+public class MockRegistryServer {
+
+    public static final String LOG_TAG = MockRegistryServer.class.getSimpleName();
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final String PATH_CHANGES = "/pets/changes";
+
+    /** The pets, by ID, guarded by this */
+    private final Map<String, Record> mRecords = new HashMap<>();
+
+    /** The pets, by the sequence number of their last change, guarded by this */
+    private final TreeMap<Long, Record> mChanges = new TreeMap<>();
+
+    private long mSequence;
+
+    private int mRequestCount;
+
+    private int mFailureDelay;
+
+    private int mFailureCount;
+
+    private int mFailureStatus;
+
+    private int mRetryAfterSeconds;
+
+    private ServerSocket mServerSocket;
+
+    /**
+     * Starts serving on a free port of the loopback interface.
+     */
+    public void start() throws IOException {
+        mServerSocket = new ServerSocket(0, 0, InetAddress.getByName("127.0.0.1"));
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                serve();
+            }
+        }, "MockRegistry");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Stops serving. The pets are kept.
+     */
+    public void stop() throws IOException {
+        if (mServerSocket != null) {
+            mServerSocket.close();
+            mServerSocket = null;
+        }
+    }
+
+    /**
+     * Returns the URL to give to {@link PetSync}.
+     */
+    public String getUrl() {
+        return "http://127.0.0.1:" + mServerSocket.getLocalPort();
+    }
+
+    /**
+     * Removes every pet.
+     */
+    public synchronized void reset() {
+        mRecords.clear();
+        mChanges.clear();
+        mSequence = 0;
+        mRequestCount = 0;
+        mFailureDelay = 0;
+        mFailureCount = 0;
+        mRetryAfterSeconds = 0;
+    }
+
+    /**
+     * Adds random pets, as if other shelters had registered them. The seed is fixed, so the same
+     * count always gives the same pets.
+     */
+    public synchronized void addPets(int count) {
+        Random random = new Random(42);
+        long modified = System.currentTimeMillis();
+        for (int i = 0; i < count; i++) {
+            Record record = new Record();
+            record.id = String.format(Locale.US, "%016x%016x", random.nextLong(), mSequence);
+            record.name = "Remote pet " + i;
+            record.breed = "Breed " + random.nextInt(50);
+            record.gender = random.nextInt(3);
+            record.weight = random.nextInt(60);
+            record.modified = modified;
+            record.version = 1;
+            record.sequence = ++mSequence;
+            mRecords.put(record.id, record);
+            mChanges.put(record.sequence, record);
+        }
+    }
+
+    /**
+     * Adds a pet or changes it, as if another shelter had pushed the change.
+     *
+     * @param id the ID of the pet on the registry
+     * @param name the new name of the pet
+     * @param modified the time of the change, in milliseconds since the epoch
+     * @return the new version of the pet
+     */
+    public synchronized long putPet(String id, String name, long modified) {
+        Record record = mRecords.get(id);
+        if (record == null) {
+            record = new Record();
+            record.id = id;
+            record.breed = "Breed";
+            record.weight = 1;
+            mRecords.put(id, record);
+        } else {
+            mChanges.remove(record.sequence);
+        }
+        record.name = name;
+        record.modified = modified;
+        record.deleted = false;
+        record.version++;
+        record.sequence = ++mSequence;
+        mChanges.put(record.sequence, record);
+        return record.version;
+    }
+
+    /**
+     * Returns the name of a pet, or null if the registry does not have it or it is deleted.
+     */
+    public synchronized String getPetName(String id) {
+        Record record = mRecords.get(id);
+        return record == null || record.deleted ? null : record.name;
+    }
+
+    /**
+     * Returns whether the registry has the pet as deleted.
+     */
+    public synchronized boolean isPetDeleted(String id) {
+        Record record = mRecords.get(id);
+        return record != null && record.deleted;
+    }
+
+    /**
+     * Makes the next requests fail.
+     *
+     * @param count number of requests that fail
+     * @param status HTTP status they fail with
+     */
+    public void failNextRequests(int count, int status) {
+        failRequests(0, count, status);
+    }
+
+    /**
+     * Makes requests fail after some more have been served.
+     *
+     * @param after number of requests served before the first failure
+     * @param count number of requests that fail
+     * @param status HTTP status they fail with
+     */
+    public synchronized void failRequests(int after, int count, int status) {
+        mFailureDelay = after;
+        mFailureCount = count;
+        mFailureStatus = status;
+    }
+
+    /**
+     * Sets the delay that the responses to failed requests ask the client to wait, if their
+     * status is 429 or 503. It is 0 until set.
+     */
+    public synchronized void setRetryAfter(int seconds) {
+        mRetryAfterSeconds = seconds;
+    }
+
+    /**
+     * Returns the number of requests received, including those that failed.
+     */
+    public synchronized int getRequestCount() {
+        return mRequestCount;
+    }
+
+    /**
+     * Returns the number of pets on the registry, including deleted ones.
+     */
+    public synchronized int getPetCount() {
+        return mRecords.size();
+    }
+
+    private void serve() {
+        ServerSocket serverSocket = mServerSocket;
+        while (!serverSocket.isClosed()) {
+            try {
+                Socket socket = serverSocket.accept();
+                try {
+                    handle(socket);
+                } finally {
+                    socket.close();
+                }
+            } catch (SocketException e) {
+                // Closed by stop()
+            } catch (IOException | RuntimeException e) {
+                Log.w(LOG_TAG, "Request failed", e);
+            }
+        }
+    }
+
+    /**
+     * Reads one request from the socket and answers it. Each connection carries one request.
+     */
+    private void handle(Socket socket) throws IOException {
+        InputStream in = new BufferedInputStream(socket.getInputStream());
+        String[] requestLine = readLine(in).split(" ");
+        Map<String, String> headers = new HashMap<>();
+        for (String line = readLine(in); !line.isEmpty(); line = readLine(in)) {
+            int colon = line.indexOf(':');
+            headers.put(line.substring(0, colon).trim().toLowerCase(Locale.US),
+                    line.substring(colon + 1).trim());
+        }
+        byte[] body = new byte[0];
+        if (headers.containsKey("content-length")) {
+            body = new byte[Integer.parseInt(headers.get("content-length"))];
+            int read = 0;
+            while (read < body.length) {
+                int count = in.read(body, read, body.length - read);
+                if (count < 0) {
+                    throw new IOException("Truncated request body");
+                }
+                read += count;
+            }
+        }
+        if ("gzip".equals(headers.get("content-encoding"))) {
+            body = readFully(new GZIPInputStream(new ByteArrayInputStream(body)));
+        }
+
+        OutputStream out = socket.getOutputStream();
+        synchronized (this) {
+            mRequestCount++;
+            if (mFailureDelay > 0) {
+                mFailureDelay--;
+            } else if (mFailureCount > 0) {
+                mFailureCount--;
+                respond(out, mFailureStatus, mRetryAfterSeconds, null, false);
+                return;
+            }
+        }
+
+        String method = requestLine[0];
+        String target = requestLine[1];
+        String path = target.contains("?") ? target.substring(0, target.indexOf('?')) : target;
+        boolean gzip = headers.containsKey("accept-encoding")
+                && headers.get("accept-encoding").contains("gzip");
+        if (!PATH_CHANGES.equals(path)) {
+            respond(out, 404, 0, null, false);
+        } else if ("GET".equals(method)) {
+            Map<String, String> query = parseQuery(target);
+            long cursor = query.containsKey("cursor") ? Long.parseLong(query.get("cursor")) : 0;
+            int limit = query.containsKey("limit") ? Integer.parseInt(query.get("limit")) : 100;
+            respond(out, 200, 0, pull(cursor, limit), gzip);
+        } else if ("POST".equals(method)) {
+            respond(out, 200, 0, push(body), gzip);
+        } else {
+            respond(out, 405, 0, null, false);
+        }
+    }
+
+    private synchronized byte[] pull(long cursor, int limit) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        JsonWriter writer = new JsonWriter(new OutputStreamWriter(bytes, UTF_8));
+        writer.beginObject();
+        writer.name("changes").beginArray();
+        long last = cursor;
+        Iterator<Record> records = mChanges.tailMap(cursor, false).values().iterator();
+        for (int i = 0; i < limit && records.hasNext(); i++) {
+            Record record = records.next();
+            record.write(writer);
+            last = record.sequence;
+        }
+        writer.endArray();
+        writer.name("cursor").value(String.valueOf(last));
+        writer.name("more").value(records.hasNext());
+        writer.endObject();
+        writer.close();
+        return bytes.toByteArray();
+    }
+
+    private synchronized byte[] push(byte[] body) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        JsonWriter writer = new JsonWriter(new OutputStreamWriter(bytes, UTF_8));
+        writer.beginObject();
+        writer.name("results").beginArray();
+
+        JsonReader reader = new JsonReader(
+                new InputStreamReader(new ByteArrayInputStream(body), UTF_8));
+        reader.beginObject();
+        while (reader.hasNext()) {
+            if (!"changes".equals(reader.nextName())) {
+                reader.skipValue();
+                continue;
+            }
+            reader.beginArray();
+            while (reader.hasNext()) {
+                Change change = Change.read(reader);
+                Record record = mRecords.get(change.id);
+                long current = record == null ? -1 : record.version;
+                writer.beginObject();
+                writer.name("id").value(change.id);
+                if (change.baseVersion != current) {
+                    writer.name("conflict").value(true);
+                } else {
+                    if (record == null) {
+                        record = new Record();
+                        record.id = change.id;
+                        mRecords.put(record.id, record);
+                    } else {
+                        mChanges.remove(record.sequence);
+                    }
+                    change.applyTo(record);
+                    record.version++;
+                    record.sequence = ++mSequence;
+                    mChanges.put(record.sequence, record);
+                    writer.name("version").value(record.version);
+                }
+                writer.endObject();
+            }
+            reader.endArray();
+        }
+        reader.endObject();
+        reader.close();
+
+        writer.endArray();
+        writer.endObject();
+        writer.close();
+        return bytes.toByteArray();
+    }
+
+    private static void respond(OutputStream out, int status, int retryAfterSeconds, byte[] body,
+            boolean gzip) throws IOException {
+        StringBuilder head = new StringBuilder("HTTP/1.1 ").append(status).append(' ')
+                .append(status == 200 ? "OK" : "Error").append("\r\n");
+        head.append("Connection: close\r\n");
+        if (status == 429 || status == 503) {
+            head.append("Retry-After: ").append(retryAfterSeconds).append("\r\n");
+        }
+        if (body == null) {
+            body = new byte[0];
+        } else {
+            head.append("Content-Type: application/json\r\n");
+            if (gzip) {
+                ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+                GZIPOutputStream gzipOut = new GZIPOutputStream(compressed);
+                gzipOut.write(body);
+                gzipOut.close();
+                body = compressed.toByteArray();
+                head.append("Content-Encoding: gzip\r\n");
+            }
+        }
+        head.append("Content-Length: ").append(body.length).append("\r\n\r\n");
+        out.write(head.toString().getBytes(UTF_8));
+        out.write(body);
+        out.flush();
+    }
+
+    private static Map<String, String> parseQuery(String target) throws IOException {
+        Map<String, String> query = new HashMap<>();
+        int start = target.indexOf('?');
+        if (start < 0) {
+            return query;
+        }
+        for (String parameter : target.substring(start + 1).split("&")) {
+            int equals = parameter.indexOf('=');
+            if (equals > 0) {
+                query.put(parameter.substring(0, equals),
+                        URLDecoder.decode(parameter.substring(equals + 1), "UTF-8"));
+            }
+        }
+        return query;
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        StringBuilder line = new StringBuilder();
+        int c;
+        while ((c = in.read()) != '\n') {
+            if (c < 0) {
+                throw new IOException("Truncated request");
+            }
+            if (c != '\r') {
+                line.append((char) c);
+            }
+        }
+        return line.toString();
+    }
+
+    private static byte[] readFully(InputStream in) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int count;
+        while ((count = in.read(buffer)) != -1) {
+            bytes.write(buffer, 0, count);
+        }
+        in.close();
+        return bytes.toByteArray();
+    }
+
+    /**
+     * The current version of a pet on the registry.
+     */
+    private static final class Record {
+        String id;
+        long version;
+        long sequence;
+        long modified;
+        boolean deleted;
+        String name;
+        String breed;
+        int gender;
+        int weight;
+
+        void write(JsonWriter writer) throws IOException {
+            writer.beginObject();
+            writer.name("id").value(id);
+            writer.name("version").value(version);
+            writer.name("modified").value(modified);
+            writer.name("deleted").value(deleted);
+            if (!deleted) {
+                writer.name("name").value(name);
+                writer.name("breed").value(breed);
+                writer.name("gender").value(gender);
+                writer.name("weight").value(weight);
+            }
+            writer.endObject();
+        }
+    }
+
+    /**
+     * A change pushed by a client.
+     */
+    private static final class Change {
+        String id;
+        long baseVersion = -1;
+        long modified;
+        boolean deleted;
+        String name;
+        String breed;
+        int gender;
+        int weight;
+
+        static Change read(JsonReader reader) throws IOException {
+            Change change = new Change();
+            reader.beginObject();
+            while (reader.hasNext()) {
+                String key = reader.nextName();
+                if (reader.peek() == JsonToken.NULL) {
+                    reader.nextNull();
+                } else if ("id".equals(key)) {
+                    change.id = reader.nextString();
+                } else if ("base_version".equals(key)) {
+                    change.baseVersion = reader.nextLong();
+                } else if ("modified".equals(key)) {
+                    change.modified = reader.nextLong();
+                } else if ("deleted".equals(key)) {
+                    change.deleted = reader.nextBoolean();
+                } else if ("name".equals(key)) {
+                    change.name = reader.nextString();
+                } else if ("breed".equals(key)) {
+                    change.breed = reader.nextString();
+                } else if ("gender".equals(key)) {
+                    change.gender = reader.nextInt();
+                } else if ("weight".equals(key)) {
+                    change.weight = reader.nextInt();
+                } else {
+                    reader.skipValue();
+                }
+            }
+            reader.endObject();
+            return change;
+        }
+
+        void applyTo(Record record) {
+            record.modified = modified;
+            record.deleted = deleted;
+            if (name != null) {
+                record.name = name;
+                record.breed = breed;
+                record.gender = gender;
+                record.weight = weight;
+            }
+        }
+    }
+}
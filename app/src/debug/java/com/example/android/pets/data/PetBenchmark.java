@@ -0,0 +1,554 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.pets.data;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.Build;
+import android.util.JsonWriter;
+import android.util.Log;
+
+import com.example.android.pets.BuildConfig;
+import com.example.android.pets.data.PetContract.PetEntry;
+import com.example.android.pets.data.PetContract.PetSyncEntry;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Measures the main operations of the data layer on the device, against a scratch database that
+ * goes through the same {@link PetDbHelper} setup as the real one.
+ *
+ * Each benchmark runs {@link #WARMUP_ITERATIONS} iterations that are thrown away, then
+ * {@link #MEASURED_ITERATIONS} that are timed. Scores are the average time per operation, in
+ * microseconds, and are written as JSON so that two runs can be compared by a script.
+ */
+public class PetBenchmark {
+
+    public static final String LOG_TAG = PetBenchmark.class.getSimpleName();
+
+    /** Name of the file the results are written to, in the external files directory of the app */
+    public static final String OUTPUT_FILE_NAME = "pets-benchmark.json";
+
+    /** Scratch database, so the pets of the app are never touched */
+    private static final String DATABASE_NAME = "benchmark.db";
+
+    private static final int WARMUP_ITERATIONS = 3;
+    private static final int MEASURED_ITERATIONS = 10;
+
+    /** Number of pets written by each iteration of the insert benchmarks */
+    private static final int INSERT_ROWS = 1000;
+
+    /** Number of pets in the table while queries are measured */
+    private static final int QUERY_ROWS = 20000;
+
+    /** Number of pets in the first page of the catalog */
+    private static final int FIRST_PAGE_SIZE = 50;
+
+    /** Number of pets on the registry when the first sync of a device is measured */
+    private static final int SYNC_PULL_ROWS = 100000;
+
+    /** Number of new local pets sent to the registry by each iteration of the push benchmark */
+    private static final int SYNC_PUSH_ROWS = 10000;
+
+    /** Iterations of the sync benchmarks, fewer as each one moves the whole table */
+    private static final int SYNC_WARMUP_ITERATIONS = 1;
+    private static final int SYNC_MEASURED_ITERATIONS = 3;
+
+    /** Number of shelters created around the one measured by the shelter benchmark */
+    private static final int SHELTER_COUNT = 64;
+
+    /** Number of operations run against a shelter by each iteration of the shelter benchmark */
+    private static final int SHELTER_OPERATIONS = 1000;
+
+    /** Prefix of the IDs of the shelters created by the benchmark */
+    private static final String SHELTER_PREFIX = "benchmark_";
+
+    /** Number of distinct breeds, so that a query on one breed matches 1 pet out of 50 */
+    private static final int BREED_COUNT = 50;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /** Selects the pets of one breed, letting SQLite use the breed index */
+    private static final String SQL_QUERY_BREED = "SELECT " + PetEntry._ID + ", "
+            + PetEntry.COLUMN_PET_NAME + " FROM " + PetEntry.TABLE_NAME
+            + " WHERE " + PetEntry.COLUMN_PET_BREED + " = ?";
+
+    /** Same query, but forced to scan the whole table */
+    private static final String SQL_QUERY_BREED_FULL_SCAN = "SELECT " + PetEntry._ID + ", "
+            + PetEntry.COLUMN_PET_NAME + " FROM " + PetEntry.TABLE_NAME + " NOT INDEXED"
+            + " WHERE " + PetEntry.COLUMN_PET_BREED + " = ?";
+
+    private final Context mContext;
+    private final List<Score> mScores = new ArrayList<>();
+    private PetDbHelper mDbHelper;
+
+    /**
+     * Constructs a new {@link PetBenchmark}.
+     *
+     * @param context of the app
+     */
+    public PetBenchmark(Context context) {
+        mContext = context.getApplicationContext();
+    }
+
+    /**
+     * Runs every benchmark and writes the results. This takes a while, so it must be called on a
+     * background thread.
+     *
+     * @return the file the results were written to
+     */
+    public File run() throws IOException {
+        mScores.clear();
+        try {
+            runOpenBenchmarks();
+            runInsertBenchmarks();
+            runQueryBenchmarks();
+            runSyncBenchmarks();
+            runShelterBenchmarks();
+            return writeResults();
+        } finally {
+            closeDatabase();
+            mContext.deleteDatabase(DATABASE_NAME);
+        }
+    }
+
+    /**
+     * Returns one line per benchmark of the last run, with its score.
+     */
+    public String getSummary() {
+        StringBuilder summary = new StringBuilder();
+        for (Score score : mScores) {
+            summary.append(score).append('\n');
+        }
+        return summary.toString();
+    }
+
+    private void runOpenBenchmarks() throws IOException {
+        // Creating the database runs onCreate and every migration
+        measure("open_new", 1, new Benchmark() {
+            @Override
+            void setUp() {
+                closeDatabase();
+                mContext.deleteDatabase(DATABASE_NAME);
+            }
+
+            @Override
+            void run() {
+                openDatabase();
+            }
+        });
+
+        // Opening an existing database only runs onOpen and its pragmas
+        measure("open_existing", 1, new Benchmark() {
+            @Override
+            void setUp() {
+                closeDatabase();
+            }
+
+            @Override
+            void run() {
+                openDatabase();
+            }
+        });
+
+        clearPets();
+        measureFirstContent("first_content_empty");
+    }
+
+    private void runInsertBenchmarks() throws IOException {
+        final byte[] csv = generateCsv(INSERT_ROWS);
+        measure("insert_single", INSERT_ROWS, new Benchmark() {
+            @Override
+            void setUp() {
+                clearPets();
+            }
+
+            @Override
+            void run() throws IOException {
+                importPets(csv, false);
+            }
+        });
+        measure("insert_batched", INSERT_ROWS, new Benchmark() {
+            @Override
+            void setUp() {
+                clearPets();
+            }
+
+            @Override
+            void run() throws IOException {
+                importPets(csv, true);
+            }
+        });
+    }
+
+    private void runQueryBenchmarks() throws IOException {
+        clearPets();
+        importPets(generateCsv(QUERY_ROWS), true);
+        final String[] breed = { breedName(7) };
+
+        measureFirstContent("first_content_large");
+
+        measure("query_breed_full_scan", 1, new Benchmark() {
+            @Override
+            void run() {
+                countRows(mDbHelper.getReadableDatabase().rawQuery(SQL_QUERY_BREED_FULL_SCAN,
+                        breed));
+            }
+        });
+        measure("query_breed_indexed", 1, new Benchmark() {
+            @Override
+            void run() {
+                countRows(mDbHelper.getReadableDatabase().rawQuery(SQL_QUERY_BREED, breed));
+            }
+        });
+
+        // Reads every column of every pet and formats it, the way the catalog used to display
+        // the whole table as text
+        measure("cursor_iteration", QUERY_ROWS, new Benchmark() {
+            @Override
+            void run() {
+                Cursor cursor = mDbHelper.getReadableDatabase().query(
+                        PetEntry.TABLE_NAME, Pet.PROJECTION, null, null, null, null, null);
+                try {
+                    int idColumnIndex = cursor.getColumnIndex(PetEntry._ID);
+                    int nameColumnIndex = cursor.getColumnIndex(PetEntry.COLUMN_PET_NAME);
+                    int breedColumnIndex = cursor.getColumnIndex(PetEntry.COLUMN_PET_BREED);
+                    int genderColumnIndex = cursor.getColumnIndex(PetEntry.COLUMN_PET_GENDER);
+                    int weightColumnIndex = cursor.getColumnIndex(PetEntry.COLUMN_PET_WEIGHT);
+
+                    StringBuilder text = new StringBuilder();
+                    while (cursor.moveToNext()) {
+                        text.append('\n').append(cursor.getInt(idColumnIndex))
+                                .append(" - ").append(cursor.getString(nameColumnIndex))
+                                .append(" - ").append(cursor.getString(breedColumnIndex))
+                                .append(" - ").append(cursor.getInt(genderColumnIndex))
+                                .append(" - ").append(cursor.getInt(weightColumnIndex));
+                    }
+                } finally {
+                    cursor.close();
+                }
+            }
+        });
+    }
+
+    /**
+     * Measures the sync against a {@link MockRegistryServer} on this device, so the scores leave
+     * the network out and show the cost of the client and of the database.
+     */
+    private void runSyncBenchmarks() throws IOException {
+        final MockRegistryServer server = new MockRegistryServer();
+        server.start();
+        try {
+            // First sync of a new device with a registry that knows many pets
+            server.addPets(SYNC_PULL_ROWS);
+            measure("sync_initial_pull", SYNC_PULL_ROWS, SYNC_WARMUP_ITERATIONS,
+                    SYNC_MEASURED_ITERATIONS, new Benchmark() {
+                        @Override
+                        void setUp() {
+                            clearPets();
+                        }
+
+                        @Override
+                        void run() throws IOException {
+                            new PetSync(mDbHelper, server.getUrl()).sync();
+                        }
+                    });
+
+            // Pets added on the device, sent to an empty registry
+            final byte[] csv = generateCsv(SYNC_PUSH_ROWS);
+            measure("sync_push", SYNC_PUSH_ROWS, SYNC_WARMUP_ITERATIONS,
+                    SYNC_MEASURED_ITERATIONS, new Benchmark() {
+                        @Override
+                        void setUp() throws IOException {
+                            server.reset();
+                            clearPets();
+                            importPets(csv, true);
+                        }
+
+                        @Override
+                        void run() throws IOException {
+                            new PetSync(mDbHelper, server.getUrl()).sync();
+                        }
+                    });
+        } finally {
+            server.stop();
+        }
+    }
+
+    /**
+     * Measures an operation against one shelter while many others exist and some of them are
+     * used in between, so that shelters are opened and closed by {@link PetShelters}.
+     */
+    private void runShelterBenchmarks() throws IOException {
+        final PetShelters shelters = PetShelters.getInstance(mContext);
+        final PetDataSource.Operation<Long> count = new PetDataSource.Operation<Long>() {
+            @Override
+            public Long run(PetDbHelper dbHelper) {
+                return DatabaseUtils.queryNumEntries(dbHelper.getReadableDatabase(),
+                        PetEntry.TABLE_NAME);
+            }
+        };
+        try {
+            for (int i = 0; i < SHELTER_COUNT; i++) {
+                shelters.run(SHELTER_PREFIX + i, count);
+            }
+            measure("shelter_operation", SHELTER_OPERATIONS, new Benchmark() {
+                @Override
+                void run() {
+                    for (int i = 0; i < SHELTER_OPERATIONS; i++) {
+                        shelters.run(SHELTER_PREFIX + 0, count);
+                        // Every tenth operation goes to another shelter, which may be closed
+                        if (i % 10 == 0) {
+                            shelters.run(SHELTER_PREFIX + (i / 10 % SHELTER_COUNT), count);
+                        }
+                    }
+                }
+            });
+        } finally {
+            for (int i = 0; i < SHELTER_COUNT; i++) {
+                shelters.deleteShelter(SHELTER_PREFIX + i);
+            }
+        }
+    }
+
+    /**
+     * Measures the time from a closed database to the first page of the catalog, the work done
+     * in the background between the launch of the app and its first content.
+     */
+    private void measureFirstContent(String name) throws IOException {
+        measure(name, 1, new Benchmark() {
+            @Override
+            void setUp() {
+                closeDatabase();
+            }
+
+            @Override
+            void run() {
+                openDatabase();
+                new PetChanges(mDbHelper).getVersion();
+                countRows(PetQuery.ALL.queryPage(mDbHelper, null, FIRST_PAGE_SIZE));
+            }
+        });
+    }
+
+    /**
+     * Runs the warm-up and measured iterations of a benchmark, and records its score.
+     *
+     * @param name of the benchmark in the results
+     * @param operations number of operations done by each iteration, to compute the time of one
+     */
+    private void measure(String name, int operations, Benchmark benchmark) throws IOException {
+        measure(name, operations, WARMUP_ITERATIONS, MEASURED_ITERATIONS, benchmark);
+    }
+
+    /**
+     * Same as {@link #measure(String, int, Benchmark)}, with the given numbers of iterations, for
+     * the benchmarks too slow to run the default ones.
+     */
+    private void measure(String name, int operations, int warmupIterations,
+            int measuredIterations, Benchmark benchmark) throws IOException {
+        for (int i = 0; i < warmupIterations; i++) {
+            benchmark.setUp();
+            benchmark.run();
+        }
+
+        double[] samples = new double[measuredIterations];
+        for (int i = 0; i < measuredIterations; i++) {
+            benchmark.setUp();
+            long start = System.nanoTime();
+            benchmark.run();
+            samples[i] = (System.nanoTime() - start) / 1000.0 / operations;
+        }
+
+        Score score = new Score(name, samples);
+        Log.i(LOG_TAG, score.toString());
+        mScores.add(score);
+    }
+
+    private void openDatabase() {
+        if (mDbHelper == null) {
+            mDbHelper = new PetDbHelper(mContext, DATABASE_NAME);
+        }
+        mDbHelper.getWritableDatabase();
+    }
+
+    private void closeDatabase() {
+        if (mDbHelper != null) {
+            mDbHelper.close();
+            mDbHelper = null;
+        }
+    }
+
+    /**
+     * Deletes every pet, and forgets the sync state with them, so that the next sync starts over.
+     */
+    private void clearPets() {
+        openDatabase();
+        SQLiteDatabase db = mDbHelper.getWritableDatabase();
+        db.delete(PetEntry.TABLE_NAME, null, null);
+        db.delete(PetSyncEntry.DELETES_TABLE_NAME, null, null);
+        db.delete(PetSyncEntry.STATE_TABLE_NAME, null, null);
+    }
+
+    private void importPets(byte[] csv, boolean batched) throws IOException {
+        PetImporter importer = new PetImporter(mDbHelper);
+        importer.setBatched(batched);
+        importer.importPets(new ByteArrayInputStream(csv), PetImporter.Format.CSV, null);
+    }
+
+    private static void countRows(Cursor cursor) {
+        try {
+            while (cursor.moveToNext()) {
+                cursor.getLong(0);
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Builds a CSV file of random pets. The seed is fixed, so every run measures the same data.
+     */
+    private static byte[] generateCsv(int rows) {
+        Random random = new Random(42);
+        StringBuilder csv = new StringBuilder("name,breed,gender,weight\n");
+        for (int i = 0; i < rows; i++) {
+            csv.append("Pet ").append(i)
+                    .append(',').append(breedName(random.nextInt(BREED_COUNT)))
+                    .append(',').append(random.nextInt(3))
+                    .append(',').append(random.nextInt(60))
+                    .append('\n');
+        }
+        return csv.toString().getBytes(UTF_8);
+    }
+
+    private static String breedName(int index) {
+        return "Breed " + index;
+    }
+
+    /**
+     * Writes the scores, and the device they were measured on, to {@link #OUTPUT_FILE_NAME}.
+     */
+    private File writeResults() throws IOException {
+        File directory = mContext.getExternalFilesDir(null);
+        if (directory == null) {
+            directory = mContext.getFilesDir();
+        }
+        File file = new File(directory, OUTPUT_FILE_NAME);
+
+        JsonWriter writer = new JsonWriter(
+                new OutputStreamWriter(new FileOutputStream(file), UTF_8));
+        try {
+            writer.setIndent("  ");
+            writer.beginObject();
+            writer.name("appVersion").value(BuildConfig.VERSION_NAME);
+            writer.name("buildType").value(BuildConfig.BUILD_TYPE);
+            writer.name("device").value(Build.MANUFACTURER + " " + Build.MODEL);
+            writer.name("sdkInt").value(Build.VERSION.SDK_INT);
+            writer.name("sqliteVersion").value(DatabaseUtils.stringForQuery(
+                    mDbHelper.getReadableDatabase(), "SELECT sqlite_version()", null));
+            writer.name("warmupIterations").value(WARMUP_ITERATIONS);
+            writer.name("measuredIterations").value(MEASURED_ITERATIONS);
+            writer.name("benchmarks").beginArray();
+            for (Score score : mScores) {
+                score.write(writer);
+            }
+            writer.endArray();
+            writer.endObject();
+        } finally {
+            writer.close();
+        }
+
+        Log.i(LOG_TAG, "Results written to " + file);
+        return file;
+    }
+
+    /**
+     * The work measured by one benchmark.
+     */
+    private abstract static class Benchmark {
+
+        /** Prepares an iteration, this is not part of the measured time */
+        void setUp() throws IOException {
+        }
+
+        /** Does the work of one iteration */
+        abstract void run() throws IOException;
+    }
+
+    /**
+     * Time taken by one operation in each measured iteration of a benchmark.
+     */
+    private static final class Score {
+
+        final String name;
+        final double[] samples;
+
+        Score(String name, double[] samples) {
+            this.name = name;
+            this.samples = samples;
+        }
+
+        double mean() {
+            double sum = 0;
+            for (double sample : samples) {
+                sum += sample;
+            }
+            return sum / samples.length;
+        }
+
+        double percentile(double fraction) {
+            double[] sorted = samples.clone();
+            Arrays.sort(sorted);
+            return sorted[(int) Math.round(fraction * (sorted.length - 1))];
+        }
+
+        void write(JsonWriter writer) throws IOException {
+            writer.beginObject();
+            writer.name("benchmark").value(name);
+            writer.name("mode").value("avgt");
+            writer.name("scoreUnit").value("us/op");
+            writer.name("score").value(mean());
+            writer.name("min").value(percentile(0));
+            writer.name("median").value(percentile(0.5));
+            writer.name("max").value(percentile(1));
+            writer.name("rawData").beginArray();
+            for (double sample : samples) {
+                writer.value(sample);
+            }
+            writer.endArray();
+            writer.endObject();
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US, "%s: %.2f us/op (min %.2f, median %.2f, max %.2f)",
+                    name, mean(), percentile(0), percentile(0.5), percentile(1));
+        }
+    }
+}
@@ -15,32 +15,105 @@
  */
 package com.example.android.pets;
 
+import android.content.ContentUris;
 import android.content.ContentValues;
+import android.content.DialogInterface;
 import android.content.Intent;
-import android.database.Cursor;
-import android.database.sqlite.SQLiteDatabase;
+import android.database.ContentObserver;
+import android.net.Uri;
+import android.os.Build;
 import android.os.Bundle;
+import android.os.Handler;
 import android.support.design.widget.FloatingActionButton;
+import android.support.design.widget.Snackbar;
+import android.support.v4.view.MenuItemCompat;
+import android.support.v7.app.ActionBar;
+import android.support.v7.app.AlertDialog;
 import android.support.v7.app.AppCompatActivity;
+import android.support.v7.widget.SearchView;
+import android.text.TextUtils;
 import android.view.Menu;
 import android.view.MenuItem;
 import android.view.View;
-import android.widget.TextView;
+import android.widget.AdapterView;
+import android.widget.ListView;
+import android.widget.Toast;
 
 import com.example.android.pets.data.PetContract.PetEntry;
-import com.example.android.pets.data.PetDbHelper;
+import com.example.android.pets.data.PetDataSource;
+import com.example.android.pets.data.PetImporter;
+import com.example.android.pets.data.PetQuery;
+import com.example.android.pets.data.PetSync;
+import com.example.android.pets.data.PetTrash;
+
+import java.io.File;
 
 /**
  * Displays list of pets that were entered and stored in the app.
  */
 public class CatalogActivity extends AppCompatActivity {
 
-    /** Database helper that will provide us access to the database */
-    private PetDbHelper mDbHelper;
+    /** Request code for picking the file to import pets from */
+    private static final int REQUEST_IMPORT_PETS = 1;
+
+    /** Request code for creating the file to back up the pets to */
+    private static final int REQUEST_EXPORT_BACKUP = 2;
+
+    /** Request code for picking the backup to restore */
+    private static final int REQUEST_RESTORE_BACKUP = 3;
+
+    /** Keys of the sort order and gender filter in the saved instance state */
+    private static final String STATE_SORT_BY = "sort_by";
+    private static final String STATE_GENDER = "gender";
+
+    /** Order of the pets, one of the {@code SORT_BY_*} constants of {@link PetQuery} */
+    private int mSortBy = PetQuery.SORT_BY_ID;
+
+    /** Gender of the pets shown, or -1 to show every pet */
+    private int mGender = -1;
+
+    /** Data source that runs all database work in the background */
+    private PetDataSource mDataSource;
+
+    /** Adapter for the ListView */
+    private PetAdapter mAdapter;
+
+    /**
+     * Observes the pets in the provider while the catalog is visible. Only the pets that changed
+     * are read again.
+     */
+    private final ContentObserver mPetObserver = new ContentObserver(new Handler()) {
+        @Override
+        public void onChange(boolean selfChange) {
+            mAdapter.refresh();
+        }
+    };
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
+        if (BuildConfig.STRICT_DISK_ACCESS) {
+            PetDataSource.enableStrictMode();
+        }
+
+        // All access to the database goes through the data source, which keeps it off the
+        // main thread. The database is opened and the first page read in the background while
+        // the layout is inflated and the first frame drawn, rather than once the catalog starts.
+        mDataSource = new PetDataSource(this);
+        mAdapter = new PetAdapter(this, mDataSource);
+        if (savedInstanceState != null) {
+            mSortBy = savedInstanceState.getInt(STATE_SORT_BY, mSortBy);
+            mGender = savedInstanceState.getInt(STATE_GENDER, mGender);
+            mAdapter.setPetQuery(buildPetQuery());
+        } else {
+            mAdapter.reload();
+
+            // Pets left in the trash by a previous run, for example because the app was killed
+            // while the undo bar was shown, are deleted for good. This is queued after the first
+            // page, so that it does not hold up the first content.
+            mDataSource.purgeTrash(null, null);
+        }
+
         setContentView(R.layout.activity_catalog);
 
         // Setup FAB to open EditorActivity
@@ -53,88 +126,71 @@ public class CatalogActivity extends AppCompatActivity {
             }
         });
 
-        // To access our database, we instantiate our subclass of SQLiteOpenHelper
-        // and pass the context, which is the current activity.
-        mDbHelper = new PetDbHelper(this);
+        // Find the ListView which will be populated with the pet data
+        ListView petListView = (ListView) findViewById(R.id.list);
+
+        // Find and set empty view on the ListView, so that it only shows when the list has 0 items.
+        View emptyView = findViewById(R.id.empty_view);
+        petListView.setEmptyView(emptyView);
+
+        // The adapter loads the pets a page at a time as the user scrolls
+        petListView.setAdapter(mAdapter);
+        petListView.setOnScrollListener(mAdapter);
+
+        // Setup the item click listener
+        petListView.setOnItemClickListener(new AdapterView.OnItemClickListener() {
+            @Override
+            public void onItemClick(AdapterView<?> adapterView, View view, int position, long id) {
+                // Create new intent to go to {@link EditorActivity}
+                Intent intent = new Intent(CatalogActivity.this, EditorActivity.class);
+
+                // Form the content URI that represents the specific pet that was clicked on,
+                // by appending the "id" (passed as input to this method) onto the
+                // {@link PetEntry#CONTENT_URI}.
+                // For example, the URI would be "content://com.example.android.pets/pets/2"
+                // if the pet with ID 2 was clicked on.
+                Uri currentPetUri = ContentUris.withAppendedId(PetEntry.CONTENT_URI, id);
+
+                // Set the URI on the data field of the intent
+                intent.setData(currentPetUri);
+
+                // Launch the {@link EditorActivity} to display the data for the current pet.
+                startActivity(intent);
+            }
+        });
     }
 
     @Override
     protected void onStart() {
         super.onStart();
-        displayDatabaseInfo();
+        // Only the pets that changed while the catalog was hidden, if any, are read again
+        mAdapter.refresh();
+        getContentResolver().registerContentObserver(PetEntry.CONTENT_URI, true, mPetObserver);
     }
 
-    /**
-     * Temporary helper method to display information in the onscreen TextView about the state of
-     * the pets database.
-     */
-    private void displayDatabaseInfo() {
-        // Create and/or open a database to read from it
-        SQLiteDatabase db = mDbHelper.getReadableDatabase();
-
-        // Define a projection that specifies which columns from the database
-        // you will actually use after this query.
-        String[] projection = {
-                PetEntry._ID,
-                PetEntry.COLUMN_PET_NAME,
-                PetEntry.COLUMN_PET_BREED,
-                PetEntry.COLUMN_PET_GENDER,
-                PetEntry.COLUMN_PET_WEIGHT };
-
-        // Perform a query on the pets table
-        Cursor cursor = db.query(
-                PetEntry.TABLE_NAME,   // The table to query
-                projection,            // The columns to return
-                null,                  // The columns for the WHERE clause
-                null,                  // The values for the WHERE clause
-                null,                  // Don't group the rows
-                null,                  // Don't filter by row groups
-                null);                   // The sort order
-
-        TextView displayView = (TextView) findViewById(R.id.text_view_pet);
-
-        try {
-            // Create a header in the Text View that looks like this:
-            //
-            // The pets table contains <number of rows in Cursor> pets.
-            // _id - name - breed - gender - weight
-            //
-            // In the while loop below, iterate through the rows of the cursor and display
-            // the information from each column in this order.
-            displayView.setText("The pets table contains " + cursor.getCount() + " pets.\n\n");
-            displayView.append(PetEntry._ID + " - " +
-                    PetEntry.COLUMN_PET_NAME + " - " +
-                    PetEntry.COLUMN_PET_BREED + " - " +
-                    PetEntry.COLUMN_PET_GENDER + " - " +
-                    PetEntry.COLUMN_PET_WEIGHT + "\n");
-
-            // Figure out the index of each column
-            int idColumnIndex = cursor.getColumnIndex(PetEntry._ID);
-            int nameColumnIndex = cursor.getColumnIndex(PetEntry.COLUMN_PET_NAME);
-            int breedColumnIndex = cursor.getColumnIndex(PetEntry.COLUMN_PET_BREED);
-            int genderColumnIndex = cursor.getColumnIndex(PetEntry.COLUMN_PET_GENDER);
-            int weightColumnIndex = cursor.getColumnIndex(PetEntry.COLUMN_PET_WEIGHT);
-
-            // Iterate through all the returned rows in the cursor
-            while (cursor.moveToNext()) {
-                // Use that index to extract the String or Int value of the word
-                // at the current row the cursor is on.
-                int currentID = cursor.getInt(idColumnIndex);
-                String currentName = cursor.getString(nameColumnIndex);
-                String currentBreed = cursor.getString(breedColumnIndex);
-                int currentGender = cursor.getInt(genderColumnIndex);
-                int currentWeight = cursor.getInt(weightColumnIndex);
-                // Display the values from each column of the current row in the cursor in the TextView
-                displayView.append(("\n" + currentID + " - " +
-                        currentName + " - " +
-                        currentBreed + " - " +
-                        currentGender + " - " +
-                        currentWeight));
-            }
-        } finally {
-            // Always close the cursor when you're done reading from it. This releases all its
-            // resources and makes it invalid.
-            cursor.close();
+    @Override
+    protected void onSaveInstanceState(Bundle outState) {
+        super.onSaveInstanceState(outState);
+        outState.putInt(STATE_SORT_BY, mSortBy);
+        outState.putInt(STATE_GENDER, mGender);
+    }
+
+    @Override
+    protected void onStop() {
+        super.onStop();
+        // Nobody is looking at the list anymore, so drop the page that is still being loaded.
+        // Changes made while the catalog is hidden are picked up by the refresh in onStart().
+        getContentResolver().unregisterContentObserver(mPetObserver);
+        mAdapter.cancel();
+    }
+
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+        // The app is no longer visible, so nobody waits for the database while it is rebuilt,
+        // unless an import, restore or sync is still running, in which case it is skipped
+        if (level == TRIM_MEMORY_UI_HIDDEN) {
+            mDataSource.runMaintenance(null);
         }
     }
 
@@ -142,9 +198,6 @@ public class CatalogActivity extends AppCompatActivity {
      * Helper method to insert hardcoded pet data into the database. For debugging purposes only.
      */
     private void insertPet() {
-        // Gets the database in write mode
-        SQLiteDatabase db = mDbHelper.getWritableDatabase();
-
         // Create a ContentValues object where column names are the keys,
         // and Toto's pet attributes are the values.
         ContentValues values = new ContentValues();
@@ -153,14 +206,180 @@ public class CatalogActivity extends AppCompatActivity {
         values.put(PetEntry.COLUMN_PET_GENDER, PetEntry.GENDER_MALE);
         values.put(PetEntry.COLUMN_PET_WEIGHT, 7);
 
-        // Insert a new row for Toto in the database, returning the ID of that new row.
-        // The first argument for db.insert() is the pets table name.
-        // The second argument provides the name of a column in which the framework
-        // can insert NULL in the event that the ContentValues is empty (if
-        // this is set to "null", then the framework will not insert a row when
-        // there are no values).
-        // The third argument is the ContentValues object containing the info for Toto.
-        long newRowId = db.insert(PetEntry.TABLE_NAME, null, values);
+        // Insert a new row for Toto in the background. The provider notifies mPetObserver once
+        // it is stored, which adds it to the list.
+        mDataSource.insert(values, null);
+    }
+
+    /**
+     * Lets the user pick a CSV or JSON file to import pets from.
+     */
+    private void pickImportFile() {
+        Intent intent = new Intent(Intent.ACTION_GET_CONTENT);
+        intent.setType("*/*");
+        intent.addCategory(Intent.CATEGORY_OPENABLE);
+        Intent chooser = Intent.createChooser(intent, getString(R.string.import_chooser_title));
+        startActivityForResult(chooser, REQUEST_IMPORT_PETS);
+    }
+
+    /**
+     * Imports the pets of the given file in the background, showing the progress in the app bar.
+     */
+    private void importPets(Uri uri) {
+        final ActionBar actionBar = getSupportActionBar();
+        mDataSource.importPets(uri, new PetImporter.ProgressListener() {
+            @Override
+            public void onProgress(final int imported, final int rejected) {
+                runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        actionBar.setSubtitle(
+                                getString(R.string.import_progress, imported, rejected));
+                    }
+                });
+            }
+        }, new PetDataSource.Callback<PetImporter.Result>() {
+            @Override
+            public void onResult(PetImporter.Result result) {
+                actionBar.setSubtitle(null);
+                Toast.makeText(CatalogActivity.this, getString(R.string.import_successful,
+                        result.getImportedCount(), result.getElapsedMillis(),
+                        result.getRejectedCount()), Toast.LENGTH_LONG).show();
+            }
+
+            @Override
+            public void onError(Exception e) {
+                super.onError(e);
+                actionBar.setSubtitle(null);
+                Toast.makeText(CatalogActivity.this, R.string.import_failed,
+                        Toast.LENGTH_SHORT).show();
+            }
+        });
+    }
+
+    /**
+     * Lets the user create the file to back up the pets to. Before KitKat there is no picker for
+     * new files, so the backup goes to the external files directory of the app.
+     */
+    private void pickBackupFile() {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.KITKAT) {
+            File file = new File(getExternalFilesDir(null), getString(R.string.backup_file_name));
+            exportBackup(Uri.fromFile(file));
+            return;
+        }
+        Intent intent = new Intent(Intent.ACTION_CREATE_DOCUMENT);
+        intent.setType("application/gzip");
+        intent.addCategory(Intent.CATEGORY_OPENABLE);
+        intent.putExtra(Intent.EXTRA_TITLE, getString(R.string.backup_file_name));
+        startActivityForResult(intent, REQUEST_EXPORT_BACKUP);
+    }
+
+    /**
+     * Backs up every pet to the given file in the background.
+     */
+    private void exportBackup(Uri uri) {
+        mDataSource.exportBackup(uri, new PetDataSource.Callback<Integer>() {
+            @Override
+            public void onResult(Integer count) {
+                Toast.makeText(CatalogActivity.this,
+                        getString(R.string.export_backup_successful, count),
+                        Toast.LENGTH_SHORT).show();
+            }
+
+            @Override
+            public void onError(Exception e) {
+                super.onError(e);
+                Toast.makeText(CatalogActivity.this, R.string.export_backup_failed,
+                        Toast.LENGTH_SHORT).show();
+            }
+        });
+    }
+
+    /**
+     * Lets the user pick the backup to restore.
+     */
+    private void pickRestoreFile() {
+        Intent intent = new Intent(Intent.ACTION_GET_CONTENT);
+        intent.setType("*/*");
+        intent.addCategory(Intent.CATEGORY_OPENABLE);
+        Intent chooser = Intent.createChooser(intent, getString(R.string.restore_chooser_title));
+        startActivityForResult(chooser, REQUEST_RESTORE_BACKUP);
+    }
+
+    /**
+     * Prompt the user to confirm that they want to replace every pet with the given backup.
+     */
+    private void showRestoreConfirmationDialog(final Uri uri) {
+        AlertDialog.Builder builder = new AlertDialog.Builder(this);
+        builder.setMessage(R.string.restore_dialog_msg);
+        builder.setPositiveButton(R.string.restore, new DialogInterface.OnClickListener() {
+            public void onClick(DialogInterface dialog, int id) {
+                restoreBackup(uri);
+            }
+        });
+        builder.setNegativeButton(R.string.cancel, null);
+        builder.create().show();
+    }
+
+    /**
+     * Replaces every pet with the pets of the given backup in the background.
+     */
+    private void restoreBackup(Uri uri) {
+        mDataSource.restoreBackup(uri, new PetDataSource.Callback<Integer>() {
+            @Override
+            public void onResult(Integer count) {
+                Toast.makeText(CatalogActivity.this,
+                        getString(R.string.restore_backup_successful, count),
+                        Toast.LENGTH_SHORT).show();
+            }
+
+            @Override
+            public void onError(Exception e) {
+                super.onError(e);
+                Toast.makeText(CatalogActivity.this, R.string.restore_backup_failed,
+                        Toast.LENGTH_LONG).show();
+            }
+        });
+    }
+
+    @Override
+    protected void onActivityResult(int requestCode, int resultCode, Intent data) {
+        if (requestCode == REQUEST_IMPORT_PETS || requestCode == REQUEST_EXPORT_BACKUP
+                || requestCode == REQUEST_RESTORE_BACKUP) {
+            if (resultCode != RESULT_OK || data == null || data.getData() == null) {
+                return;
+            }
+            if (requestCode == REQUEST_IMPORT_PETS) {
+                importPets(data.getData());
+            } else if (requestCode == REQUEST_EXPORT_BACKUP) {
+                exportBackup(data.getData());
+            } else {
+                showRestoreConfirmationDialog(data.getData());
+            }
+            return;
+        }
+        super.onActivityResult(requestCode, resultCode, data);
+    }
+
+    /**
+     * Syncs the pets with the shelter registry in the background.
+     */
+    private void syncPets() {
+        mDataSource.sync(BuildConfig.SYNC_URL, new PetDataSource.Callback<PetSync.Result>() {
+            @Override
+            public void onResult(PetSync.Result result) {
+                Toast.makeText(CatalogActivity.this, getString(R.string.sync_successful,
+                        result.getPulledCount(), result.getPushedCount()),
+                        Toast.LENGTH_SHORT).show();
+            }
+
+            @Override
+            public void onError(Exception e) {
+                super.onError(e);
+                Toast.makeText(CatalogActivity.this, R.string.sync_failed,
+                        Toast.LENGTH_SHORT).show();
+            }
+        });
     }
 
     @Override
@@ -168,21 +387,171 @@ public class CatalogActivity extends AppCompatActivity {
         // Inflate the menu options from the res/menu/menu_catalog.xml file.
         // This adds menu items to the app bar.
         getMenuInflater().inflate(R.menu.menu_catalog, menu);
+
+        // Search as the user types
+        MenuItem searchItem = menu.findItem(R.id.action_search);
+        SearchView searchView = (SearchView) MenuItemCompat.getActionView(searchItem);
+        searchView.setQueryHint(getString(R.string.search_hint));
+        searchView.setOnQueryTextListener(new SearchView.OnQueryTextListener() {
+            @Override
+            public boolean onQueryTextSubmit(String query) {
+                mAdapter.setQuery(query);
+                return true;
+            }
+
+            @Override
+            public boolean onQueryTextChange(String newText) {
+                mAdapter.setQuery(newText);
+                return true;
+            }
+        });
         return true;
     }
 
+    @Override
+    public boolean onPrepareOptionsMenu(Menu menu) {
+        super.onPrepareOptionsMenu(menu);
+        // Only builds that know the URL of a registry can sync
+        menu.findItem(R.id.action_sync).setVisible(!TextUtils.isEmpty(BuildConfig.SYNC_URL));
+        // Check the current sort order and gender filter
+        switch (mSortBy) {
+            case PetQuery.SORT_BY_NAME:
+                menu.findItem(R.id.action_sort_by_name).setChecked(true);
+                break;
+            case PetQuery.SORT_BY_WEIGHT:
+                menu.findItem(R.id.action_sort_by_weight).setChecked(true);
+                break;
+            default:
+                menu.findItem(R.id.action_sort_by_id).setChecked(true);
+                break;
+        }
+        switch (mGender) {
+            case PetEntry.GENDER_MALE:
+                menu.findItem(R.id.action_filter_gender_male).setChecked(true);
+                break;
+            case PetEntry.GENDER_FEMALE:
+                menu.findItem(R.id.action_filter_gender_female).setChecked(true);
+                break;
+            case PetEntry.GENDER_UNKNOWN:
+                menu.findItem(R.id.action_filter_gender_unknown).setChecked(true);
+                break;
+            default:
+                menu.findItem(R.id.action_filter_gender_any).setChecked(true);
+                break;
+        }
+        return true;
+    }
+
+    /**
+     * Returns the query for the current sort order and gender filter.
+     */
+    private PetQuery buildPetQuery() {
+        return new PetQuery.Builder()
+                .setSortOrder(mSortBy, false)
+                .setGender(mGender)
+                .build();
+    }
+
+    /**
+     * Shows the pets in the given order, with the given gender, or of every gender if it is -1.
+     */
+    private void showPets(int sortBy, int gender) {
+        mSortBy = sortBy;
+        mGender = gender;
+        mAdapter.setPetQuery(buildPetQuery());
+        invalidateOptionsMenu();
+    }
+
+    /**
+     * Moves every pet to the trash, and offers to bring them back for a few seconds before they
+     * are deleted for good.
+     */
+    private void deleteAllPets() {
+        mDataSource.trashAllPets(new PetDataSource.Callback<PetTrash.Batch>() {
+            @Override
+            public void onResult(final PetTrash.Batch batch) {
+                if (batch.count == 0 || isFinishing()) {
+                    return;
+                }
+                Snackbar.make(findViewById(R.id.list),
+                        getString(R.string.delete_all_successful, batch.count),
+                        Snackbar.LENGTH_LONG)
+                        .setAction(R.string.action_undo, new View.OnClickListener() {
+                            @Override
+                            public void onClick(View view) {
+                                mDataSource.restorePets(batch, null);
+                            }
+                        })
+                        .setCallback(new Snackbar.Callback() {
+                            @Override
+                            public void onDismissed(Snackbar snackbar, int event) {
+                                if (event != DISMISS_EVENT_ACTION) {
+                                    mDataSource.purgeTrash(batch, null);
+                                }
+                            }
+                        })
+                        .show();
+            }
+
+            @Override
+            public void onError(Exception e) {
+                super.onError(e);
+                Toast.makeText(CatalogActivity.this, R.string.delete_all_failed,
+                        Toast.LENGTH_SHORT).show();
+            }
+        });
+    }
+
     @Override
     public boolean onOptionsItemSelected(MenuItem item) {
         // User clicked on a menu option in the app bar overflow menu
         switch (item.getItemId()) {
+            // Respond to a click on one of the "Sort by" options
+            case R.id.action_sort_by_id:
+                showPets(PetQuery.SORT_BY_ID, mGender);
+                return true;
+            case R.id.action_sort_by_name:
+                showPets(PetQuery.SORT_BY_NAME, mGender);
+                return true;
+            case R.id.action_sort_by_weight:
+                showPets(PetQuery.SORT_BY_WEIGHT, mGender);
+                return true;
+            // Respond to a click on one of the "Show gender" options
+            case R.id.action_filter_gender_any:
+                showPets(mSortBy, -1);
+                return true;
+            case R.id.action_filter_gender_male:
+                showPets(mSortBy, PetEntry.GENDER_MALE);
+                return true;
+            case R.id.action_filter_gender_female:
+                showPets(mSortBy, PetEntry.GENDER_FEMALE);
+                return true;
+            case R.id.action_filter_gender_unknown:
+                showPets(mSortBy, PetEntry.GENDER_UNKNOWN);
+                return true;
+            // Respond to a click on the "Sync Pets" menu option
+            case R.id.action_sync:
+                syncPets();
+                return true;
             // Respond to a click on the "Insert dummy data" menu option
             case R.id.action_insert_dummy_data:
                 insertPet();
-                displayDatabaseInfo();
+                return true;
+            // Respond to a click on the "Import Pets" menu option
+            case R.id.action_import_pets:
+                pickImportFile();
+                return true;
+            // Respond to a click on the "Back up pets" menu option
+            case R.id.action_export_backup:
+                pickBackupFile();
+                return true;
+            // Respond to a click on the "Restore pets" menu option
+            case R.id.action_restore_backup:
+                pickRestoreFile();
                 return true;
             // Respond to a click on the "Delete all entries" menu option
             case R.id.action_delete_all_entries:
-                // Do nothing for now
+                deleteAllPets();
                 return true;
         }
         return super.onOptionsItemSelected(item);
@@ -15,10 +15,15 @@
  */
 package com.example.android.pets;
 
+import android.content.ContentUris;
 import android.content.ContentValues;
-import android.database.sqlite.SQLiteDatabase;
+import android.content.Context;
+import android.content.DialogInterface;
+import android.content.Intent;
+import android.net.Uri;
 import android.os.Bundle;
 import android.support.v4.app.NavUtils;
+import android.support.v7.app.AlertDialog;
 import android.support.v7.app.AppCompatActivity;
 import android.text.TextUtils;
 import android.view.Menu;
@@ -27,17 +32,32 @@ import android.view.View;
 import android.widget.AdapterView;
 import android.widget.ArrayAdapter;
 import android.widget.EditText;
+import android.widget.ImageView;
 import android.widget.Spinner;
 import android.widget.Toast;
 
+import com.example.android.pets.data.Pet;
 import com.example.android.pets.data.PetContract.PetEntry;
-import com.example.android.pets.data.PetDbHelper;
+import com.example.android.pets.data.PetDataSource;
+import com.example.android.pets.data.PetTrash;
+import com.example.android.pets.data.PetWriteQueue;
 
 /**
  * Allows user to create a new pet or edit an existing one.
  */
 public class EditorActivity extends AppCompatActivity {
 
+    /** Request code for picking the photo of the pet */
+    private static final int REQUEST_PICK_PHOTO = 1;
+
+    /** Keys of the photo, and whether the user picked it, in the saved instance state */
+    private static final String STATE_PHOTO = "photo";
+    private static final String STATE_PHOTO_CHANGED = "photo_changed";
+    private static final String STATE_PET_LOADED = "pet_loaded";
+
+    /** ImageView showing the pet's photo, tap it to pick another one */
+    private ImageView mPhotoView;
+
     /** EditText field to enter the pet's name */
     private EditText mNameEditText;
 
@@ -57,18 +77,183 @@ public class EditorActivity extends AppCompatActivity {
      */
     private int mGender = PetEntry.GENDER_UNKNOWN;
 
+    /** File name of the pet's photo, or null if it has none */
+    private String mPhoto;
+
+    /** True once the user picked a photo, which must then be saved with the pet */
+    private boolean mPhotoChanged;
+
+    /**
+     * True once the fields were filled with the existing pet. The views keep what the user typed
+     * since then across a rotation, so the pet is not loaded over it again.
+     */
+    private boolean mPetLoaded;
+
+    /** Shows the photo of the pet */
+    private PetThumbnailLoader mThumbnailLoader;
+
+    /** Data source that runs all database work in the background */
+    private PetDataSource mDataSource;
+
+    /** Content URI for the existing pet (null if it's a new pet) */
+    private Uri mCurrentPetUri;
+
+    /** Pending load of the existing pet, or null */
+    private PetDataSource.Request mLoadRequest;
+
+    /** Pending copy of the photo picked by the user, or null */
+    private PetDataSource.Request mPhotoRequest;
+
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
+        if (BuildConfig.STRICT_DISK_ACCESS) {
+            PetDataSource.enableStrictMode();
+        }
         setContentView(R.layout.activity_editor);
 
+        mDataSource = new PetDataSource(this);
+
+        // Examine the intent that was used to launch this activity,
+        // in order to figure out if we're creating a new pet or editing an existing one.
+        mCurrentPetUri = getIntent().getData();
+
+        // If the intent DOES NOT contain a pet content URI, then we know that we are
+        // creating a new pet.
+        if (mCurrentPetUri == null) {
+            // This is a new pet, so change the app bar to say "Add a Pet"
+            setTitle(getString(R.string.editor_activity_title_new_pet));
+
+            // Invalidate the options menu, so the "Delete" menu option can be hidden.
+            // (It doesn't make sense to delete a pet that hasn't been created yet.)
+            invalidateOptionsMenu();
+        } else {
+            // Otherwise this is an existing pet, so change app bar to say "Edit Pet"
+            setTitle(getString(R.string.editor_activity_title_edit_pet));
+        }
+
         // Find all relevant views that we will need to read user input from
+        mPhotoView = (ImageView) findViewById(R.id.edit_pet_photo);
         mNameEditText = (EditText) findViewById(R.id.edit_pet_name);
         mBreedEditText = (EditText) findViewById(R.id.edit_pet_breed);
         mWeightEditText = (EditText) findViewById(R.id.edit_pet_weight);
         mGenderSpinner = (Spinner) findViewById(R.id.spinner_gender);
 
         setupSpinner();
+
+        // Tapping the photo picks another one
+        mThumbnailLoader = PetThumbnailLoader.getInstance(this);
+        if (savedInstanceState != null) {
+            mPhoto = savedInstanceState.getString(STATE_PHOTO);
+            mPhotoChanged = savedInstanceState.getBoolean(STATE_PHOTO_CHANGED);
+            mPetLoaded = savedInstanceState.getBoolean(STATE_PET_LOADED);
+        }
+        mThumbnailLoader.load(mPhoto, mPhotoView);
+        mPhotoView.setOnClickListener(new View.OnClickListener() {
+            @Override
+            public void onClick(View view) {
+                pickPhoto();
+            }
+        });
+
+        if (mCurrentPetUri != null && !mPetLoaded) {
+            loadPet();
+        }
+    }
+
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        if (mLoadRequest != null) {
+            mLoadRequest.cancel();
+        }
+        if (mPhotoRequest != null) {
+            mPhotoRequest.cancel();
+        }
+    }
+
+    @Override
+    protected void onSaveInstanceState(Bundle outState) {
+        super.onSaveInstanceState(outState);
+        outState.putString(STATE_PHOTO, mPhoto);
+        outState.putBoolean(STATE_PHOTO_CHANGED, mPhotoChanged);
+        outState.putBoolean(STATE_PET_LOADED, mPetLoaded);
+    }
+
+    /**
+     * Loads the existing pet and fills the fields with its attributes. Coming from the catalog,
+     * the pet is usually in the {@link com.example.android.pets.data.PetCache} already.
+     */
+    private void loadPet() {
+        mLoadRequest = mDataSource.loadPet(ContentUris.parseId(mCurrentPetUri),
+                new PetDataSource.Callback<Pet>() {
+                    @Override
+                    public void onResult(Pet pet) {
+                        mLoadRequest = null;
+                        if (pet == null) {
+                            // The pet was deleted in the meantime
+                            finish();
+                            return;
+                        }
+                        mPetLoaded = true;
+                        mNameEditText.setText(pet.name);
+                        mBreedEditText.setText(pet.breed);
+                        mWeightEditText.setText(Integer.toString(pet.weight));
+
+                        // The gender constants match the order of the options of the spinner:
+                        // Unknown, Male, Female
+                        mGenderSpinner.setSelection(pet.gender);
+
+                        // Keep the photo the user picked, if any, over the saved one
+                        if (!mPhotoChanged) {
+                            mPhoto = pet.photo;
+                            mThumbnailLoader.load(mPhoto, mPhotoView);
+                        }
+                    }
+                });
+    }
+
+    /**
+     * Lets the user pick a photo of the pet.
+     */
+    private void pickPhoto() {
+        Intent intent = new Intent(Intent.ACTION_GET_CONTENT);
+        intent.setType("image/*");
+        intent.addCategory(Intent.CATEGORY_OPENABLE);
+        Intent chooser = Intent.createChooser(intent, getString(R.string.editor_pick_photo));
+        startActivityForResult(chooser, REQUEST_PICK_PHOTO);
+    }
+
+    @Override
+    protected void onActivityResult(int requestCode, int resultCode, Intent data) {
+        if (requestCode != REQUEST_PICK_PHOTO) {
+            super.onActivityResult(requestCode, resultCode, data);
+            return;
+        }
+        if (resultCode != RESULT_OK || data == null || data.getData() == null) {
+            return;
+        }
+
+        // The image is copied to the storage of the app, scaled down, and its thumbnail created
+        // in the background. The copy is only kept if the pet is saved with it.
+        mPhotoRequest = mDataSource.savePhoto(data.getData(),
+                new PetDataSource.Callback<String>() {
+                    @Override
+                    public void onResult(String photo) {
+                        mPhotoRequest = null;
+                        mPhoto = photo;
+                        mPhotoChanged = true;
+                        mThumbnailLoader.load(mPhoto, mPhotoView);
+                    }
+
+                    @Override
+                    public void onError(Exception e) {
+                        super.onError(e);
+                        mPhotoRequest = null;
+                        Toast.makeText(EditorActivity.this, R.string.editor_photo_failed,
+                                Toast.LENGTH_SHORT).show();
+                    }
+                });
     }
 
     /**
@@ -90,16 +275,9 @@ public class EditorActivity extends AppCompatActivity {
         mGenderSpinner.setOnItemSelectedListener(new AdapterView.OnItemSelectedListener() {
             @Override
             public void onItemSelected(AdapterView<?> parent, View view, int position, long id) {
-                String selection = (String) parent.getItemAtPosition(position);
-                if (!TextUtils.isEmpty(selection)) {
-                    if (selection.equals(getString(R.string.gender_male))) {
-                        mGender = PetEntry.GENDER_MALE;
-                    } else if (selection.equals(getString(R.string.gender_female))) {
-                        mGender = PetEntry.GENDER_FEMALE;
-                    } else {
-                        mGender = PetEntry.GENDER_UNKNOWN;
-                    }
-                }
+                // The options of the spinner are in the order of the gender constants, so the
+                // position is the gender, without comparing the label to every string resource
+                mGender = PetEntry.isValidGender(position) ? position : PetEntry.GENDER_UNKNOWN;
             }
 
             // Because AdapterView is an abstract class, onNothingSelected must be defined
@@ -111,21 +289,18 @@ public class EditorActivity extends AppCompatActivity {
     }
 
     /**
-     * Get user input from editor and save new pet into database.
+     * Get user input from editor and save pet into database. The pet is checked right away, and
+     * saved in the background.
+     *
+     * @return true if the pet is valid and was queued to be saved, false if the user has to fix
+     *         it first
      */
-    private void insertPet() {
+    private boolean savePet() {
         // Read from input fields
         // Use trim to eliminate leading or trailing white space
         String nameString = mNameEditText.getText().toString().trim();
         String breedString = mBreedEditText.getText().toString().trim();
         String weightString = mWeightEditText.getText().toString().trim();
-        int weight = Integer.parseInt(weightString);
-
-        // Create database helper
-        PetDbHelper mDbHelper = new PetDbHelper(this);
-
-        // Gets the database in write mode
-        SQLiteDatabase db = mDbHelper.getWritableDatabase();
 
         // Create a ContentValues object where column names are the keys,
         // and pet attributes from the editor are the values.
@@ -133,19 +308,113 @@ public class EditorActivity extends AppCompatActivity {
         values.put(PetEntry.COLUMN_PET_NAME, nameString);
         values.put(PetEntry.COLUMN_PET_BREED, breedString);
         values.put(PetEntry.COLUMN_PET_GENDER, mGender);
-        values.put(PetEntry.COLUMN_PET_WEIGHT, weight);
-
-        // Insert a new row for pet in the database, returning the ID of that new row.
-        long newRowId = db.insert(PetEntry.TABLE_NAME, null, values);
-
-        // Show a toast message depending on whether or not the insertion was successful
-        if (newRowId == -1) {
-            // If the row ID is -1, then there was an error with insertion.
-            Toast.makeText(this, "Error with saving pet", Toast.LENGTH_SHORT).show();
+        if (mCurrentPetUri == null || mPhotoChanged) {
+            values.put(PetEntry.COLUMN_PET_PHOTO, mPhoto);
+        }
+        // If the weight is not provided by the user, use 0 by default. Otherwise the text is
+        // parsed along with the other checks, so a weight that is not a number is reported
+        // instead of crashing.
+        if (TextUtils.isEmpty(weightString)) {
+            values.put(PetEntry.COLUMN_PET_WEIGHT, 0);
         } else {
-            // Otherwise, the insertion was successful and we can display a toast with the row ID.
-            Toast.makeText(this, "Pet saved with row id: " + newRowId, Toast.LENGTH_SHORT).show();
+            values.put(PetEntry.COLUMN_PET_WEIGHT, weightString);
+        }
+
+        // Check the pet before closing the editor, so the user can still fix it
+        switch (PetEntry.validate(values, mCurrentPetUri == null)) {
+            case PetEntry.INVALID_NAME:
+                Toast.makeText(this, R.string.editor_invalid_name, Toast.LENGTH_SHORT).show();
+                return false;
+            case PetEntry.INVALID_WEIGHT:
+                Toast.makeText(this, R.string.editor_invalid_weight, Toast.LENGTH_SHORT).show();
+                return false;
         }
+
+        // The editor is closed right after saving, so the toasts use the application context
+        // rather than this activity.
+        final Context appContext = getApplicationContext();
+        final boolean inserting = mCurrentPetUri == null;
+        long id = inserting ? -1 : ContentUris.parseId(mCurrentPetUri);
+
+        // Saves made close together are committed in a single transaction by the write queue
+        mDataSource.save(id, values, new PetDataSource.Callback<PetWriteQueue.Result>() {
+            @Override
+            public void onResult(PetWriteQueue.Result result) {
+                // Show a toast message depending on whether or not the save was successful
+                if (inserting && result.isSaved()) {
+                    Toast.makeText(appContext, "Pet saved with row id: " + result.getId(),
+                            Toast.LENGTH_SHORT).show();
+                } else if (inserting) {
+                    Toast.makeText(appContext, "Error with saving pet", Toast.LENGTH_SHORT)
+                            .show();
+                } else {
+                    Toast.makeText(appContext, result.isSaved()
+                                    ? R.string.editor_update_pet_successful
+                                    : R.string.editor_update_pet_failed,
+                            Toast.LENGTH_SHORT).show();
+                }
+            }
+        });
+        return true;
+    }
+
+    /**
+     * Prompt the user to confirm that they want to delete this pet.
+     */
+    private void showDeleteConfirmationDialog() {
+        // Create an AlertDialog.Builder and set the message, and click listeners
+        // for the positive and negative buttons on the dialog.
+        AlertDialog.Builder builder = new AlertDialog.Builder(this);
+        builder.setMessage(R.string.delete_dialog_msg);
+        builder.setPositiveButton(R.string.delete, new DialogInterface.OnClickListener() {
+            public void onClick(DialogInterface dialog, int id) {
+                // User clicked the "Delete" button, so delete the pet.
+                deletePet();
+            }
+        });
+        builder.setNegativeButton(R.string.cancel, new DialogInterface.OnClickListener() {
+            public void onClick(DialogInterface dialog, int id) {
+                // User clicked the "Cancel" button, so dismiss the dialog
+                // and continue editing the pet.
+                if (dialog != null) {
+                    dialog.dismiss();
+                }
+            }
+        });
+
+        // Create and show the AlertDialog
+        AlertDialog alertDialog = builder.create();
+        alertDialog.show();
+    }
+
+    /**
+     * Perform the deletion of the pet in the database. The pet is moved to the trash, which is
+     * emptied the next time the app starts.
+     */
+    private void deletePet() {
+        final Context appContext = getApplicationContext();
+        mDataSource.trashPet(ContentUris.parseId(mCurrentPetUri),
+                new PetDataSource.Callback<PetTrash.Batch>() {
+                    @Override
+                    public void onResult(PetTrash.Batch batch) {
+                        // Show a toast message depending on whether or not the delete was
+                        // successful.
+                        Toast.makeText(appContext, batch.count == 0
+                                        ? R.string.editor_delete_pet_failed
+                                        : R.string.editor_delete_pet_successful,
+                                Toast.LENGTH_SHORT).show();
+                    }
+
+                    @Override
+                    public void onError(Exception e) {
+                        super.onError(e);
+                        Toast.makeText(appContext, R.string.editor_delete_pet_failed,
+                                Toast.LENGTH_SHORT).show();
+                    }
+                });
+
+        // Close the activity
+        finish();
     }
 
     @Override
@@ -156,20 +425,36 @@ public class EditorActivity extends AppCompatActivity {
         return true;
     }
 
+    /**
+     * This method is called after invalidateOptionsMenu(), so that the
+     * menu can be updated (some menu items can be hidden or made visible).
+     */
+    @Override
+    public boolean onPrepareOptionsMenu(Menu menu) {
+        super.onPrepareOptionsMenu(menu);
+        // If this is a new pet, hide the "Delete" menu item.
+        if (mCurrentPetUri == null) {
+            MenuItem menuItem = menu.findItem(R.id.action_delete);
+            menuItem.setVisible(false);
+        }
+        return true;
+    }
+
     @Override
     public boolean onOptionsItemSelected(MenuItem item) {
         // User clicked on a menu option in the app bar overflow menu
         switch (item.getItemId()) {
             // Respond to a click on the "Save" menu option
             case R.id.action_save:
-                // Save pet to database
-                insertPet();
-                // Exit activity
-                finish();
+                // Save pet to database, and exit activity unless the pet has to be fixed
+                if (savePet()) {
+                    finish();
+                }
                 return true;
             // Respond to a click on the "Delete" menu option
             case R.id.action_delete:
-                // Do nothing for now
+                // Pop up confirmation dialog for deletion
+                showDeleteConfirmationDialog();
                 return true;
             // Respond to a click on the "Up" arrow button in the app bar
             case android.R.id.home:
@@ -0,0 +1,504 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.pets;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.os.Handler;
+import android.text.TextUtils;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.AbsListView;
+import android.widget.BaseAdapter;
+import android.widget.ImageView;
+import android.widget.TextView;
+
+import com.example.android.pets.data.Pet;
+import com.example.android.pets.data.PetChanges;
+import com.example.android.pets.data.PetDataSource;
+import com.example.android.pets.data.PetDbHelper;
+import com.example.android.pets.data.PetQuery;
+import com.example.android.pets.data.PetSearch;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * {@link PetAdapter} is an adapter for a list that shows the pets stored in the database.
+ * Pets are loaded one page at a time with a {@link PetQuery}, and the next page is only
+ * loaded, in the background, when the user scrolls close to the end of what has already been
+ * loaded. The list view recycles the row views, so only the rows that are visible on screen are
+ * bound. While the user searches, the list shows the best matches of the search instead.
+ *
+ * The adapter remembers the version of {@link PetChanges} the loaded pets are up to date with.
+ * When pets change, only those are read again and patched into the list, so coming back to the
+ * list costs the same whatever the number of pets.
+ */
+public class PetAdapter extends BaseAdapter implements AbsListView.OnScrollListener {
+
+    /** Number of pets to load with each page */
+    private static final int PAGE_SIZE = 50;
+
+    /** Start loading the next page when the user is this many rows away from the end */
+    private static final int PREFETCH_DISTANCE = 15;
+
+    /** Maximum number of pets shown for a search */
+    private static final int SEARCH_LIMIT = 100;
+
+    /**
+     * Maximum number of changes patched into the list. When more pets changed, loading the first
+     * page again is cheaper.
+     */
+    private static final int CHANGES_LIMIT = 200;
+
+    /** Value of {@link #mVersion} until the first page is loaded */
+    private static final long NO_VERSION = -1;
+
+    /** How long the user must stop typing before the search runs */
+    private static final long SEARCH_DELAY_MS = 250;
+
+    /** Data source used to load the pages in the background */
+    private final PetDataSource mDataSource;
+
+    /** Inflater for the list item layout */
+    private final LayoutInflater mInflater;
+
+    /** Fallback summary for pets without a breed */
+    private final String mUnknownBreed;
+
+    /** Shows the photos of the pets, decoded in the background */
+    private final PetThumbnailLoader mThumbnailLoader;
+
+    /** Filters and sort order of the pets shown while the user is not searching */
+    private PetQuery mPetQuery = PetQuery.ALL;
+
+    /** Pets loaded so far, in the order of {@link #mPetQuery}, or in search rank order */
+    private final List<Pet> mPets = new ArrayList<>();
+
+    /** Version of {@link PetChanges} that the loaded pets are up to date with */
+    private long mVersion = NO_VERSION;
+
+    /**
+     * Query that the loaded pets were read with, or null if they are search results. Changes
+     * can only be patched into the list while it is {@link #mPetQuery}.
+     */
+    private PetQuery mLoadedQuery;
+
+    /** True while the pending request loads the first page again, to replace the loaded pets */
+    private boolean mReplacing;
+
+    /** True if pets changed while the first page was loading, so it is refreshed once loaded */
+    private boolean mRefreshAfterLoad;
+
+    /** True once a page came back shorter than {@link #PAGE_SIZE} */
+    private boolean mReachedEnd;
+
+    /** The page or search that is being loaded, or null if none is */
+    private PetDataSource.Request mPendingRequest;
+
+    /** What the user searches for, or null to show every pet */
+    private String mQuery;
+
+    /** Delays the search until the user stops typing */
+    private final Handler mSearchHandler = new Handler();
+
+    private final Runnable mSearchRunnable = new Runnable() {
+        @Override
+        public void run() {
+            search();
+        }
+    };
+
+    /**
+     * Constructs a new {@link PetAdapter}.
+     *
+     * @param context of the app
+     * @param dataSource the data source used to load the pets
+     */
+    public PetAdapter(Context context, PetDataSource dataSource) {
+        mDataSource = dataSource;
+        mInflater = LayoutInflater.from(context);
+        mUnknownBreed = context.getString(R.string.unknown_breed);
+        mThumbnailLoader = PetThumbnailLoader.getInstance(context);
+    }
+
+    /**
+     * Loads the first page again. The rows that are already shown stay on screen until the new
+     * page arrives, so the list does not flash empty.
+     */
+    public void reload() {
+        cancel();
+        if (mQuery != null) {
+            search();
+            return;
+        }
+        mReachedEnd = false;
+        loadPage(null, true);
+    }
+
+    /**
+     * Filters and sorts the pets with the given query, and loads the list again.
+     */
+    public void setPetQuery(PetQuery petQuery) {
+        mPetQuery = petQuery;
+        if (mQuery == null) {
+            reload();
+        }
+    }
+
+    /**
+     * Shows the pets that match the query instead of every pet, or every pet again if the query
+     * is empty. Meant to be called on every keystroke: the search only runs once the user stops
+     * typing for {@link #SEARCH_DELAY_MS}, and a search that is still running when the query
+     * changes is cancelled.
+     */
+    public void setQuery(String query) {
+        String trimmed = query == null ? "" : query.trim();
+        if (trimmed.isEmpty()) {
+            if (mQuery != null) {
+                mQuery = null;
+                reload();
+            }
+            return;
+        }
+        if (trimmed.equals(mQuery)) {
+            return;
+        }
+
+        cancel();
+        mQuery = trimmed;
+        mSearchHandler.postDelayed(mSearchRunnable, SEARCH_DELAY_MS);
+    }
+
+    private void search() {
+        final String query = mQuery;
+        mPendingRequest = mDataSource.execute(new PetDataSource.Operation<List<Pet>>() {
+            @Override
+            public List<Pet> run(PetDbHelper dbHelper) {
+                List<Pet> results = new ArrayList<>();
+                Cursor cursor = new PetSearch(dbHelper).search(query, SEARCH_LIMIT);
+                if (cursor == null) {
+                    return results;
+                }
+                try {
+                    while (cursor.moveToNext()) {
+                        results.add(Pet.fromCursor(cursor));
+                    }
+                } finally {
+                    cursor.close();
+                }
+                dbHelper.getCache().putAll(results);
+                return results;
+            }
+        }, new PetDataSource.Callback<List<Pet>>() {
+            @Override
+            public void onResult(List<Pet> results) {
+                mPendingRequest = null;
+                mPets.clear();
+                mPets.addAll(results);
+                mLoadedQuery = null;
+                // Search results are not paged
+                mReachedEnd = true;
+                notifyDataSetChanged();
+            }
+
+            @Override
+            public void onError(Exception e) {
+                super.onError(e);
+                mPendingRequest = null;
+            }
+        });
+    }
+
+    /**
+     * Loads the page of pets that follows the last loaded pet, if there is one and no other page
+     * is being loaded already.
+     */
+    public void loadNextPage() {
+        if (mReachedEnd || mPendingRequest != null || mQuery != null) {
+            return;
+        }
+        if (mLoadedQuery != mPetQuery) {
+            // The loaded pets are sorted or filtered differently, the list starts over
+            reload();
+            return;
+        }
+        loadPage(mPets.isEmpty() ? null : mPets.get(mPets.size() - 1), false);
+    }
+
+    /**
+     * Cancels the page or search that is being loaded, if any. Called when the list goes off
+     * screen.
+     */
+    public void cancel() {
+        mSearchHandler.removeCallbacks(mSearchRunnable);
+        if (mPendingRequest != null) {
+            mPendingRequest.cancel();
+            mPendingRequest = null;
+        }
+        mReplacing = false;
+        mRefreshAfterLoad = false;
+    }
+
+    /**
+     * Reads the pets that changed since the list was last brought up to date and patches them
+     * into the list: each is updated if it is shown, added if it falls within the loaded pages,
+     * and removed if it no longer exists. The whole list is only loaded again if nothing was
+     * loaded yet, if the loaded pets were read with another query, or if too many pets changed.
+     */
+    public void refresh() {
+        if (mQuery != null) {
+            // Search results are ranked, not sorted by ID, so run the search again
+            reload();
+            return;
+        }
+        if (mReplacing) {
+            // The first page is on its way, possibly for a new sort order or filters. Patching
+            // the changes into the pets it replaces would mix both orders, so they are read once
+            // it arrives.
+            mRefreshAfterLoad = true;
+            return;
+        }
+        if (mVersion == NO_VERSION || mLoadedQuery != mPetQuery) {
+            reload();
+            return;
+        }
+        // A page that is still loading may hold older rows than the changes, it is loaded again
+        // when the user scrolls
+        cancel();
+        final long version = mVersion;
+        mPendingRequest = mDataSource.execute(new PetDataSource.Operation<PetChanges.Delta>() {
+            @Override
+            public PetChanges.Delta run(PetDbHelper dbHelper) {
+                return new PetChanges(dbHelper).since(version, CHANGES_LIMIT);
+            }
+        }, new PetDataSource.Callback<PetChanges.Delta>() {
+            @Override
+            public void onResult(PetChanges.Delta delta) {
+                mPendingRequest = null;
+                if (delta == null) {
+                    reload();
+                    return;
+                }
+                mVersion = delta.version;
+                boolean changed = false;
+                for (long id : delta.removedIds) {
+                    changed |= applyPet(id, null);
+                }
+                for (Pet pet : delta.changedPets) {
+                    changed |= applyPet(pet.id, pet);
+                }
+                if (changed) {
+                    notifyDataSetChanged();
+                }
+            }
+
+            @Override
+            public void onError(Exception e) {
+                super.onError(e);
+                mPendingRequest = null;
+            }
+        });
+    }
+
+    /**
+     * Patches a single pet into the loaded rows, or removes it if {@code pet} is null. A pet that
+     * changed moves to its new place in the sort order, or leaves the list if it no longer
+     * matches the filters.
+     *
+     * @return true if the loaded rows changed
+     */
+    private boolean applyPet(long id, Pet pet) {
+        // The sort key of the pet may have changed, so it can only be found by its ID
+        int index = indexOf(id);
+        if (index >= 0) {
+            mPets.remove(index);
+        }
+        if (pet == null || !mPetQuery.matches(pet)) {
+            return index >= 0;
+        }
+
+        // Past the last loaded page, the pet will be picked up when that page is loaded
+        int insertionPoint = Collections.binarySearch(mPets, pet, mPetQuery);
+        insertionPoint = insertionPoint < 0 ? -(insertionPoint + 1) : insertionPoint;
+        if (insertionPoint == mPets.size() && !mReachedEnd) {
+            return index >= 0;
+        }
+        mPets.add(insertionPoint, pet);
+        return true;
+    }
+
+    /**
+     * Returns the index of the pet with the given ID in the loaded rows, or -1 if it is not
+     * loaded.
+     */
+    private int indexOf(long id) {
+        for (int i = 0; i < mPets.size(); i++) {
+            if (mPets.get(i).id == id) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private void loadPage(final Pet after, final boolean replace) {
+        final PetQuery petQuery = mPetQuery;
+        mReplacing = replace;
+        mPendingRequest = mDataSource.execute(new PetDataSource.Operation<Page>() {
+            @Override
+            public Page run(PetDbHelper dbHelper) {
+                // Read the version before the pets, so that a change made in between is not
+                // missed by the next refresh()
+                long version = replace ? new PetChanges(dbHelper).getVersion() : NO_VERSION;
+                return new Page(version, readPage(dbHelper, petQuery, after));
+            }
+        }, new PetDataSource.Callback<Page>() {
+            @Override
+            public void onResult(Page result) {
+                mPendingRequest = null;
+                mReplacing = false;
+                List<Pet> page = result.pets;
+                if (replace) {
+                    mPets.clear();
+                    mVersion = result.version;
+                    mLoadedQuery = petQuery;
+                }
+                // Skip pets that a refresh() already added while this page was loading
+                Pet last = mPets.isEmpty() ? null : mPets.get(mPets.size() - 1);
+                for (Pet pet : page) {
+                    if (last == null || petQuery.compare(pet, last) > 0) {
+                        mPets.add(pet);
+                    }
+                }
+                mReachedEnd = page.size() < PAGE_SIZE;
+                notifyDataSetChanged();
+                if (mRefreshAfterLoad) {
+                    mRefreshAfterLoad = false;
+                    refresh();
+                }
+            }
+
+            @Override
+            public void onError(Exception e) {
+                super.onError(e);
+                mPendingRequest = null;
+                mReplacing = false;
+                mRefreshAfterLoad = false;
+            }
+        });
+    }
+
+    /**
+     * Reads the page of pets that follows {@code after} in the given query. Runs on a background
+     * thread.
+     */
+    private static List<Pet> readPage(PetDbHelper dbHelper, PetQuery petQuery, Pet after) {
+        List<Pet> page = new ArrayList<>(PAGE_SIZE);
+        Cursor cursor = petQuery.queryPage(dbHelper, after, PAGE_SIZE);
+        try {
+            while (cursor.moveToNext()) {
+                page.add(Pet.fromCursor(cursor));
+            }
+        } finally {
+            cursor.close();
+        }
+        // Opening one of these pets in the editor won't have to read it again
+        dbHelper.getCache().putAll(page);
+        return page;
+    }
+
+    @Override
+    public int getCount() {
+        return mPets.size();
+    }
+
+    @Override
+    public Object getItem(int position) {
+        return mPets.get(position);
+    }
+
+    @Override
+    public long getItemId(int position) {
+        return mPets.get(position).id;
+    }
+
+    @Override
+    public boolean hasStableIds() {
+        return true;
+    }
+
+    @Override
+    public View getView(int position, View convertView, ViewGroup parent) {
+        // Reuse the recycled view if there is one, otherwise inflate a new list item
+        ViewHolder holder;
+        if (convertView == null) {
+            convertView = mInflater.inflate(R.layout.list_item, parent, false);
+            holder = new ViewHolder(convertView);
+            convertView.setTag(holder);
+        } else {
+            holder = (ViewHolder) convertView.getTag();
+        }
+
+        Pet pet = mPets.get(position);
+        holder.nameTextView.setText(pet.name);
+        holder.summaryTextView.setText(TextUtils.isEmpty(pet.breed) ? mUnknownBreed : pet.breed);
+        mThumbnailLoader.load(pet.photo, holder.thumbnailView);
+        return convertView;
+    }
+
+    @Override
+    public void onScrollStateChanged(AbsListView view, int scrollState) {
+    }
+
+    @Override
+    public void onScroll(AbsListView view, int firstVisibleItem, int visibleItemCount,
+            int totalItemCount) {
+        if (totalItemCount > 0
+                && firstVisibleItem + visibleItemCount >= totalItemCount - PREFETCH_DISTANCE) {
+            loadNextPage();
+        }
+    }
+
+    /**
+     * A page of pets, with the version of {@link PetChanges} read before them.
+     */
+    private static final class Page {
+        final long version;
+        final List<Pet> pets;
+
+        Page(long version, List<Pet> pets) {
+            this.version = version;
+            this.pets = pets;
+        }
+    }
+
+    /**
+     * Caches the child views of a list item so they are not looked up again on every bind.
+     */
+    private static final class ViewHolder {
+        final ImageView thumbnailView;
+        final TextView nameTextView;
+        final TextView summaryTextView;
+
+        ViewHolder(View view) {
+            thumbnailView = (ImageView) view.findViewById(R.id.thumbnail);
+            nameTextView = (TextView) view.findViewById(R.id.name);
+            summaryTextView = (TextView) view.findViewById(R.id.summary);
+        }
+    }
+}
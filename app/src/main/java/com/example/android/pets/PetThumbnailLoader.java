@@ -0,0 +1,276 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.pets;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.util.Log;
+import android.util.LruCache;
+import android.widget.ImageView;
+
+import com.example.android.pets.data.PetPhotos;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Shows the thumbnails of the pet photos in image views, decoding them in the background.
+ *
+ * Decoded thumbnails are kept in an LRU cache bounded by the number of bytes of their pixels,
+ * rather than by their number, so the memory it takes is known whatever the photos. A thumbnail
+ * that several views ask for while it is being decoded is only decoded once, and a decode that
+ * no view waits for anymore, because its row was scrolled away, is dropped before it starts.
+ *
+ * Every thumbnail has the same size, see {@link PetPhotos#THUMBNAIL_SIZE}, so the bitmaps evicted
+ * from the cache are decoded into again instead of allocating new ones. Scrolling through a long
+ * list then reuses a small set of bitmaps instead of churning through garbage.
+ *
+ * Must only be used from the main thread.
+ */
+public final class PetThumbnailLoader {
+
+    public static final String LOG_TAG = PetThumbnailLoader.class.getSimpleName();
+
+    /** Fraction of the memory of the app that the cache may take */
+    private static final int CACHE_FRACTION = 8;
+
+    /** Maximum number of evicted bitmaps kept to be decoded into again */
+    private static final int MAX_REUSABLE_BITMAPS = 8;
+
+    /** Number of threads that decode thumbnails */
+    private static final int THREAD_COUNT = 2;
+
+    /** The one instance shared by the whole process */
+    private static PetThumbnailLoader sInstance;
+
+    private final PetPhotos mPhotos;
+
+    private final LruCache<String, Bitmap> mCache;
+
+    /** Evicted bitmaps that no view shows, guarded by itself as decoders take from it */
+    private final List<Bitmap> mReusableBitmaps = new ArrayList<>(MAX_REUSABLE_BITMAPS);
+
+    /** The photo each view waits for or shows. Views that are gone are dropped by themselves. */
+    private final Map<ImageView, String> mTargets = new WeakHashMap<>();
+
+    /** Decodes that are queued or running, by photo */
+    private final Map<String, Future<?>> mDecodes = new HashMap<>();
+
+    private final ExecutorService mExecutor = Executors.newFixedThreadPool(THREAD_COUNT,
+            new ThreadFactory() {
+                @Override
+                public Thread newThread(final Runnable runnable) {
+                    return new Thread(new Runnable() {
+                        @Override
+                        public void run() {
+                            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                            runnable.run();
+                        }
+                    }, "PetThumbnails");
+                }
+            });
+
+    /** Scratch buffer of each decoding thread, so that decodes don't allocate their own */
+    private final ThreadLocal<byte[]> mTempStorage = new ThreadLocal<byte[]>() {
+        @Override
+        protected byte[] initialValue() {
+            return new byte[16 * 1024];
+        }
+    };
+
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+    /**
+     * Returns the {@link PetThumbnailLoader} of the process.
+     *
+     * @param context of the app
+     */
+    public static PetThumbnailLoader getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new PetThumbnailLoader(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private PetThumbnailLoader(Context context) {
+        mPhotos = new PetPhotos(context);
+        int maxKiB = (int) (Runtime.getRuntime().maxMemory() / 1024 / CACHE_FRACTION);
+        mCache = new LruCache<String, Bitmap>(maxKiB) {
+            @Override
+            protected int sizeOf(String photo, Bitmap bitmap) {
+                return bitmap.getRowBytes() * bitmap.getHeight() / 1024;
+            }
+
+            @Override
+            protected void entryRemoved(boolean evicted, String photo, Bitmap oldBitmap,
+                    Bitmap newBitmap) {
+                if (evicted && !mTargets.containsValue(photo)) {
+                    recycleBitmap(oldBitmap);
+                }
+            }
+        };
+    }
+
+    /**
+     * Shows the thumbnail of the given photo in the view, right away if it is cached, otherwise
+     * once it is decoded. The view shows the placeholder until then, or for good if the pet has
+     * no photo. A view reused for another pet before the decode ends does not get the thumbnail
+     * of the previous one.
+     *
+     * @param photo the file name of the photo, or null if the pet has none
+     * @param view the view to show the thumbnail in
+     */
+    public void load(String photo, ImageView view) {
+        String previous = mTargets.remove(view);
+        if (previous != null && !previous.equals(photo)) {
+            cancelIfUnwanted(previous);
+        }
+        if (photo == null) {
+            view.setImageResource(R.drawable.thumbnail_placeholder);
+            return;
+        }
+
+        mTargets.put(view, photo);
+        Bitmap bitmap = mCache.get(photo);
+        if (bitmap != null) {
+            view.setImageBitmap(bitmap);
+            return;
+        }
+        view.setImageResource(R.drawable.thumbnail_placeholder);
+        if (!mDecodes.containsKey(photo)) {
+            Decode decode = new Decode(photo);
+            decode.mFuture = mExecutor.submit(decode);
+            mDecodes.put(photo, decode.mFuture);
+        }
+    }
+
+    /**
+     * Drops the queued decode of the given photo if no view waits for it anymore.
+     */
+    private void cancelIfUnwanted(String photo) {
+        if (!mTargets.containsValue(photo)) {
+            Future<?> decode = mDecodes.remove(photo);
+            if (decode != null) {
+                decode.cancel(false);
+            }
+        }
+    }
+
+    /**
+     * Shows a decoded thumbnail in every view that waits for it, and caches it. The decode is
+     * only forgotten if it is still the one of the photo: it may have been cancelled and a new
+     * one queued since it ended.
+     *
+     * @param bitmap the thumbnail, or null if it could not be decoded
+     */
+    private void deliver(Decode decode, Bitmap bitmap) {
+        String photo = decode.mPhoto;
+        if (mDecodes.get(photo) == decode.mFuture) {
+            mDecodes.remove(photo);
+        }
+        if (bitmap == null) {
+            return;
+        }
+        mCache.put(photo, bitmap);
+        for (Map.Entry<ImageView, String> target : mTargets.entrySet()) {
+            if (photo.equals(target.getValue())) {
+                target.getKey().setImageBitmap(bitmap);
+            }
+        }
+    }
+
+    private void recycleBitmap(Bitmap bitmap) {
+        synchronized (mReusableBitmaps) {
+            if (mReusableBitmaps.size() < MAX_REUSABLE_BITMAPS && bitmap.isMutable()) {
+                mReusableBitmaps.add(bitmap);
+            }
+        }
+    }
+
+    private Bitmap takeReusableBitmap() {
+        synchronized (mReusableBitmaps) {
+            return mReusableBitmaps.isEmpty()
+                    ? null : mReusableBitmaps.remove(mReusableBitmaps.size() - 1);
+        }
+    }
+
+    /**
+     * Decodes a thumbnail on a background thread, creating it first if it is missing, for
+     * example for a photo restored from a backup.
+     */
+    private final class Decode implements Runnable {
+
+        private final String mPhoto;
+
+        /** The future of this decode, only used on the main thread */
+        Future<?> mFuture;
+
+        Decode(String photo) {
+            mPhoto = photo;
+        }
+
+        @Override
+        public void run() {
+            Bitmap bitmap = null;
+            try {
+                File file = mPhotos.getThumbnailFile(mPhoto);
+                if (!file.exists()) {
+                    file = mPhotos.createThumbnail(mPhoto);
+                }
+                bitmap = decode(file);
+            } catch (IOException e) {
+                Log.w(LOG_TAG, "Could not load the thumbnail of " + mPhoto, e);
+            } finally {
+                // Delivered whatever happened, or the photo would never be decoded again
+                final Bitmap result = bitmap;
+                mMainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        deliver(Decode.this, result);
+                    }
+                });
+            }
+        }
+
+        private Bitmap decode(File file) {
+            BitmapFactory.Options options = new BitmapFactory.Options();
+            options.inPreferredConfig = Bitmap.Config.RGB_565;
+            options.inMutable = true;
+            options.inTempStorage = mTempStorage.get();
+            options.inBitmap = takeReusableBitmap();
+            try {
+                return BitmapFactory.decodeFile(file.getPath(), options);
+            } catch (IllegalArgumentException e) {
+                // The reused bitmap does not fit this image, decode it into a new one
+                options.inBitmap = null;
+                return BitmapFactory.decodeFile(file.getPath(), options);
+            }
+        }
+    }
+}
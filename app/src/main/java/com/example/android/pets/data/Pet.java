@@ -0,0 +1,150 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.pets.data;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+
+import com.example.android.pets.data.PetContract.PetEntry;
+
+/**
+ * A pet stored in the database. Instances are immutable, so they can be shared between threads
+ * and kept in the {@link PetCache}.
+ */
+public final class Pet {
+
+    /**
+     * Columns to query to build a {@link Pet} with {@link #fromCursor}. The columns are read by
+     * position, so a query must return them in this order.
+     */
+    public static final String[] PROJECTION = {
+            PetEntry._ID,
+            PetEntry.COLUMN_PET_NAME,
+            PetEntry.COLUMN_PET_BREED,
+            PetEntry.COLUMN_PET_GENDER,
+            PetEntry.COLUMN_PET_WEIGHT,
+            PetEntry.COLUMN_PET_PHOTO };
+
+    private static final int INDEX_ID = 0;
+    private static final int INDEX_NAME = 1;
+    private static final int INDEX_BREED = 2;
+    private static final int INDEX_GENDER = 3;
+    private static final int INDEX_WEIGHT = 4;
+    private static final int INDEX_PHOTO = 5;
+
+    /** Unique ID of the pet, see {@link PetEntry#_ID} */
+    public final long id;
+
+    /** Name of the pet, never empty */
+    public final String name;
+
+    /** Breed of the pet, or null if it is unknown */
+    public final String breed;
+
+    /** One of the {@code GENDER_*} constants of {@link PetEntry} */
+    public final int gender;
+
+    /** Weight of the pet, in kg */
+    public final int weight;
+
+    /** File name of the photo of the pet, see {@link PetPhotos}, or null if it has none */
+    public final String photo;
+
+    public Pet(long id, String name, String breed, int gender, int weight, String photo) {
+        this.id = id;
+        this.name = name;
+        this.breed = breed;
+        this.gender = gender;
+        this.weight = weight;
+        this.photo = photo;
+    }
+
+    /**
+     * Reads the pet at the current position of a cursor that was queried with
+     * {@link #PROJECTION}.
+     */
+    public static Pet fromCursor(Cursor cursor) {
+        return new Pet(
+                cursor.getLong(INDEX_ID),
+                cursor.getString(INDEX_NAME),
+                cursor.getString(INDEX_BREED),
+                cursor.getInt(INDEX_GENDER),
+                cursor.getInt(INDEX_WEIGHT),
+                cursor.getString(INDEX_PHOTO));
+    }
+
+    /**
+     * Builds the pet that an insert of the given values created. Missing attributes take the
+     * default values of the pets table.
+     */
+    static Pet fromInsertedValues(long id, ContentValues values) {
+        Integer gender = values.getAsInteger(PetEntry.COLUMN_PET_GENDER);
+        Integer weight = values.getAsInteger(PetEntry.COLUMN_PET_WEIGHT);
+        return new Pet(
+                id,
+                values.getAsString(PetEntry.COLUMN_PET_NAME),
+                values.getAsString(PetEntry.COLUMN_PET_BREED),
+                gender == null ? PetEntry.GENDER_UNKNOWN : gender,
+                weight == null ? 0 : weight,
+                values.getAsString(PetEntry.COLUMN_PET_PHOTO));
+    }
+
+    /**
+     * Returns the attributes of the pet, without its ID, ready to be inserted or updated.
+     */
+    public ContentValues toContentValues() {
+        ContentValues values = new ContentValues();
+        values.put(PetEntry.COLUMN_PET_NAME, name);
+        values.put(PetEntry.COLUMN_PET_BREED, breed);
+        values.put(PetEntry.COLUMN_PET_GENDER, gender);
+        values.put(PetEntry.COLUMN_PET_WEIGHT, weight);
+        values.put(PetEntry.COLUMN_PET_PHOTO, photo);
+        return values;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof Pet)) {
+            return false;
+        }
+        Pet other = (Pet) o;
+        return id == other.id
+                && gender == other.gender
+                && weight == other.weight
+                && name.equals(other.name)
+                && (breed == null ? other.breed == null : breed.equals(other.breed))
+                && (photo == null ? other.photo == null : photo.equals(other.photo));
+    }
+
+    @Override
+    public int hashCode() {
+        int result = (int) (id ^ (id >>> 32));
+        result = 31 * result + name.hashCode();
+        result = 31 * result + (breed != null ? breed.hashCode() : 0);
+        result = 31 * result + gender;
+        result = 31 * result + weight;
+        result = 31 * result + (photo != null ? photo.hashCode() : 0);
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        return id + " - " + name + " - " + breed + " - " + gender + " - " + weight;
+    }
+}
@@ -0,0 +1,502 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.pets.data;
+
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteConstraintException;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.os.SystemClock;
+import android.text.TextUtils;
+import android.util.JsonReader;
+import android.util.JsonWriter;
+import android.util.Log;
+
+import com.example.android.pets.data.PetContract.PetEntry;
+import com.example.android.pets.data.PetContract.PetSyncEntry;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.nio.charset.Charset;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Backs up every pet to a gzipped file, and restores a backup in place of the pets of the
+ * database.
+ *
+ * A backup is newline-delimited JSON: a header line, one line per pet, and a trailer line with
+ * the number of pets and the CRC-32 of their lines. For example, with the pet line wrapped:
+ *
+ *   {"format":"pets","version":2}
+ *   {"id":1,"name":"Toto","breed":"Terrier","gender":1,"weight":7,
+ *    "remote_id":"0b6f2c1e5d1a4c8e9f2a3e7d4b6a9c10","remote_version":3,
+ *    "modified":1476700800000,"dirty":false}
+ *   {"count":1,"crc32":2147483648}
+ *
+ * Both directions stream one pet at a time, so they use the same memory whatever the size of the
+ * shelter. The export reads the pets a page at a time, by ID. The restore checks
+ * every pet against the trailer before anything is committed. It loads the pets without the
+ * indexes and triggers of the pets table, and rebuilds what they maintain once, at the end.
+ *
+ * A pet with a photo keeps the file name of its photo, but not the image: photos stay in the
+ * storage of the app, see {@link PetPhotos}.
+ *
+ * A pet also keeps its identity on the registry, see {@link PetSync}: its remote ID and version,
+ * the time of its last change, and whether it has changes the registry has not accepted yet. A
+ * restore does not delete anything from the registry. Pets of the registry that are not in the
+ * backup are pulled again by the next sync, which starts over from the first change of the
+ * registry. Backups of version 1 have no such identity, so their pets are new to the registry.
+ */
+public class PetBackup {
+
+    public static final String LOG_TAG = PetBackup.class.getSimpleName();
+
+    /** Value of the "format" key of the header */
+    private static final String FORMAT = "pets";
+
+    /** Version of the backup format, written in the header. Version 1 has no sync identity. */
+    private static final int VERSION = 2;
+
+    /** Number of pets read from the database at once while exporting */
+    private static final int PAGE_SIZE = 1000;
+
+    private static final String KEY_FORMAT = "format";
+    private static final String KEY_VERSION = "version";
+    private static final String KEY_ID = "id";
+    private static final String KEY_NAME = "name";
+    private static final String KEY_BREED = "breed";
+    private static final String KEY_GENDER = "gender";
+    private static final String KEY_WEIGHT = "weight";
+    private static final String KEY_PHOTO = "photo";
+    private static final String KEY_REMOTE_ID = "remote_id";
+    private static final String KEY_REMOTE_VERSION = "remote_version";
+    private static final String KEY_MODIFIED = "modified";
+    private static final String KEY_DIRTY = "dirty";
+    private static final String KEY_COUNT = "count";
+    private static final String KEY_CRC32 = "crc32";
+
+    /** Positions of the sync columns, which follow those of {@link Pet#PROJECTION} */
+    private static final int INDEX_REMOTE_ID = Pet.PROJECTION.length;
+    private static final int INDEX_REMOTE_VERSION = INDEX_REMOTE_ID + 1;
+    private static final int INDEX_MODIFIED = INDEX_REMOTE_ID + 2;
+    private static final int INDEX_DIRTY = INDEX_REMOTE_ID + 3;
+
+    /**
+     * Selects the page of pets to export after a given ID, as read by {@link Pet#fromCursor}
+     * followed by their sync columns.
+     * Paging on the primary key needs no index nor transaction: each page starts where the
+     * previous one ended, whatever was written in between.
+     */
+    private static final String SQL_EXPORT_PAGE = "SELECT "
+            + TextUtils.join(", ", Pet.PROJECTION) + ", "
+            + PetEntry.COLUMN_PET_REMOTE_ID + ", "
+            + PetEntry.COLUMN_PET_REMOTE_VERSION + ", "
+            + PetEntry.COLUMN_PET_MODIFIED + ", "
+            + PetEntry.COLUMN_PET_LOCAL_VERSION + " > " + PetEntry.COLUMN_PET_SYNCED_VERSION
+            + " FROM " + PetEntry.TABLE_NAME
+            + " WHERE " + PetEntry.COLUMN_PET_DELETED + " = 0"
+            + " AND " + PetEntry._ID + " > ?"
+            + " ORDER BY " + PetEntry._ID
+            + " LIMIT " + PAGE_SIZE;
+
+    /**
+     * Statement that inserts a single pet with its ID, compiled once per restore. A pet without a
+     * remote ID or time of change, from a backup of version 1, gets new ones like any new pet.
+     * The local and synced versions are bound so that the pet is dirty, see
+     * {@link PetEntry#COLUMN_PET_SYNCED_VERSION}, if it was dirty when backed up or was never
+     * synced.
+     */
+    private static final String SQL_RESTORE_PET = "INSERT INTO " + PetEntry.TABLE_NAME + " ("
+            + PetEntry._ID + ", "
+            + PetEntry.COLUMN_PET_NAME + ", "
+            + PetEntry.COLUMN_PET_BREED + ", "
+            + PetEntry.COLUMN_PET_GENDER + ", "
+            + PetEntry.COLUMN_PET_WEIGHT + ", "
+            + PetEntry.COLUMN_PET_PHOTO + ", "
+            + PetEntry.COLUMN_PET_REMOTE_ID + ", "
+            + PetEntry.COLUMN_PET_REMOTE_VERSION + ", "
+            + PetEntry.COLUMN_PET_LOCAL_VERSION + ", "
+            + PetEntry.COLUMN_PET_SYNCED_VERSION + ", "
+            + PetEntry.COLUMN_PET_MODIFIED + ") VALUES (?, ?, ?, ?, ?, ?, "
+            + "IFNULL(?, " + PetMigrations.SQL_NEW_REMOTE_ID + "), ?, ?, ?, "
+            + "IFNULL(?, " + PetMigrations.SQL_NOW_MS + "))";
+
+    /** Drops the pets deleted for good that the restore brought back */
+    private static final String SQL_DELETE_RESTORED_DELETES = "DELETE FROM "
+            + PetSyncEntry.DELETES_TABLE_NAME + " WHERE " + PetSyncEntry.COLUMN_REMOTE_ID
+            + " IN (SELECT " + PetEntry.COLUMN_PET_REMOTE_ID + " FROM " + PetEntry.TABLE_NAME + ")";
+
+    /** Makes the next sync pull every change of the registry again */
+    private static final String SQL_DELETE_SYNC_CURSOR = "DELETE FROM "
+            + PetSyncEntry.STATE_TABLE_NAME + " WHERE " + PetSyncEntry.COLUMN_KEY + " = '"
+            + PetSyncEntry.KEY_CURSOR + "'";
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final PetDbHelper mDbHelper;
+
+    /**
+     * Constructs a new {@link PetBackup}.
+     *
+     * @param dbHelper the database helper of the pets to back up or restore
+     */
+    public PetBackup(PetDbHelper dbHelper) {
+        mDbHelper = dbHelper;
+    }
+
+    /**
+     * Writes every pet, except those in the trash, to the given stream. Must be called on a
+     * background thread. The stream is closed when the export is done.
+     *
+     * The pets are read a page at a time without holding a transaction, so writers are not kept
+     * waiting while the backup is written. The backup is therefore not a snapshot: a pet changed
+     * during the export is written as it was when its page was read.
+     *
+     * @return the number of pets written
+     */
+    public int exportPets(OutputStream out) throws IOException {
+        long start = SystemClock.elapsedRealtime();
+        OutputStream gzip = new BufferedOutputStream(new GZIPOutputStream(out));
+        CRC32 crc = new CRC32();
+        int count = 0;
+
+        try {
+            writeLine(gzip, header());
+
+            StringWriter buffer = new StringWriter();
+            long lastId = 0;
+            boolean more = true;
+            while (more) {
+                Cursor cursor = mDbHelper.query(SQL_EXPORT_PAGE,
+                        new String[] { String.valueOf(lastId) });
+                try {
+                    more = cursor.getCount() == PAGE_SIZE;
+                    while (cursor.moveToNext()) {
+                        Pet pet = Pet.fromCursor(cursor);
+                        lastId = pet.id;
+                        byte[] line = toLine(buffer, pet, cursor);
+                        crc.update(line);
+                        writeLine(gzip, line);
+                        count++;
+                    }
+                } finally {
+                    cursor.close();
+                }
+            }
+
+            writeLine(gzip, trailer(count, crc.getValue()));
+        } finally {
+            gzip.close();
+        }
+
+        Log.i(LOG_TAG, "Exported " + count + " pets in "
+                + (SystemClock.elapsedRealtime() - start) + " ms");
+        return count;
+    }
+
+    /**
+     * Replaces every pet of the database, including those in the trash, with the pets of the
+     * given backup. Must be called on a background thread. The stream is closed when the restore
+     * is done.
+     *
+     * The whole restore is a single transaction: if the backup is malformed, truncated, or its
+     * pets don't match the count and checksum of its trailer, it is rolled back and the pets of
+     * the database are left as they were. The indexes and triggers of the pets table are dropped
+     * during the load. Once every pet is in, the indexes are built again, and the full-text
+     * index, the statistics and the change log are brought up to date in one statement each,
+     * which is much faster than updating them for each pet. The pets deleted for good that are
+     * waiting to be sent to the registry are kept, unless the backup brings them back.
+     *
+     * @return the number of pets restored
+     * @throws IOException if the backup cannot be read or is not valid
+     */
+    public int restorePets(InputStream in) throws IOException {
+        long start = SystemClock.elapsedRealtime();
+        BufferedReader reader = new BufferedReader(
+                new InputStreamReader(new GZIPInputStream(in), UTF_8));
+        SQLiteDatabase db = mDbHelper.getWritableDatabase();
+        SQLiteStatement insert = db.compileStatement(SQL_RESTORE_PET);
+        int count = 0;
+        db.beginTransaction();
+        try {
+            readHeader(reader.readLine());
+
+            List<String> triggers = PetMigrations.dropTriggers(db);
+            // Lists showing the pets being replaced must drop them
+            PetMigrations.logAllPets(db, false);
+            db.execSQL("DELETE FROM " + PetEntry.TABLE_NAME);
+            PetMigrations.dropIndexes(db);
+
+            CRC32 crc = new CRC32();
+            long[] trailer = null;
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (trailer != null) {
+                    throw new IOException("Unexpected line after the trailer: " + line);
+                }
+                trailer = readPetOrTrailer(line, insert);
+                if (trailer == null) {
+                    crc.update(line.getBytes(UTF_8));
+                    insert.executeInsert();
+                    count++;
+                }
+            }
+
+            if (trailer == null) {
+                throw new IOException("The backup is truncated, it has no trailer");
+            }
+            if (trailer[0] != count || trailer[1] != crc.getValue()) {
+                throw new IOException("The backup is corrupt: expected " + trailer[0]
+                        + " pets with CRC-32 " + trailer[1] + ", read " + count
+                        + " pets with CRC-32 " + crc.getValue());
+            }
+
+            try {
+                PetMigrations.createIndexes(db);
+            } catch (SQLiteConstraintException e) {
+                throw new IOException("The backup has pets with the same remote ID", e);
+            }
+            db.execSQL(SQL_DELETE_RESTORED_DELETES);
+            db.execSQL(SQL_DELETE_SYNC_CURSOR);
+            PetMigrations.createTriggers(db, triggers);
+            PetMigrations.rebuildSearchIndex(db);
+            PetMigrations.logAllPets(db, true);
+            new PetStats(mDbHelper).rebuild();
+            long stored = DatabaseUtils.queryNumEntries(db, PetEntry.TABLE_NAME);
+            if (stored != count) {
+                throw new IOException("Restored " + count + " pets but " + stored
+                        + " are stored");
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+            insert.close();
+            reader.close();
+        }
+        mDbHelper.getCache().invalidateAll();
+
+        long elapsed = SystemClock.elapsedRealtime() - start;
+        QueryMetrics.getInstance().record(db, SQL_RESTORE_PET, null, null, elapsed * 1000000,
+                count);
+        Log.i(LOG_TAG, "Restored " + count + " pets in " + elapsed + " ms");
+        return count;
+    }
+
+    private static byte[] header() throws IOException {
+        StringWriter buffer = new StringWriter();
+        JsonWriter writer = new JsonWriter(buffer);
+        writer.beginObject();
+        writer.name(KEY_FORMAT).value(FORMAT);
+        writer.name(KEY_VERSION).value(VERSION);
+        writer.endObject();
+        writer.close();
+        return buffer.toString().getBytes(UTF_8);
+    }
+
+    private static byte[] trailer(int count, long crc) throws IOException {
+        StringWriter buffer = new StringWriter();
+        JsonWriter writer = new JsonWriter(buffer);
+        writer.beginObject();
+        writer.name(KEY_COUNT).value(count);
+        writer.name(KEY_CRC32).value(crc);
+        writer.endObject();
+        writer.close();
+        return buffer.toString().getBytes(UTF_8);
+    }
+
+    /**
+     * Returns the line of a pet. The buffer is reused for every pet.
+     */
+    private static byte[] toLine(StringWriter buffer, Pet pet, Cursor cursor)
+            throws IOException {
+        buffer.getBuffer().setLength(0);
+        JsonWriter writer = new JsonWriter(buffer);
+        writer.beginObject();
+        writer.name(KEY_ID).value(pet.id);
+        writer.name(KEY_NAME).value(pet.name);
+        if (pet.breed != null) {
+            writer.name(KEY_BREED).value(pet.breed);
+        }
+        writer.name(KEY_GENDER).value(pet.gender);
+        writer.name(KEY_WEIGHT).value(pet.weight);
+        if (pet.photo != null) {
+            writer.name(KEY_PHOTO).value(pet.photo);
+        }
+        writer.name(KEY_REMOTE_ID).value(cursor.getString(INDEX_REMOTE_ID));
+        if (!cursor.isNull(INDEX_REMOTE_VERSION)) {
+            writer.name(KEY_REMOTE_VERSION).value(cursor.getLong(INDEX_REMOTE_VERSION));
+        }
+        writer.name(KEY_MODIFIED).value(cursor.getLong(INDEX_MODIFIED));
+        writer.name(KEY_DIRTY).value(cursor.getInt(INDEX_DIRTY) != 0);
+        writer.endObject();
+        writer.flush();
+        return buffer.toString().getBytes(UTF_8);
+    }
+
+    private static void writeLine(OutputStream out, byte[] line) throws IOException {
+        out.write(line);
+        out.write('\n');
+    }
+
+    /**
+     * Checks that the header line is one of a backup this version of the app can restore.
+     */
+    private static void readHeader(String line) throws IOException {
+        if (line == null) {
+            throw new IOException("The backup is empty");
+        }
+        String format = null;
+        int version = -1;
+        JsonReader reader = new JsonReader(new StringReader(line));
+        try {
+            reader.beginObject();
+            while (reader.hasNext()) {
+                String name = reader.nextName();
+                if (KEY_FORMAT.equals(name)) {
+                    format = reader.nextString();
+                } else if (KEY_VERSION.equals(name)) {
+                    version = reader.nextInt();
+                } else {
+                    reader.skipValue();
+                }
+            }
+            reader.endObject();
+        } catch (IllegalStateException | NumberFormatException e) {
+            throw new IOException("Malformed header: " + line, e);
+        } finally {
+            reader.close();
+        }
+        if (!FORMAT.equals(format) || version < 1 || version > VERSION) {
+            throw new IOException("Not a backup of pets this app can restore: " + line);
+        }
+    }
+
+    /**
+     * Parses a line that holds either a pet or the trailer. A pet is bound to the insert
+     * statement, a trailer is returned as its count and checksum.
+     *
+     * @return the count and checksum of the trailer, or null if the line is a pet
+     * @throws IOException if the line is malformed, or the pet is not valid
+     */
+    private static long[] readPetOrTrailer(String line, SQLiteStatement insert)
+            throws IOException {
+        long id = -1;
+        String name = null;
+        String breed = null;
+        int gender = -1;
+        int weight = -1;
+        String photo = null;
+        String remoteId = null;
+        long remoteVersion = -1;
+        long modified = -1;
+        boolean dirty = false;
+        long count = -1;
+        long crc = -1;
+
+        JsonReader reader = new JsonReader(new StringReader(line));
+        try {
+            reader.beginObject();
+            while (reader.hasNext()) {
+                String key = reader.nextName();
+                if (KEY_ID.equals(key)) {
+                    id = reader.nextLong();
+                } else if (KEY_NAME.equals(key)) {
+                    name = reader.nextString();
+                } else if (KEY_BREED.equals(key)) {
+                    breed = reader.nextString();
+                } else if (KEY_GENDER.equals(key)) {
+                    gender = reader.nextInt();
+                } else if (KEY_WEIGHT.equals(key)) {
+                    weight = reader.nextInt();
+                } else if (KEY_PHOTO.equals(key)) {
+                    photo = reader.nextString();
+                } else if (KEY_REMOTE_ID.equals(key)) {
+                    remoteId = reader.nextString();
+                } else if (KEY_REMOTE_VERSION.equals(key)) {
+                    remoteVersion = reader.nextLong();
+                } else if (KEY_MODIFIED.equals(key)) {
+                    modified = reader.nextLong();
+                } else if (KEY_DIRTY.equals(key)) {
+                    dirty = reader.nextBoolean();
+                } else if (KEY_COUNT.equals(key)) {
+                    count = reader.nextLong();
+                } else if (KEY_CRC32.equals(key)) {
+                    crc = reader.nextLong();
+                } else {
+                    reader.skipValue();
+                }
+            }
+            reader.endObject();
+        } catch (IllegalStateException | NumberFormatException e) {
+            throw new IOException("Malformed line: " + line, e);
+        } finally {
+            reader.close();
+        }
+
+        if (count >= 0 && crc >= 0) {
+            return new long[] { count, crc };
+        }
+        if (id < 1 || name == null || name.isEmpty() || !PetEntry.isValidGender(gender)
+                || weight < 0) {
+            throw new IOException("Invalid pet: " + line);
+        }
+        insert.bindLong(1, id);
+        insert.bindString(2, name);
+        if (breed == null) {
+            insert.bindNull(3);
+        } else {
+            insert.bindString(3, breed);
+        }
+        insert.bindLong(4, gender);
+        insert.bindLong(5, weight);
+        if (photo == null) {
+            insert.bindNull(6);
+        } else {
+            insert.bindString(6, photo);
+        }
+        if (remoteId == null) {
+            insert.bindNull(7);
+        } else {
+            insert.bindString(7, remoteId);
+        }
+        if (remoteVersion < 0) {
+            // Never synced, so the whole pet has to be sent
+            insert.bindNull(8);
+            insert.bindLong(9, 1);
+            insert.bindLong(10, 0);
+        } else {
+            insert.bindLong(8, remoteVersion);
+            insert.bindLong(9, dirty ? 2 : 1);
+            insert.bindLong(10, 1);
+        }
+        if (modified < 0) {
+            insert.bindNull(11);
+        } else {
+            insert.bindLong(11, modified);
+        }
+        return null;
+    }
+}
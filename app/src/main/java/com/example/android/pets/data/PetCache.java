@@ -0,0 +1,114 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.pets.data;
+
+import android.util.LruCache;
+
+import java.util.Collection;
+
+/**
+ * In-memory cache of the pets that were read recently, keyed by {@link Pet#id}.
+ *
+ * The cache holds at most {@link #MAX_PETS} pets and evicts the least recently used one when it is
+ * full. Pets are added as the catalog reads them, so opening one of them in the editor does not
+ * have to go back to the database. Every write made through the data layer updates or invalidates
+ * the pets it touches, so the cache never serves a pet that is older than the database.
+ *
+ * Each database has a cache of its own, see {@link PetDbHelper#getCache}, as the IDs of pets only
+ * mean something within their database. The cache goes away with its {@link PetDbHelper}.
+ */
+public final class PetCache {
+
+    /** Maximum number of pets kept in memory */
+    private static final int MAX_PETS = 500;
+
+    /** The cache of the database of the app */
+    private static final PetCache sInstance = new PetCache();
+
+    private final LruCache<Long, Pet> mPets = new LruCache<>(MAX_PETS);
+
+    PetCache() {
+    }
+
+    /**
+     * Returns the cache of the database of the app, the one of {@link PetDbHelper#getInstance}.
+     */
+    public static PetCache getInstance() {
+        return sInstance;
+    }
+
+    /**
+     * Returns the pet with the given ID, or null if it is not cached.
+     */
+    public Pet get(long id) {
+        return mPets.get(id);
+    }
+
+    /**
+     * Adds or replaces a pet in the cache.
+     */
+    public void put(Pet pet) {
+        mPets.put(pet.id, pet);
+    }
+
+    /**
+     * Adds or replaces all the given pets.
+     */
+    public void putAll(Collection<Pet> pets) {
+        for (Pet pet : pets) {
+            mPets.put(pet.id, pet);
+        }
+    }
+
+    /**
+     * Removes the pet with the given ID, because it was updated or deleted.
+     */
+    public void invalidate(long id) {
+        mPets.remove(id);
+    }
+
+    /**
+     * Removes every pet, because a write touched pets whose IDs are not known.
+     */
+    public void invalidateAll() {
+        // Remove the pets one by one rather than with evictAll(), which would count them all as
+        // evictions
+        for (Long id : mPets.snapshot().keySet()) {
+            mPets.remove(id);
+        }
+    }
+
+    /** Number of lookups that found their pet in the cache */
+    public int getHitCount() {
+        return mPets.hitCount();
+    }
+
+    /** Number of lookups that did not find their pet in the cache */
+    public int getMissCount() {
+        return mPets.missCount();
+    }
+
+    /** Number of pets that were dropped to make room for others */
+    public int getEvictionCount() {
+        return mPets.evictionCount();
+    }
+
+    @Override
+    public String toString() {
+        return "PetCache[size=" + mPets.size() + ", hits=" + getHitCount() + ", misses="
+                + getMissCount() + ", evictions=" + getEvictionCount() + "]";
+    }
+}
@@ -0,0 +1,160 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.pets.data;
+
+import android.database.Cursor;
+
+import com.example.android.pets.data.PetContract.PetChangeEntry;
+import com.example.android.pets.data.PetContract.PetEntry;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reads the pets that changed since a given version from the change log in
+ * {@link PetChangeEntry}.
+ *
+ * A list remembers the version it is up to date with, see {@link #getVersion}, and later asks
+ * for the changes since then instead of reading every pet again. Reading the changes only costs
+ * as much as the number of pets that changed, however large the table is.
+ */
+public class PetChanges {
+
+    /**
+     * Selects the columns of {@link Pet#PROJECTION}, in the same order, then the ID of the pet
+     * and the version of the change. The pet columns are null if the pet no longer exists or is
+     * in the trash.
+     */
+    private static final String SQL_CHANGES_SINCE = "SELECT "
+            + "p." + PetEntry._ID + ", "
+            + "p." + PetEntry.COLUMN_PET_NAME + ", "
+            + "p." + PetEntry.COLUMN_PET_BREED + ", "
+            + "p." + PetEntry.COLUMN_PET_GENDER + ", "
+            + "p." + PetEntry.COLUMN_PET_WEIGHT + ", "
+            + "p." + PetEntry.COLUMN_PET_PHOTO + ", "
+            + "c." + PetChangeEntry.COLUMN_PET_ID + ", "
+            + "c." + PetChangeEntry.COLUMN_VERSION
+            + " FROM " + PetChangeEntry.TABLE_NAME + " c"
+            + " LEFT JOIN " + PetEntry.TABLE_NAME + " p"
+            + " ON p." + PetEntry._ID + " = c." + PetChangeEntry.COLUMN_PET_ID
+            + " AND p." + PetEntry.COLUMN_PET_DELETED + " = 0"
+            + " WHERE c." + PetChangeEntry.COLUMN_VERSION + " > ?"
+            + " ORDER BY c." + PetChangeEntry.COLUMN_VERSION
+            + " LIMIT ?";
+
+    private static final int INDEX_PET_ID = Pet.PROJECTION.length;
+    private static final int INDEX_VERSION = Pet.PROJECTION.length + 1;
+
+    private final PetDbHelper mDbHelper;
+
+    /**
+     * Constructs a new {@link PetChanges}.
+     *
+     * @param dbHelper the database helper to read the changes from
+     */
+    public PetChanges(PetDbHelper dbHelper) {
+        mDbHelper = dbHelper;
+    }
+
+    /**
+     * Returns the version of the latest change, or 0 if nothing changed yet. Read it before
+     * reading the pets themselves: a change made in between is then read again by the next call
+     * to {@link #since}, which is harmless.
+     */
+    public long getVersion() {
+        return mDbHelper.longForQuery(
+                "SELECT IFNULL(MAX(" + PetChangeEntry.COLUMN_VERSION + "), 0) FROM "
+                        + PetChangeEntry.TABLE_NAME, null);
+    }
+
+    /**
+     * Returns the pets that changed after the given version. Must be called on a background
+     * thread.
+     *
+     * @param version the version the caller is up to date with
+     * @param limit the maximum number of changes to read
+     * @return the changes, or null if there are more than {@code limit} of them, in which case
+     *         reading every pet again is cheaper
+     */
+    public Delta since(long version, int limit) {
+        Cursor cursor = mDbHelper.query(SQL_CHANGES_SINCE,
+                new String[] { String.valueOf(version), String.valueOf(limit + 1) });
+        try {
+            if (cursor.getCount() > limit) {
+                return null;
+            }
+            Delta delta = new Delta(version);
+            while (cursor.moveToNext()) {
+                if (cursor.isNull(0)) {
+                    delta.removedIds.add(cursor.getLong(INDEX_PET_ID));
+                } else {
+                    delta.changedPets.add(Pet.fromCursor(cursor));
+                }
+                delta.version = cursor.getLong(INDEX_VERSION);
+            }
+            // Opening one of these pets in the editor won't have to read it again
+            mDbHelper.getCache().putAll(delta.changedPets);
+            for (long id : delta.removedIds) {
+                mDbHelper.getCache().invalidate(id);
+            }
+            return delta;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Drops the changes of pets that no longer exist, so that the log does not keep a row for
+     * every pet ever deleted. A list that is not up to date with the latest version would miss
+     * those deletions, so only call this when no list can be behind them, such as when the app
+     * starts: a list loading meanwhile reads the version after the deletions it would miss.
+     * Must be called on a background thread.
+     *
+     * @return the number of changes dropped
+     */
+    public int pruneRemoved() {
+        return mDbHelper.delete(PetChangeEntry.TABLE_NAME,
+                PetChangeEntry.COLUMN_PET_ID + " NOT IN (SELECT " + PetEntry._ID + " FROM "
+                        + PetEntry.TABLE_NAME + ")",
+                null);
+    }
+
+    /**
+     * The pets that changed between two versions.
+     */
+    public static final class Delta {
+
+        /** Version of the latest change read, to pass to the next call to {@link #since} */
+        public long version;
+
+        /** Pets that were inserted or updated, as they are now */
+        public final List<Pet> changedPets = new ArrayList<>();
+
+        /** IDs of the pets that were deleted or moved to the trash */
+        public final List<Long> removedIds = new ArrayList<>();
+
+        Delta(long version) {
+            this.version = version;
+        }
+
+        /**
+         * Returns true if nothing changed.
+         */
+        public boolean isEmpty() {
+            return changedPets.isEmpty() && removedIds.isEmpty();
+        }
+    }
+}
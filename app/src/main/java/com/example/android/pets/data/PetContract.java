@@ -15,6 +15,9 @@
  */
 package com.example.android.pets.data;
 
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.net.Uri;
 import android.provider.BaseColumns;
 
 /**
@@ -26,12 +29,55 @@ public final class PetContract {
     // give it an empty constructor.
     private PetContract() {}
 
+    /**
+     * The "Content authority" is a name for the entire content provider, similar to the
+     * relationship between a domain name and its website.  A convenient string to use for the
+     * content authority is the package name for the app, which is guaranteed to be unique on the
+     * device.
+     */
+    public static final String CONTENT_AUTHORITY = "com.example.android.pets";
+
+    /**
+     * Use CONTENT_AUTHORITY to create the base of all URI's which apps will use to contact
+     * the content provider.
+     */
+    public static final Uri BASE_CONTENT_URI = Uri.parse("content://" + CONTENT_AUTHORITY);
+
+    /**
+     * Possible path (appended to base content URI for possible URI's)
+     * For instance, content://com.example.android.pets/pets/ is a valid path for
+     * looking at pet data. content://com.example.android.pets/staff/ will fail,
+     * as the ContentProvider hasn't been given any information on what to do with "staff".
+     */
+    public static final String PATH_PETS = "pets";
+
+    /**
+     * Query parameter that limits the number of rows returned by a query, for example
+     * content://com.example.android.pets/pets?limit=50
+     */
+    public static final String QUERY_PARAMETER_LIMIT = "limit";
+
     /**
      * Inner class that defines constant values for the pets database table.
      * Each entry in the table represents a single pet.
      */
     public static final class PetEntry implements BaseColumns {
 
+        /** The content URI to access the pet data in the provider */
+        public static final Uri CONTENT_URI = Uri.withAppendedPath(BASE_CONTENT_URI, PATH_PETS);
+
+        /**
+         * The MIME type of the {@link #CONTENT_URI} for a list of pets.
+         */
+        public static final String CONTENT_LIST_TYPE =
+                ContentResolver.CURSOR_DIR_BASE_TYPE + "/" + CONTENT_AUTHORITY + "/" + PATH_PETS;
+
+        /**
+         * The MIME type of the {@link #CONTENT_URI} for a single pet.
+         */
+        public static final String CONTENT_ITEM_TYPE =
+                ContentResolver.CURSOR_ITEM_BASE_TYPE + "/" + CONTENT_AUTHORITY + "/" + PATH_PETS;
+
         /** Name of database table for pets */
         public final static String TABLE_NAME = "pets";
 
@@ -73,13 +119,259 @@ public final class PetContract {
          */
         public final static String COLUMN_PET_WEIGHT = "weight";
 
+        /**
+         * Whether the pet is in the trash. 0 for a live pet, otherwise the time it was moved to
+         * the trash, in milliseconds since the epoch. Pets deleted together share the same
+         * time, which is how they are restored together. Pets in the trash are never returned
+         * by queries, and are permanently deleted once they can no longer be restored.
+         *
+         * Type: INTEGER
+         */
+        public final static String COLUMN_PET_DELETED = "deleted";
+
+        /**
+         * File name of the photo of the pet, or null if it has none. The image itself is kept
+         * in the app storage by {@link PetPhotos}, so that it does not bloat every row read by
+         * the queries on this table.
+         *
+         * Type: TEXT
+         */
+        public final static String COLUMN_PET_PHOTO = "photo";
+
+        /**
+         * ID of the pet shared by every device that syncs with the registry, see
+         * {@link PetSync}. Set by a trigger when the pet is inserted without one.
+         *
+         * Type: TEXT
+         */
+        public final static String COLUMN_PET_REMOTE_ID = "remote_id";
+
+        /**
+         * Version of the pet on the registry that the local pet is based on, or null if the pet
+         * was never synced.
+         *
+         * Type: INTEGER
+         */
+        public final static String COLUMN_PET_REMOTE_VERSION = "remote_version";
+
+        /**
+         * Number of local changes made to the pet. A trigger increments it every time the pet is
+         * changed, unless the write sets it itself, which is how the sync applies the changes
+         * of the registry without sending them back.
+         *
+         * Type: INTEGER
+         */
+        public final static String COLUMN_PET_LOCAL_VERSION = "local_version";
+
+        /**
+         * Value of {@link #COLUMN_PET_LOCAL_VERSION} that the registry last accepted. The pet is
+         * dirty, and has to be sent to the registry, while it is lower.
+         *
+         * Type: INTEGER
+         */
+        public final static String COLUMN_PET_SYNCED_VERSION = "synced_version";
+
+        /**
+         * Time of the last change of the pet, in milliseconds since the epoch, on whichever
+         * device it was made. Used to settle conflicting changes.
+         *
+         * Type: INTEGER
+         */
+        public final static String COLUMN_PET_MODIFIED = "modified";
+
         /**
          * Possible values for the gender of the pet.
          */
         public static final int GENDER_UNKNOWN = 0;
         public static final int GENDER_MALE = 1;
         public static final int GENDER_FEMALE = 2;
+
+        /**
+         * Returns whether or not the given gender is {@link #GENDER_UNKNOWN}, {@link #GENDER_MALE},
+         * or {@link #GENDER_FEMALE}.
+         */
+        public static boolean isValidGender(int gender) {
+            return gender == GENDER_UNKNOWN || gender == GENDER_MALE || gender == GENDER_FEMALE;
+        }
+
+        /**
+         * Possible outcomes of {@link #validate}.
+         */
+        public static final int VALID = 0;
+        public static final int INVALID_NAME = 1;
+        public static final int INVALID_GENDER = 2;
+        public static final int INVALID_WEIGHT = 3;
+
+        /**
+         * Checks the attributes of a pet before they are written. When inserting, every required
+         * attribute must be present. When updating, only the attributes that are present are
+         * checked. The weight may be given as text, as typed in the editor.
+         *
+         * @return {@link #VALID}, or the {@code INVALID_*} constant of the first attribute that
+         *         is not valid
+         */
+        public static int validate(ContentValues values, boolean inserting) {
+            // Check that the name is not null
+            if (inserting || values.containsKey(COLUMN_PET_NAME)) {
+                String name = values.getAsString(COLUMN_PET_NAME);
+                if (name == null || name.isEmpty()) {
+                    return INVALID_NAME;
+                }
+            }
+
+            // Check that the gender is valid
+            if (inserting || values.containsKey(COLUMN_PET_GENDER)) {
+                Integer gender = values.getAsInteger(COLUMN_PET_GENDER);
+                if (gender == null || !isValidGender(gender)) {
+                    return INVALID_GENDER;
+                }
+            }
+
+            // If the weight is provided, check that it's a number greater than or equal to 0 kg
+            if (values.containsKey(COLUMN_PET_WEIGHT) && values.get(COLUMN_PET_WEIGHT) != null) {
+                Integer weight = values.getAsInteger(COLUMN_PET_WEIGHT);
+                if (weight == null || weight < 0) {
+                    return INVALID_WEIGHT;
+                }
+            }
+
+            // No need to check the breed, any value is valid (including null).
+            return VALID;
+        }
     }
 
-}
+    /**
+     * Full-text index over the name and breed of the pets. It is kept in sync with
+     * {@link PetEntry} by triggers, and each row shares the ID of its pet as its docid.
+     */
+    public static final class PetSearchEntry {
+
+        /** Name of the full-text search table */
+        public final static String TABLE_NAME = "pets_fts";
 
+        /**
+         * ID of the pet this row indexes, same as {@link PetEntry#_ID}.
+         *
+         * Type: INTEGER
+         */
+        public final static String COLUMN_DOCID = "docid";
+    }
+
+    /**
+     * Summary tables that count the pets per breed, per gender, and per range of weight. They are
+     * kept up to date by triggers on every write to {@link PetEntry}, so reading them never has
+     * to scan the pets table. Each table has one row per value that at least one pet has.
+     */
+    public static final class PetStatsEntry {
+
+        /** Name of the table of the number of pets per breed */
+        public final static String BREED_TABLE_NAME = "pet_breed_stats";
+
+        /** Name of the table of the number of pets per gender */
+        public final static String GENDER_TABLE_NAME = "pet_gender_stats";
+
+        /** Name of the table of the number of pets per range of weight */
+        public final static String WEIGHT_TABLE_NAME = "pet_weight_stats";
+
+        /**
+         * Breed of the pets counted by the row. Pets without a breed are counted under an empty
+         * string, because NULL values are never equal to each other in a primary key.
+         *
+         * Type: TEXT
+         */
+        public final static String COLUMN_BREED = "breed";
+
+        /**
+         * Gender of the pets counted by the row, see {@link PetEntry#COLUMN_PET_GENDER}.
+         *
+         * Type: INTEGER
+         */
+        public final static String COLUMN_GENDER = "gender";
+
+        /**
+         * Range of weight of the pets counted by the row: the weight divided by
+         * {@link #WEIGHT_BUCKET_SIZE}, rounded down.
+         *
+         * Type: INTEGER
+         */
+        public final static String COLUMN_WEIGHT_BUCKET = "bucket";
+
+        /**
+         * Number of pets counted by the row, always greater than 0.
+         *
+         * Type: INTEGER
+         */
+        public final static String COLUMN_COUNT = "count";
+
+        /** Width of each range of weight, in kg */
+        public static final int WEIGHT_BUCKET_SIZE = 5;
+    }
+
+    /**
+     * Inner class that defines the change log of the pets table. Triggers on {@link PetEntry} add
+     * a row every time a pet is inserted, updated, moved to the trash or out of it, so a list that
+     * remembers the last version it saw only has to read the pets changed since then. There is at
+     * most one row per pet, the one of its latest change.
+     */
+    public static final class PetChangeEntry {
+
+        /** Name of the change log table */
+        public final static String TABLE_NAME = "pet_changes";
+
+        /**
+         * Version of the change, greater than the version of every change before it.
+         *
+         * Type: INTEGER
+         */
+        public final static String COLUMN_VERSION = "version";
+
+        /**
+         * ID of the pet that changed, see {@link PetEntry#_ID}. The pet may no longer exist, or
+         * be in the trash.
+         *
+         * Type: INTEGER
+         */
+        public final static String COLUMN_PET_ID = "pet_id";
+    }
+
+    /**
+     * Inner class that defines the tables of the sync with the registry, see {@link PetSync}.
+     */
+    public static final class PetSyncEntry {
+
+        /**
+         * Name of the table of the pets deleted for good that the registry still has to be
+         * told about. A trigger on {@link PetEntry} adds a row when such a pet is deleted.
+         */
+        public final static String DELETES_TABLE_NAME = "pet_sync_deletes";
+
+        /** Name of the table of the state of the sync, as key and value pairs */
+        public final static String STATE_TABLE_NAME = "pet_sync_state";
+
+        /**
+         * Columns of {@link #DELETES_TABLE_NAME}, with the same meaning as in {@link PetEntry}.
+         *
+         * Type: TEXT, INTEGER and INTEGER
+         */
+        public final static String COLUMN_REMOTE_ID = PetEntry.COLUMN_PET_REMOTE_ID;
+        public final static String COLUMN_REMOTE_VERSION = PetEntry.COLUMN_PET_REMOTE_VERSION;
+        public final static String COLUMN_MODIFIED = PetEntry.COLUMN_PET_MODIFIED;
+
+        /**
+         * Name of a value of the state of the sync.
+         *
+         * Type: TEXT
+         */
+        public final static String COLUMN_KEY = "key";
+
+        /**
+         * A value of the state of the sync.
+         *
+         * Type: TEXT
+         */
+        public final static String COLUMN_VALUE = "value";
+
+        /** Key of the cursor of the registry, up to which its changes were pulled */
+        public final static String KEY_CURSOR = "cursor";
+    }
+}
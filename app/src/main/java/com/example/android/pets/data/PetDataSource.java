@@ -0,0 +1,629 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.pets.data;
+
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.content.Context;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.StrictMode;
+import android.util.Log;
+
+import com.example.android.pets.data.PetContract.PetEntry;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Data access layer for the Pets app. Every read and write of the pets database goes through
+ * this class, which runs it on a small background thread pool and delivers the result to a
+ * {@link Callback} on the main thread. Each call returns a {@link Request} that can be cancelled,
+ * for example when the activity that asked for the data is stopped.
+ */
+public class PetDataSource {
+
+    public static final String LOG_TAG = PetDataSource.class.getSimpleName();
+
+    /** Number of threads that run database work */
+    private static final int THREAD_COUNT = 2;
+
+    /** Maximum number of requests that can be waiting for a thread */
+    private static final int QUEUE_CAPACITY = 128;
+
+    /** Maximum number of syncs that can be waiting for the sync thread */
+    private static final int SYNC_QUEUE_CAPACITY = 4;
+
+    /** Executor shared by every {@link PetDataSource} in the process */
+    private static final ThreadPoolExecutor sExecutor = newExecutor("PetData", THREAD_COUNT,
+            QUEUE_CAPACITY);
+
+    /**
+     * Executor of the syncs. A sync waits on the network and sleeps between retries for much
+     * longer than any database work, so it must not hold one of the threads of
+     * {@link #sExecutor} while the catalog waits for its pages.
+     */
+    private static final ThreadPoolExecutor sSyncExecutor = newExecutor("PetSync", 1,
+            SYNC_QUEUE_CAPACITY);
+
+    /** Handler used to deliver the results on the main thread */
+    private static final Handler sMainHandler = new Handler(Looper.getMainLooper());
+
+    /** Application context, used to open the files picked by the user */
+    private final Context mContext;
+
+    /** Database helper that will provide us access to the database */
+    private final PetDbHelper mDbHelper;
+
+    /**
+     * Constructs a new {@link PetDataSource}.
+     *
+     * @param context of the app
+     */
+    public PetDataSource(Context context) {
+        this(context, PetDbHelper.getInstance(context));
+    }
+
+    /**
+     * Constructs a new {@link PetDataSource} that runs its operations against the given
+     * database, such as a scratch database of a test.
+     */
+    PetDataSource(Context context, PetDbHelper dbHelper) {
+        mContext = context.getApplicationContext();
+        mDbHelper = dbHelper;
+    }
+
+    /**
+     * Makes any disk access from the main thread crash the app. Only meant for the "strict" build
+     * type, so that a database call that slips onto the main thread is caught before it ships.
+     */
+    public static void enableStrictMode() {
+        StrictMode.setThreadPolicy(new StrictMode.ThreadPolicy.Builder()
+                .detectDiskReads()
+                .detectDiskWrites()
+                .penaltyLog()
+                .penaltyDeath()
+                .build());
+    }
+
+    /**
+     * Runs the given operation on a background thread and delivers its result to the callback
+     * on the main thread, unless the returned request is cancelled first. The callback may be
+     * null if the caller is not interested in the result.
+     */
+    public <T> Request execute(Operation<T> operation, Callback<T> callback) {
+        return execute(sExecutor, operation, callback);
+    }
+
+    /**
+     * Runs the given operation on a thread of the given executor, see {@link #execute}.
+     */
+    private <T> Request execute(ExecutorService executor, final Operation<T> operation,
+            final Callback<T> callback) {
+        final Request request = new Request();
+        try {
+            request.mFuture = executor.submit(new Runnable() {
+                @Override
+                public void run() {
+                    if (request.isCancelled()) {
+                        return;
+                    }
+                    try {
+                        deliverResult(request, callback, operation.run(mDbHelper));
+                    } catch (final RuntimeException e) {
+                        deliverError(request, callback, e);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            deliverError(request, callback, e);
+        }
+        return request;
+    }
+
+    /**
+     * Runs the given operation against the database of a shelter, like {@link #execute} does
+     * against the database of the app. See {@link PetShelters}.
+     */
+    public <T> Request executeInShelter(final String shelter, final Operation<T> operation,
+            Callback<T> callback) {
+        return execute(new Operation<T>() {
+            @Override
+            public T run(PetDbHelper dbHelper) {
+                return PetShelters.getInstance(mContext).run(shelter, operation);
+            }
+        }, callback);
+    }
+
+    /**
+     * Loads a page of pets across every shelter in the background, see
+     * {@link PetShelters#queryPage}.
+     *
+     * @param query the filter and order of the pets
+     * @param after the last pet of the previous page, or null for the first page
+     * @param limit the maximum number of pets in the page
+     * @param callback receives the pets of the page
+     */
+    public Request queryShelters(final PetQuery query, final PetShelters.ShelterPet after,
+            final int limit, Callback<List<PetShelters.ShelterPet>> callback) {
+        return execute(new Operation<List<PetShelters.ShelterPet>>() {
+            @Override
+            public List<PetShelters.ShelterPet> run(PetDbHelper dbHelper) {
+                return PetShelters.getInstance(mContext).queryPage(query, after, limit);
+            }
+        }, callback);
+    }
+
+    /**
+     * Inserts a new pet in the background, through the {@link PetProvider} so that observers of
+     * {@link PetEntry#CONTENT_URI} are notified.
+     *
+     * @param values the attributes of the new pet
+     * @param callback receives the ID of the new row, or -1 if the insertion failed. Invalid
+     *                 attributes are reported to {@link Callback#onError}. May be null.
+     */
+    public Request insert(final ContentValues values, Callback<Long> callback) {
+        return execute(new Operation<Long>() {
+            @Override
+            public Long run(PetDbHelper dbHelper) {
+                Uri uri = mContext.getContentResolver().insert(PetEntry.CONTENT_URI, values);
+                return uri == null ? -1 : ContentUris.parseId(uri);
+            }
+        }, callback);
+    }
+
+    /**
+     * Saves a pet through the {@link PetWriteQueue}, which commits the saves that arrive close
+     * together in a single transaction. Invalid attributes are not an error: they come back as
+     * the status of the result.
+     *
+     * @param id the ID of the pet to update, or -1 to insert a new pet
+     * @param values the attributes of the pet, the weight may be given as text
+     * @param callback receives the outcome on the main thread, may be null
+     * @return the outcome, whose {@link PetWriteQueue.Result#getId} is the ID of the pet
+     */
+    public Future<PetWriteQueue.Result> save(long id, ContentValues values,
+            final Callback<PetWriteQueue.Result> callback) {
+        PetWriteQueue.Listener listener = new PetWriteQueue.Listener() {
+            @Override
+            public void onSaved(PetWriteQueue.Result result) {
+                deliverResult(new Request(), callback, result);
+            }
+        };
+        PetWriteQueue queue = PetWriteQueue.getInstance(mContext);
+        return id == -1 ? queue.insert(values, listener) : queue.update(id, values, listener);
+    }
+
+    /**
+     * Loads a single pet. If the pet is in the {@link PetCache}, the database is not touched at
+     * all, but the callback is still called asynchronously, like for a pet read from disk.
+     *
+     * @param id the ID of the pet
+     * @param callback receives the pet, or null if there is no pet with this ID
+     */
+    public Request loadPet(final long id, final Callback<Pet> callback) {
+        Pet cached = mDbHelper.getCache().get(id);
+        if (cached != null) {
+            Request request = new Request();
+            deliverResult(request, callback, cached);
+            return request;
+        }
+        return execute(new Operation<Pet>() {
+            @Override
+            public Pet run(PetDbHelper dbHelper) {
+                return dbHelper.loadPet(id);
+            }
+        }, callback);
+    }
+
+    /**
+     * Updates a pet in the background, through the {@link PetProvider}.
+     *
+     * @param id the ID of the pet
+     * @param values the attributes to change
+     * @param callback receives the number of updated rows. Invalid attributes are reported to
+     *                 {@link Callback#onError}. May be null.
+     */
+    public Request update(final long id, final ContentValues values, Callback<Integer> callback) {
+        return execute(new Operation<Integer>() {
+            @Override
+            public Integer run(PetDbHelper dbHelper) {
+                Uri uri = ContentUris.withAppendedId(PetEntry.CONTENT_URI, id);
+                return mContext.getContentResolver().update(uri, values, null, null);
+            }
+        }, callback);
+    }
+
+    /**
+     * Loads a {@link PetSnapshot} of every pet in the background.
+     */
+    public Request loadSnapshot(Callback<PetSnapshot> callback) {
+        return execute(new Operation<PetSnapshot>() {
+            @Override
+            public PetSnapshot run(PetDbHelper dbHelper) {
+                return PetSnapshot.load(dbHelper);
+            }
+        }, callback);
+    }
+
+    /**
+     * Checks the summary tables of {@link PetStats} against the pets table in the background,
+     * and rebuilds them if any count is wrong. The callback receives the counts that were wrong.
+     */
+    public Request checkStats(Callback<List<String>> callback) {
+        return execute(new Operation<List<String>>() {
+            @Override
+            public List<String> run(PetDbHelper dbHelper) {
+                PetStats stats = new PetStats(dbHelper);
+                List<String> differences = stats.verify();
+                if (!differences.isEmpty()) {
+                    stats.rebuild();
+                }
+                return differences;
+            }
+        }, callback);
+    }
+
+    /**
+     * Moves every pet to the trash in the background. The callback receives the pets that were
+     * moved, so they can be restored with {@link #restorePets} or deleted for good with
+     * {@link #purgeTrash}.
+     */
+    public Request trashAllPets(Callback<PetTrash.Batch> callback) {
+        return execute(new Operation<PetTrash.Batch>() {
+            @Override
+            public PetTrash.Batch run(PetDbHelper dbHelper) {
+                PetTrash.Batch batch = new PetTrash(dbHelper).trashAll();
+                mContext.getContentResolver().notifyChange(PetEntry.CONTENT_URI, null);
+                return batch;
+            }
+        }, callback);
+    }
+
+    /**
+     * Moves the pet with the given ID to the trash in the background.
+     */
+    public Request trashPet(final long id, Callback<PetTrash.Batch> callback) {
+        return execute(new Operation<PetTrash.Batch>() {
+            @Override
+            public PetTrash.Batch run(PetDbHelper dbHelper) {
+                PetTrash.Batch batch = new PetTrash(dbHelper).trash(id);
+                mContext.getContentResolver().notifyChange(
+                        ContentUris.withAppendedId(PetEntry.CONTENT_URI, id), null);
+                return batch;
+            }
+        }, callback);
+    }
+
+    /**
+     * Brings the pets of the given batch back from the trash in the background. The callback
+     * receives the number of pets restored.
+     */
+    public Request restorePets(final PetTrash.Batch batch, Callback<Integer> callback) {
+        return execute(new Operation<Integer>() {
+            @Override
+            public Integer run(PetDbHelper dbHelper) {
+                int restored = new PetTrash(dbHelper).restore(batch);
+                mContext.getContentResolver().notifyChange(PetEntry.CONTENT_URI, null);
+                return restored;
+            }
+        }, callback);
+    }
+
+    /**
+     * Permanently deletes the pets of the given batch, or every pet in the trash if it is null,
+     * then gives the free space back to the file system if that does not take rebuilding the
+     * database, see {@link #runMaintenance}, in the background. The callback receives the
+     * number of pets deleted. Emptying the whole trash also prunes {@link PetChanges} and
+     * deletes the photos that no pet refers to anymore, so it is meant for when the app starts.
+     */
+    public Request purgeTrash(final PetTrash.Batch batch, Callback<Integer> callback) {
+        return execute(new Operation<Integer>() {
+            @Override
+            public Integer run(PetDbHelper dbHelper) {
+                PetTrash trash = new PetTrash(dbHelper);
+                int purged;
+                if (batch == null) {
+                    purged = trash.purgeAll();
+                    // Only emptied like this when the app starts, before any list keeps track of
+                    // the changes
+                    new PetChanges(dbHelper).pruneRemoved();
+                    new PetPhotos(mContext).deleteUnused(PetShelters.getInstance(mContext));
+                } else {
+                    purged = trash.purge(batch);
+                }
+                trash.compact();
+                return purged;
+            }
+        }, callback);
+    }
+
+    /**
+     * Runs the maintenance that is too slow to run while the pets are shown, in the background:
+     * rebuilds the database once so that emptying the trash can shrink it, see
+     * {@link PetTrash#convertToIncrementalVacuum}. Meant for when the app leaves the screen. The
+     * rebuild blocks every writer, so it is skipped if any other data work is running or queued,
+     * such as an import, a restore, a sync or a save, and left for the next time. The callback
+     * receives whether the database was rebuilt.
+     */
+    public Request runMaintenance(Callback<Boolean> callback) {
+        if (!isIdle(0)) {
+            Request request = new Request();
+            deliverResult(request, callback, false);
+            return request;
+        }
+        return execute(new Operation<Boolean>() {
+            @Override
+            public Boolean run(PetDbHelper dbHelper) {
+                // Other work may have been queued while this was waiting for a thread
+                if (!isIdle(1)) {
+                    Log.i(LOG_TAG, "Skipped the maintenance, the database is busy");
+                    return false;
+                }
+                return new PetTrash(dbHelper).convertToIncrementalVacuum();
+            }
+        }, callback);
+    }
+
+    /**
+     * Returns whether no data work other than the given number of running operations is running
+     * or waiting, on any of the executors or in the {@link PetWriteQueue}.
+     */
+    private boolean isIdle(int running) {
+        return sExecutor.getActiveCount() <= running && sExecutor.getQueue().isEmpty()
+                && sSyncExecutor.getActiveCount() == 0 && sSyncExecutor.getQueue().isEmpty()
+                && PetWriteQueue.getInstance(mContext).isIdle();
+    }
+
+    /**
+     * Stores the image at the given URI as a new photo, with its thumbnail, in the background.
+     * The callback receives the name of the photo, to save in
+     * {@link PetEntry#COLUMN_PET_PHOTO}.
+     */
+    public Request savePhoto(final Uri uri, Callback<String> callback) {
+        return execute(new Operation<String>() {
+            @Override
+            public String run(PetDbHelper dbHelper) {
+                try {
+                    InputStream in = mContext.getContentResolver().openInputStream(uri);
+                    if (in == null) {
+                        throw new IOException("No content at " + uri);
+                    }
+                    return new PetPhotos(mContext).savePhoto(in);
+                } catch (IOException e) {
+                    throw new IllegalStateException("Could not save the photo at " + uri, e);
+                }
+            }
+        }, callback);
+    }
+
+    /**
+     * Imports pets in bulk from a CSV or JSON file, in the background.
+     *
+     * @param uri the file to import
+     * @param listener receives progress updates on the importing thread, may be null
+     * @param callback receives the outcome of the import
+     */
+    public Request importPets(final Uri uri, final PetImporter.ProgressListener listener,
+            Callback<PetImporter.Result> callback) {
+        return execute(new Operation<PetImporter.Result>() {
+            @Override
+            public PetImporter.Result run(PetDbHelper dbHelper) {
+                try {
+                    InputStream in = mContext.getContentResolver().openInputStream(uri);
+                    if (in == null) {
+                        throw new IOException("No content at " + uri);
+                    }
+                    PetImporter.Result result = new PetImporter(dbHelper).importPets(in, listener);
+                    mContext.getContentResolver().notifyChange(PetEntry.CONTENT_URI, null);
+                    return result;
+                } catch (IOException e) {
+                    throw new IllegalStateException("Could not import pets from " + uri, e);
+                }
+            }
+        }, callback);
+    }
+
+    /**
+     * Backs up every pet to the given file, in the background. The callback receives the number
+     * of pets written.
+     */
+    public Request exportBackup(final Uri uri, Callback<Integer> callback) {
+        return execute(new Operation<Integer>() {
+            @Override
+            public Integer run(PetDbHelper dbHelper) {
+                try {
+                    OutputStream out = mContext.getContentResolver().openOutputStream(uri);
+                    if (out == null) {
+                        throw new IOException("Cannot write to " + uri);
+                    }
+                    return new PetBackup(dbHelper).exportPets(out);
+                } catch (IOException e) {
+                    throw new IllegalStateException("Could not back up pets to " + uri, e);
+                }
+            }
+        }, callback);
+    }
+
+    /**
+     * Replaces every pet with the pets of the given backup, in the background. The callback
+     * receives the number of pets restored. If the backup is not valid, the pets are left as
+     * they were and the callback receives the error.
+     */
+    public Request restoreBackup(final Uri uri, Callback<Integer> callback) {
+        return execute(new Operation<Integer>() {
+            @Override
+            public Integer run(PetDbHelper dbHelper) {
+                try {
+                    InputStream in = mContext.getContentResolver().openInputStream(uri);
+                    if (in == null) {
+                        throw new IOException("No content at " + uri);
+                    }
+                    int count = new PetBackup(dbHelper).restorePets(in);
+                    mContext.getContentResolver().notifyChange(PetEntry.CONTENT_URI, null);
+                    return count;
+                } catch (IOException e) {
+                    throw new IllegalStateException("Could not restore pets from " + uri, e);
+                }
+            }
+        }, callback);
+    }
+
+    /**
+     * Syncs the pets with the registry at the given URL, on a thread of its own so that the
+     * other operations don't wait behind its network requests. The catalog is
+     * refreshed after each page of changes pulled from the registry. If the registry cannot be
+     * reached, the changes applied so far are kept and the callback receives the error.
+     */
+    public Request sync(final String baseUrl, Callback<PetSync.Result> callback) {
+        return execute(sSyncExecutor, new Operation<PetSync.Result>() {
+            @Override
+            public PetSync.Result run(PetDbHelper dbHelper) {
+                PetSync sync = new PetSync(dbHelper, baseUrl);
+                sync.setListener(new PetSync.Listener() {
+                    @Override
+                    public void onPulled(int applied) {
+                        if (applied > 0) {
+                            mContext.getContentResolver().notifyChange(PetEntry.CONTENT_URI,
+                                    null);
+                        }
+                    }
+                });
+                try {
+                    PetSync.Result result = sync.sync();
+                    mContext.getContentResolver().notifyChange(PetEntry.CONTENT_URI, null);
+                    return result;
+                } catch (IOException e) {
+                    throw new IllegalStateException("Could not sync pets with " + baseUrl, e);
+                }
+            }
+        }, callback);
+    }
+
+    /**
+     * Returns a new executor of background threads with the given name, which stop when they have
+     * been idle for a while.
+     */
+    private static ThreadPoolExecutor newExecutor(final String name, int threadCount,
+            int queueCapacity) {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(
+                threadCount, threadCount, 30, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(queueCapacity),
+                new ThreadFactory() {
+                    private final AtomicInteger mCount = new AtomicInteger();
+
+                    @Override
+                    public Thread newThread(Runnable runnable) {
+                        Thread thread = new Thread(runnable,
+                                name + " #" + mCount.incrementAndGet());
+                        thread.setPriority(Thread.NORM_PRIORITY - 1);
+                        return thread;
+                    }
+                });
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    private static <T> void deliverResult(final Request request, final Callback<T> callback,
+            final T result) {
+        if (callback == null) {
+            return;
+        }
+        sMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (!request.isCancelled()) {
+                    callback.onResult(result);
+                }
+            }
+        });
+    }
+
+    private static <T> void deliverError(final Request request, final Callback<T> callback,
+            final Exception error) {
+        if (callback == null) {
+            Log.e(LOG_TAG, "Database operation failed", error);
+            return;
+        }
+        sMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (!request.isCancelled()) {
+                    callback.onError(error);
+                }
+            }
+        });
+    }
+
+    /**
+     * Work to be run against the database on a background thread.
+     */
+    public interface Operation<T> {
+        T run(PetDbHelper dbHelper);
+    }
+
+    /**
+     * Receives the outcome of an {@link Operation} on the main thread.
+     */
+    public static abstract class Callback<T> {
+
+        /** Called with the result of the operation. */
+        public abstract void onResult(T result);
+
+        /** Called if the operation threw, or could not be queued. Logs the error by default. */
+        public void onError(Exception e) {
+            Log.e(LOG_TAG, "Database operation failed", e);
+        }
+    }
+
+    /**
+     * Handle for a pending operation. Once cancelled, the callback is never called, and the
+     * operation is dropped if it has not started yet.
+     */
+    public static final class Request {
+
+        private volatile boolean mCancelled;
+
+        private volatile Future<?> mFuture;
+
+        private Request() {
+        }
+
+        public void cancel() {
+            mCancelled = true;
+            Future<?> future = mFuture;
+            if (future != null) {
+                // Don't interrupt a running query, SQLite would only abort it half way through
+                future.cancel(false);
+            }
+        }
+
+        public boolean isCancelled() {
+            return mCancelled;
+        }
+    }
+}
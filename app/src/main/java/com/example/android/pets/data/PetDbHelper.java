@@ -15,9 +15,14 @@
  */
 package com.example.android.pets.data;
 
+import android.content.ContentValues;
 import android.content.Context;
+import android.database.Cursor;
+import android.database.CursorWrapper;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteQueryBuilder;
+import android.os.Build;
 
 import com.example.android.pets.data.PetContract.PetEntry;
 
@@ -32,17 +37,125 @@ public class PetDbHelper extends SQLiteOpenHelper {
     private static final String DATABASE_NAME = "shelter.db";
 
     /**
-     * Database version. If you change the database schema, you must increment the database version.
+     * Database version. The schema is changed by adding a migration to {@link PetMigrations},
+     * which bumps this version.
      */
-    private static final int DATABASE_VERSION = 1;
+    private static final int DATABASE_VERSION = PetMigrations.LATEST_VERSION;
+
+    /** Version of the schema created by {@link #onCreate}, before any migration */
+    private static final int INITIAL_VERSION = 1;
+
+    /**
+     * Fsync the write-ahead log at checkpoints only, instead of on every commit. With write-ahead
+     * logging this cannot corrupt the database, a power loss can only roll back the last commits.
+     */
+    private static final String PRAGMA_SYNCHRONOUS = "NORMAL";
+
+    /**
+     * Page cache of the primary connection, in KiB when negative (8 MiB), so that an import or a
+     * restore that updates every index of the pets table keeps their pages in memory
+     */
+    private static final int PRAGMA_CACHE_SIZE = -8192;
+
+    /**
+     * Number of compiled statements kept by each connection, so that the queries and writes the
+     * app runs over and over are only compiled once. Every statement uses arguments rather than
+     * literal values, so one entry serves each of them whatever the pet.
+     */
+    private static final int SQL_CACHE_SIZE = SQLiteDatabase.MAX_SQL_CACHE_SIZE;
+
+    /** The one instance shared by the whole process */
+    private static PetDbHelper sInstance;
+
+    /**
+     * Returns the {@link PetDbHelper} of the process. There is only one, so that every part of
+     * the app shares the same connection pool instead of opening the database again.
+     *
+     * @param context of the app
+     */
+    public static synchronized PetDbHelper getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new PetDbHelper(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    /** Pets read recently from this database */
+    private final PetCache mCache;
 
     /**
      * Constructs a new instance of {@link PetDbHelper}.
      *
      * @param context of the app
      */
-    public PetDbHelper(Context context) {
-        super(context, DATABASE_NAME, null, DATABASE_VERSION);
+    private PetDbHelper(Context context) {
+        this(context, DATABASE_NAME, PetCache.getInstance());
+    }
+
+    /**
+     * Constructs a {@link PetDbHelper} for a database file other than the one of the app, such as
+     * a scratch database for benchmarks or the database of a shelter, see {@link PetShelters}.
+     * Unlike the shared instance, the caller owns it and must close it. It has a
+     * {@link PetCache} of its own.
+     *
+     * @param context of the app
+     * @param name of the database file
+     */
+    PetDbHelper(Context context, String name) {
+        this(context, name, new PetCache());
+    }
+
+    private PetDbHelper(Context context, String name, PetCache cache) {
+        super(context, name, null, DATABASE_VERSION);
+        mCache = cache;
+
+        // With write-ahead logging, readers don't wait for a write to finish, and the framework
+        // gives them connections of their own so they can run alongside it.
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+            setWriteAheadLoggingEnabled(true);
+        }
+    }
+
+    /**
+     * Returns the cache of the pets of this database.
+     */
+    public PetCache getCache() {
+        return mCache;
+    }
+
+    /**
+     * This is called every time the database is opened.
+     */
+    @Override
+    public void onOpen(SQLiteDatabase db) {
+        super.onOpen(db);
+        db.setMaxSqlCacheSize(SQL_CACHE_SIZE);
+        if (db.isReadOnly()) {
+            return;
+        }
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN) {
+            db.enableWriteAheadLogging();
+        }
+
+        // These only apply to the primary connection, which is the one every write goes through,
+        // so they only tune writes. The framework opens the reader connections of write-ahead
+        // logging on its own, and before API 30 has no way to run pragmas on them, so the
+        // catalog reads with the default settings of SQLite.
+        setPragma(db, "synchronous", PRAGMA_SYNCHRONOUS);
+        setPragma(db, "cache_size", String.valueOf(PRAGMA_CACHE_SIZE));
+    }
+
+    /**
+     * Sets a pragma. Some pragmas return the new value as a row, so they are run as a query
+     * rather than with {@link SQLiteDatabase#execSQL}, which refuses statements that return rows.
+     */
+    private static void setPragma(SQLiteDatabase db, String pragma, String value) {
+        Cursor cursor = db.rawQuery("PRAGMA " + pragma + " = " + value, null);
+        try {
+            cursor.moveToFirst();
+        } finally {
+            cursor.close();
+        }
     }
 
     /**
@@ -60,6 +173,130 @@ public class PetDbHelper extends SQLiteOpenHelper {
 
         // Execute the SQL statement
         db.execSQL(SQL_CREATE_PETS_TABLE);
+
+        // Bring the new database to the latest schema the same way an old one is upgraded
+        PetMigrations.migrate(db, INITIAL_VERSION, DATABASE_VERSION);
+    }
+
+    /**
+     * Runs a query and records its latency and number of rows in {@link QueryMetrics}. SQLite
+     * only runs the query when the cursor is first read, so that is when it is recorded, see
+     * {@link MeasuredCursor}.
+     */
+    public Cursor query(String sql, String[] selectionArgs) {
+        SQLiteDatabase db = getReadableDatabase();
+        long start = System.nanoTime();
+        Cursor cursor = db.rawQuery(sql, selectionArgs);
+        return new MeasuredCursor(cursor, db, sql, selectionArgs, System.nanoTime() - start);
+    }
+
+    /**
+     * Runs a query that returns a single number, such as a count, and records it like
+     * {@link #query(String, String[])}.
+     *
+     * @return the value of the first column of the first row, or 0 if there is no row
+     */
+    public long longForQuery(String sql, String[] selectionArgs) {
+        Cursor cursor = query(sql, selectionArgs);
+        try {
+            return cursor.moveToFirst() ? cursor.getLong(0) : 0;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Queries a table, see {@link SQLiteDatabase#query}, and records it in {@link QueryMetrics}.
+     */
+    public Cursor query(String table, String[] columns, String selection, String[] selectionArgs,
+            String orderBy, String limit) {
+        return query(SQLiteQueryBuilder.buildQueryString(false, table, columns, selection, null,
+                null, orderBy, limit), selectionArgs);
+    }
+
+    /**
+     * Inserts a row, see {@link SQLiteDatabase#insert}, and records it in {@link QueryMetrics}.
+     *
+     * @return the ID of the new row, or -1 if it could not be inserted
+     */
+    public long insert(String table, ContentValues values) {
+        SQLiteDatabase db = getWritableDatabase();
+        long start = System.nanoTime();
+        long id = db.insert(table, null, values);
+        QueryMetrics.getInstance().record(db, "INSERT INTO " + table, null, null,
+                System.nanoTime() - start, id == -1 ? 0 : 1);
+        return id;
+    }
+
+    /**
+     * Updates rows, see {@link SQLiteDatabase#update}, and records it in {@link QueryMetrics}.
+     * The plan captured for a slow update is the one used to find the rows to change.
+     *
+     * @return the number of rows updated
+     */
+    public int update(String table, ContentValues values, String selection,
+            String[] selectionArgs) {
+        SQLiteDatabase db = getWritableDatabase();
+        long start = System.nanoTime();
+        int rows = db.update(table, values, selection, selectionArgs);
+        recordWrite(db, "UPDATE ", table, selection, selectionArgs, System.nanoTime() - start,
+                rows);
+        return rows;
+    }
+
+    /**
+     * Deletes rows, see {@link SQLiteDatabase#delete}, and records it in {@link QueryMetrics}.
+     * The plan captured for a slow delete is the one used to find the rows to delete.
+     *
+     * @return the number of rows deleted
+     */
+    public int delete(String table, String selection, String[] selectionArgs) {
+        SQLiteDatabase db = getWritableDatabase();
+        long start = System.nanoTime();
+        int rows = db.delete(table, selection, selectionArgs);
+        recordWrite(db, "DELETE FROM ", table, selection, selectionArgs,
+                System.nanoTime() - start, rows);
+        return rows;
+    }
+
+    private static void recordWrite(SQLiteDatabase db, String verb, String table,
+            String selection, String[] selectionArgs, long elapsedNanos, int rows) {
+        String where = selection == null ? "" : " WHERE " + selection;
+        QueryMetrics.getInstance().record(db, verb + table + where,
+                "SELECT rowid FROM " + table + where, selectionArgs, elapsedNanos, rows);
+    }
+
+    /**
+     * Returns the pet with the given ID, with the columns of {@link Pet#PROJECTION}. The cursor is
+     * empty if there is no such pet, or if it is in the trash.
+     */
+    public Cursor queryPet(long id) {
+        return query(
+                PetEntry.TABLE_NAME,
+                Pet.PROJECTION,
+                PetEntry._ID + " = ? AND " + PetEntry.COLUMN_PET_DELETED + " = 0",
+                new String[] { String.valueOf(id) },
+                null,
+                null);
+    }
+
+    /**
+     * Reads the pet with the given ID from the database and refreshes it in the
+     * {@link PetCache}. Returns null if there is no such pet.
+     */
+    public Pet loadPet(long id) {
+        Cursor cursor = queryPet(id);
+        try {
+            if (!cursor.moveToFirst()) {
+                mCache.invalidate(id);
+                return null;
+            }
+            Pet pet = Pet.fromCursor(cursor);
+            mCache.put(pet);
+            return pet;
+        } finally {
+            cursor.close();
+        }
     }
 
     /**
@@ -67,6 +304,114 @@ public class PetDbHelper extends SQLiteOpenHelper {
      */
     @Override
     public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
-        // The database is still at version 1, so there's nothing to do be done here.
+        // This runs inside a transaction, so a failed migration leaves the database as it was
+        PetMigrations.migrate(db, oldVersion, newVersion);
+    }
+
+    /**
+     * Cursor that records its query in {@link QueryMetrics} the first time it is read, which is
+     * when SQLite runs the query and counts its rows. The time recorded is the time it took to
+     * compile the query plus the time it took to run it. A cursor that is closed without being
+     * read ran no query, and is not recorded.
+     */
+    private static final class MeasuredCursor extends CursorWrapper {
+
+        private final SQLiteDatabase mDb;
+        private final String mSql;
+        private final String[] mSelectionArgs;
+
+        /** Time it took to compile the query */
+        private final long mCompileNanos;
+
+        private boolean mRecorded;
+
+        MeasuredCursor(Cursor cursor, SQLiteDatabase db, String sql, String[] selectionArgs,
+                long compileNanos) {
+            super(cursor);
+            mDb = db;
+            mSql = sql;
+            mSelectionArgs = selectionArgs;
+            mCompileNanos = compileNanos;
+        }
+
+        /**
+         * Runs the query, the first time only, and records it.
+         */
+        private void record() {
+            if (mRecorded) {
+                return;
+            }
+            mRecorded = true;
+            long start = System.nanoTime();
+            int rows = super.getCount();
+            QueryMetrics.getInstance().record(mDb, mSql, mSql, mSelectionArgs,
+                    mCompileNanos + System.nanoTime() - start, rows);
+        }
+
+        @Override
+        public int getCount() {
+            record();
+            return super.getCount();
+        }
+
+        @Override
+        public boolean move(int offset) {
+            record();
+            return super.move(offset);
+        }
+
+        @Override
+        public boolean moveToPosition(int position) {
+            record();
+            return super.moveToPosition(position);
+        }
+
+        @Override
+        public boolean moveToFirst() {
+            record();
+            return super.moveToFirst();
+        }
+
+        @Override
+        public boolean moveToLast() {
+            record();
+            return super.moveToLast();
+        }
+
+        @Override
+        public boolean moveToNext() {
+            record();
+            return super.moveToNext();
+        }
+
+        @Override
+        public boolean moveToPrevious() {
+            record();
+            return super.moveToPrevious();
+        }
+
+        @Override
+        public boolean isFirst() {
+            record();
+            return super.isFirst();
+        }
+
+        @Override
+        public boolean isLast() {
+            record();
+            return super.isLast();
+        }
+
+        @Override
+        public boolean isBeforeFirst() {
+            record();
+            return super.isBeforeFirst();
+        }
+
+        @Override
+        public boolean isAfterLast() {
+            record();
+            return super.isAfterLast();
+        }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,592 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.pets.data;
+
+import android.content.ContentValues;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.os.SystemClock;
+import android.text.TextUtils;
+import android.util.JsonReader;
+import android.util.JsonToken;
+import android.util.Log;
+
+import com.example.android.pets.data.PetContract.PetEntry;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Imports pets in bulk from a CSV or JSON file.
+ *
+ * The file is streamed one row at a time, so it never has to fit in memory. Rows are inserted
+ * with a single compiled statement that is reused for every row, and committed in chunks of
+ * {@link #DEFAULT_CHUNK_SIZE} rows, so the cost of a transaction (and its sync to disk) is paid
+ * once per chunk instead of once per pet.
+ *
+ * A CSV file must start with a header row naming its columns: name, breed, gender and weight.
+ * A JSON file must hold an array of objects with the same keys. In both formats the gender can
+ * either be one of the {@code GENDER_*} constants of {@link PetEntry} or the words "unknown",
+ * "male" or "female".
+ *
+ * Invalid rows are skipped and reported in the {@link Result}. If the file turns out to be
+ * malformed half way through, the chunk being written is rolled back but the chunks that were
+ * already committed are kept.
+ */
+public class PetImporter {
+
+    public static final String LOG_TAG = PetImporter.class.getSimpleName();
+
+    /** Default number of rows committed in a single transaction */
+    public static final int DEFAULT_CHUNK_SIZE = 1000;
+
+    /** Maximum number of rejected rows whose reason is kept in the {@link Result} */
+    private static final int MAX_REJECTION_MESSAGES = 100;
+
+    /**
+     * Statement that inserts a single pet, compiled once per import. It sets the sync columns
+     * itself, so that the trigger does not have to update every row it inserts.
+     */
+    private static final String SQL_INSERT_PET = "INSERT INTO " + PetEntry.TABLE_NAME + " ("
+            + PetEntry.COLUMN_PET_NAME + ", "
+            + PetEntry.COLUMN_PET_BREED + ", "
+            + PetEntry.COLUMN_PET_GENDER + ", "
+            + PetEntry.COLUMN_PET_WEIGHT + ", "
+            + PetEntry.COLUMN_PET_REMOTE_ID + ", "
+            + PetEntry.COLUMN_PET_MODIFIED + ") VALUES (?, ?, ?, ?, "
+            + PetMigrations.SQL_NEW_REMOTE_ID + ", " + PetMigrations.SQL_NOW_MS + ")";
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /** File formats the importer can read */
+    public enum Format { CSV, JSON }
+
+    /**
+     * Receives progress updates while an import runs. Called on the importing thread, once per
+     * committed chunk.
+     */
+    public interface ProgressListener {
+        void onProgress(int imported, int rejected);
+    }
+
+    private final PetDbHelper mDbHelper;
+
+    private int mChunkSize = DEFAULT_CHUNK_SIZE;
+
+    private boolean mBatched = true;
+
+    /**
+     * Constructs a new {@link PetImporter}.
+     *
+     * @param dbHelper the database helper to import into
+     */
+    public PetImporter(PetDbHelper dbHelper) {
+        mDbHelper = dbHelper;
+    }
+
+    /**
+     * Sets how many rows are committed in a single transaction.
+     */
+    public void setChunkSize(int chunkSize) {
+        if (chunkSize < 1) {
+            throw new IllegalArgumentException("Chunk size must be at least 1");
+        }
+        mChunkSize = chunkSize;
+    }
+
+    /**
+     * Chooses between the batched path (compiled statement, chunked transactions), which is the
+     * default, and the per-row path that calls {@link PetDbHelper#insert} once per pet, each in
+     * its own transaction. The per-row path only exists to compare the throughput of the two.
+     */
+    public void setBatched(boolean batched) {
+        mBatched = batched;
+    }
+
+    /**
+     * Guesses the format of the stream from its first non-blank character: JSON files start with
+     * an array, anything else is read as CSV. The stream must support {@link InputStream#mark}.
+     */
+    public static Format detectFormat(InputStream in) throws IOException {
+        in.mark(64);
+        try {
+            // Skip white space and the bytes of a UTF-8 byte order mark
+            int c;
+            do {
+                c = in.read();
+            } while (c != -1
+                    && (Character.isWhitespace(c) || c == 0xEF || c == 0xBB || c == 0xBF));
+            return c == '[' ? Format.JSON : Format.CSV;
+        } finally {
+            in.reset();
+        }
+    }
+
+    /**
+     * Imports every pet of the given stream, detecting its format. Must be called on a
+     * background thread. The stream is closed when the import is done.
+     */
+    public Result importPets(InputStream in, ProgressListener listener) throws IOException {
+        BufferedInputStream buffered = new BufferedInputStream(in);
+        return importPets(buffered, detectFormat(buffered), listener);
+    }
+
+    /**
+     * Imports every pet of the given stream. Must be called on a background thread. The stream is
+     * closed when the import is done.
+     */
+    public Result importPets(InputStream in, Format format, ProgressListener listener)
+            throws IOException {
+        Reader reader = new BufferedReader(new InputStreamReader(in, UTF_8));
+        RowReader rows = format == Format.JSON
+                ? new JsonRowReader(reader)
+                : new CsvRowReader(reader);
+        try {
+            return mBatched ? importBatched(rows, listener) : importPerRow(rows, listener);
+        } finally {
+            reader.close();
+        }
+    }
+
+    private Result importBatched(RowReader rows, ProgressListener listener) throws IOException {
+        Result result = new Result();
+        long start = SystemClock.elapsedRealtime();
+
+        SQLiteDatabase db = mDbHelper.getWritableDatabase();
+        SQLiteStatement insert = db.compileStatement(SQL_INSERT_PET);
+        try {
+            PetRow row = new PetRow();
+            boolean more = true;
+            while (more) {
+                int inChunk = 0;
+
+                // Only the time spent in the database is recorded, not the time spent parsing
+                long chunkNanos = 0;
+                db.beginTransactionNonExclusive();
+                try {
+                    while (inChunk < mChunkSize && (more = rows.next(row))) {
+                        String error = row.validate();
+                        if (error != null) {
+                            result.reject(rows.getRowNumber(), error);
+                            continue;
+                        }
+                        insert.bindString(1, row.name);
+                        if (TextUtils.isEmpty(row.breed)) {
+                            insert.bindNull(2);
+                        } else {
+                            insert.bindString(2, row.breed);
+                        }
+                        insert.bindLong(3, row.gender);
+                        insert.bindLong(4, row.weight);
+                        long insertStart = System.nanoTime();
+                        insert.executeInsert();
+                        chunkNanos += System.nanoTime() - insertStart;
+                        inChunk++;
+                    }
+                    db.setTransactionSuccessful();
+                } finally {
+                    long commitStart = System.nanoTime();
+                    db.endTransaction();
+                    chunkNanos += System.nanoTime() - commitStart;
+                }
+                QueryMetrics.getInstance().record(db, SQL_INSERT_PET, null, null, chunkNanos,
+                        inChunk);
+                result.mImported += inChunk;
+                if (listener != null) {
+                    listener.onProgress(result.mImported, result.mRejected);
+                }
+            }
+        } finally {
+            insert.close();
+        }
+
+        result.mElapsedMillis = SystemClock.elapsedRealtime() - start;
+        Log.i(LOG_TAG, "Batched import: " + result);
+        return result;
+    }
+
+    private Result importPerRow(RowReader rows, ProgressListener listener) throws IOException {
+        Result result = new Result();
+        long start = SystemClock.elapsedRealtime();
+
+        PetRow row = new PetRow();
+        while (rows.next(row)) {
+            String error = row.validate();
+            if (error != null) {
+                result.reject(rows.getRowNumber(), error);
+                continue;
+            }
+            ContentValues values = new ContentValues();
+            values.put(PetEntry.COLUMN_PET_NAME, row.name);
+            values.put(PetEntry.COLUMN_PET_BREED, row.breed);
+            values.put(PetEntry.COLUMN_PET_GENDER, row.gender);
+            values.put(PetEntry.COLUMN_PET_WEIGHT, row.weight);
+            if (mDbHelper.insert(PetEntry.TABLE_NAME, values) == -1) {
+                result.reject(rows.getRowNumber(), "insert failed");
+            } else {
+                result.mImported++;
+            }
+            if (listener != null && result.mImported % mChunkSize == 0) {
+                listener.onProgress(result.mImported, result.mRejected);
+            }
+        }
+
+        result.mElapsedMillis = SystemClock.elapsedRealtime() - start;
+        Log.i(LOG_TAG, "Per-row import: " + result);
+        return result;
+    }
+
+    /**
+     * Outcome of an import.
+     */
+    public static final class Result {
+
+        private int mImported;
+
+        private int mRejected;
+
+        private long mElapsedMillis;
+
+        private final List<String> mRejections = new ArrayList<>();
+
+        /** Number of pets that were inserted */
+        public int getImportedCount() {
+            return mImported;
+        }
+
+        /** Number of rows that were skipped because they were invalid */
+        public int getRejectedCount() {
+            return mRejected;
+        }
+
+        /**
+         * Why rows were rejected, one message per row, each starting with the row number. Only
+         * the first rejections are kept.
+         */
+        public List<String> getRejections() {
+            return Collections.unmodifiableList(mRejections);
+        }
+
+        /** Wall clock time the import took, in milliseconds */
+        public long getElapsedMillis() {
+            return mElapsedMillis;
+        }
+
+        /** Number of pets inserted per second */
+        public double getRowsPerSecond() {
+            return mImported * 1000.0 / Math.max(1, mElapsedMillis);
+        }
+
+        private void reject(int rowNumber, String reason) {
+            mRejected++;
+            if (mRejections.size() < MAX_REJECTION_MESSAGES) {
+                mRejections.add("Row " + rowNumber + ": " + reason);
+            }
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US, "%d imported, %d rejected in %d ms (%.0f rows/s)",
+                    mImported, mRejected, mElapsedMillis, getRowsPerSecond());
+        }
+    }
+
+    /**
+     * A single row read from the file, reused for every row to avoid allocating one per pet.
+     */
+    private static final class PetRow {
+        String name;
+        String breed;
+        int gender;
+        int weight;
+
+        /** Error found while parsing the row, or null */
+        String parseError;
+
+        void clear() {
+            name = null;
+            breed = null;
+            gender = PetEntry.GENDER_UNKNOWN;
+            weight = 0;
+            parseError = null;
+        }
+
+        void setGender(String value) {
+            if (TextUtils.isEmpty(value)) {
+                gender = PetEntry.GENDER_UNKNOWN;
+                return;
+            }
+            String lower = value.trim().toLowerCase(Locale.US);
+            if (lower.equals("unknown")) {
+                gender = PetEntry.GENDER_UNKNOWN;
+            } else if (lower.equals("male")) {
+                gender = PetEntry.GENDER_MALE;
+            } else if (lower.equals("female")) {
+                gender = PetEntry.GENDER_FEMALE;
+            } else {
+                try {
+                    gender = Integer.parseInt(lower);
+                } catch (NumberFormatException e) {
+                    parseError = "invalid gender \"" + value + "\"";
+                }
+            }
+        }
+
+        void setWeight(String value) {
+            if (TextUtils.isEmpty(value)) {
+                weight = 0;
+                return;
+            }
+            try {
+                weight = Integer.parseInt(value.trim());
+            } catch (NumberFormatException e) {
+                parseError = "invalid weight \"" + value + "\"";
+            }
+        }
+
+        /**
+         * Returns why this row can't be inserted, or null if it is a valid pet.
+         */
+        String validate() {
+            if (parseError != null) {
+                return parseError;
+            }
+            if (TextUtils.isEmpty(name)) {
+                return "missing name";
+            }
+            if (!PetEntry.isValidGender(gender)) {
+                return "invalid gender " + gender;
+            }
+            if (weight < 0) {
+                return "negative weight " + weight;
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Reads the rows of a file one at a time.
+     */
+    private interface RowReader {
+
+        /** Reads the next row into {@code row}. Returns false at the end of the file. */
+        boolean next(PetRow row) throws IOException;
+
+        /** Number of the row that was read last, starting at 1 */
+        int getRowNumber();
+    }
+
+    /**
+     * Reads rows from a CSV file that starts with a header row. Supports quoted fields, with
+     * doubled quotes inside them, and quoted line breaks.
+     */
+    private static final class CsvRowReader implements RowReader {
+
+        private final Reader mReader;
+
+        private final List<String> mFields = new ArrayList<>();
+
+        private final StringBuilder mField = new StringBuilder();
+
+        private int mNameIndex = -1;
+        private int mBreedIndex = -1;
+        private int mGenderIndex = -1;
+        private int mWeightIndex = -1;
+
+        private int mRowNumber;
+
+        private boolean mEndOfFile;
+
+        CsvRowReader(Reader reader) {
+            mReader = reader;
+        }
+
+        @Override
+        public boolean next(PetRow row) throws IOException {
+            if (mNameIndex == -1) {
+                readHeader();
+            }
+            while (readRecord()) {
+                // Skip blank lines
+                if (mFields.size() == 1 && mFields.get(0).isEmpty()) {
+                    continue;
+                }
+                mRowNumber++;
+                row.clear();
+                row.name = field(mNameIndex);
+                row.breed = field(mBreedIndex);
+                row.setGender(field(mGenderIndex));
+                row.setWeight(field(mWeightIndex));
+                return true;
+            }
+            return false;
+        }
+
+        @Override
+        public int getRowNumber() {
+            return mRowNumber;
+        }
+
+        private void readHeader() throws IOException {
+            if (!readRecord()) {
+                throw new IOException("The file is empty");
+            }
+            for (int i = 0; i < mFields.size(); i++) {
+                String column = mFields.get(i).trim().toLowerCase(Locale.US);
+                if (column.equals(PetEntry.COLUMN_PET_NAME)) {
+                    mNameIndex = i;
+                } else if (column.equals(PetEntry.COLUMN_PET_BREED)) {
+                    mBreedIndex = i;
+                } else if (column.equals(PetEntry.COLUMN_PET_GENDER)) {
+                    mGenderIndex = i;
+                } else if (column.equals(PetEntry.COLUMN_PET_WEIGHT)) {
+                    mWeightIndex = i;
+                }
+            }
+            if (mNameIndex == -1) {
+                throw new IOException("The header row has no \"" + PetEntry.COLUMN_PET_NAME
+                        + "\" column");
+            }
+        }
+
+        private String field(int index) {
+            if (index < 0 || index >= mFields.size()) {
+                return null;
+            }
+            String value = mFields.get(index).trim();
+            return value.isEmpty() ? null : value;
+        }
+
+        /**
+         * Reads the fields of the next record into {@link #mFields}. Returns false at the end of
+         * the file.
+         */
+        private boolean readRecord() throws IOException {
+            mFields.clear();
+            if (mEndOfFile) {
+                return false;
+            }
+
+            mField.setLength(0);
+            boolean quoted = false;
+            boolean sawAnything = false;
+            int c;
+            while ((c = mReader.read()) != -1) {
+                sawAnything = true;
+                if (quoted) {
+                    if (c == '"') {
+                        mReader.mark(1);
+                        int following = mReader.read();
+                        if (following == '"') {
+                            mField.append('"');
+                        } else {
+                            quoted = false;
+                            if (following != -1) {
+                                mReader.reset();
+                            }
+                        }
+                    } else {
+                        mField.append((char) c);
+                    }
+                } else if (c == '"') {
+                    quoted = true;
+                } else if (c == ',') {
+                    mFields.add(mField.toString());
+                    mField.setLength(0);
+                } else if (c == '\n') {
+                    break;
+                } else if (c != '\r' && c != '\uFEFF') {
+                    mField.append((char) c);
+                }
+            }
+
+            if (c == -1) {
+                mEndOfFile = true;
+                if (!sawAnything) {
+                    return false;
+                }
+            }
+            mFields.add(mField.toString());
+            return true;
+        }
+    }
+
+    /**
+     * Reads rows from a JSON array of objects.
+     */
+    private static final class JsonRowReader implements RowReader {
+
+        private final JsonReader mReader;
+
+        private boolean mStarted;
+
+        private int mRowNumber;
+
+        JsonRowReader(Reader reader) {
+            mReader = new JsonReader(reader);
+        }
+
+        @Override
+        public boolean next(PetRow row) throws IOException {
+            if (!mStarted) {
+                mReader.beginArray();
+                mStarted = true;
+            }
+            if (!mReader.hasNext()) {
+                mReader.endArray();
+                return false;
+            }
+
+            mRowNumber++;
+            row.clear();
+            mReader.beginObject();
+            while (mReader.hasNext()) {
+                String name = mReader.nextName();
+                if (mReader.peek() == JsonToken.NULL) {
+                    mReader.nextNull();
+                    continue;
+                }
+                if (name.equals(PetEntry.COLUMN_PET_NAME)) {
+                    row.name = mReader.nextString().trim();
+                } else if (name.equals(PetEntry.COLUMN_PET_BREED)) {
+                    row.breed = mReader.nextString().trim();
+                } else if (name.equals(PetEntry.COLUMN_PET_GENDER)) {
+                    row.setGender(mReader.nextString());
+                } else if (name.equals(PetEntry.COLUMN_PET_WEIGHT)) {
+                    row.setWeight(mReader.nextString());
+                } else {
+                    mReader.skipValue();
+                }
+            }
+            mReader.endObject();
+            return true;
+        }
+
+        @Override
+        public int getRowNumber() {
+            return mRowNumber;
+        }
+    }
+}
@@ -0,0 +1,553 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.pets.data;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.SystemClock;
+import android.text.TextUtils;
+import android.util.Log;
+
+import com.example.android.pets.data.PetContract.PetChangeEntry;
+import com.example.android.pets.data.PetContract.PetEntry;
+import com.example.android.pets.data.PetContract.PetSearchEntry;
+import com.example.android.pets.data.PetContract.PetStatsEntry;
+import com.example.android.pets.data.PetContract.PetSyncEntry;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Ordered list of the schema migrations of the pets database.
+ *
+ * Each {@link Migration} takes the database from the version before it to its own
+ * {@link Migration#toVersion}. A new database is created at version 1 and then goes through every
+ * migration, exactly like an old database being upgraded, so both always end up with the same
+ * schema. To change the schema, add a migration at the end of {@link #MIGRATIONS}; the database
+ * version is the target of the last migration.
+ */
+public final class PetMigrations {
+
+    public static final String LOG_TAG = PetMigrations.class.getSimpleName();
+
+    /** Index used to filter pets by breed */
+    public static final String INDEX_BREED = "pets_breed_index";
+
+    /** Index used to filter pets by gender, and by weight within a gender */
+    public static final String INDEX_GENDER_WEIGHT = "pets_gender_weight_index";
+
+    /** Index used to look pets up by name, ignoring case */
+    public static final String INDEX_NAME = "pets_name_index";
+
+    /** Index used to find the pets in the trash */
+    public static final String INDEX_DELETED = "pets_deleted_index";
+
+    /** Unique index used to find a pet by its ID on the registry */
+    public static final String INDEX_REMOTE_ID = "pets_remote_id_index";
+
+    /** SQL expression of a new random {@link PetEntry#COLUMN_PET_REMOTE_ID} */
+    static final String SQL_NEW_REMOTE_ID = "lower(hex(randomblob(16)))";
+
+    /** SQL expression of the current time, in milliseconds since the epoch */
+    static final String SQL_NOW_MS = "CAST((julianday('now') - 2440587.5) * 86400000 AS INTEGER)";
+
+    /**
+     * Covering indexes of {@link PetQuery}: for each index, its name, the columns it filters on,
+     * then the column it sorts on. Each one ends with every other column of
+     * {@link Pet#PROJECTION} and {@link PetEntry#COLUMN_PET_DELETED}, so a page is read from the
+     * index alone.
+     */
+    private static final String[][] COVERING_INDEXES = {
+            { "pets_name_cover", PetEntry.COLUMN_PET_NAME + " COLLATE NOCASE" },
+            { "pets_weight_cover", PetEntry.COLUMN_PET_WEIGHT },
+            { "pets_gender_name_cover", PetEntry.COLUMN_PET_GENDER,
+                    PetEntry.COLUMN_PET_NAME + " COLLATE NOCASE" },
+            { "pets_gender_weight_cover", PetEntry.COLUMN_PET_GENDER,
+                    PetEntry.COLUMN_PET_WEIGHT },
+            { "pets_breed_name_cover", PetEntry.COLUMN_PET_BREED,
+                    PetEntry.COLUMN_PET_NAME + " COLLATE NOCASE" },
+            { "pets_breed_weight_cover", PetEntry.COLUMN_PET_BREED,
+                    PetEntry.COLUMN_PET_WEIGHT } };
+
+    /**
+     * Columns of {@link Pet#PROJECTION} held by the covering indexes at version 7. A migration
+     * must always build the same schema, so it cannot use the projection, which grows with later
+     * versions.
+     */
+    private static final String[] COVERED_COLUMNS_V7 = {
+            PetEntry._ID,
+            PetEntry.COLUMN_PET_NAME,
+            PetEntry.COLUMN_PET_BREED,
+            PetEntry.COLUMN_PET_GENDER,
+            PetEntry.COLUMN_PET_WEIGHT };
+
+    /** Columns of {@link Pet#PROJECTION} held by the covering indexes at version 8 */
+    private static final String[] COVERED_COLUMNS_V8 = {
+            PetEntry._ID,
+            PetEntry.COLUMN_PET_NAME,
+            PetEntry.COLUMN_PET_BREED,
+            PetEntry.COLUMN_PET_GENDER,
+            PetEntry.COLUMN_PET_WEIGHT,
+            PetEntry.COLUMN_PET_PHOTO };
+
+    private static final Migration[] MIGRATIONS = {
+            new Migration(2) {
+                @Override
+                void migrate(SQLiteDatabase db) {
+                    db.execSQL("CREATE INDEX " + INDEX_BREED + " ON " + PetEntry.TABLE_NAME
+                            + " (" + PetEntry.COLUMN_PET_BREED + ")");
+                    db.execSQL("CREATE INDEX " + INDEX_GENDER_WEIGHT + " ON " + PetEntry.TABLE_NAME
+                            + " (" + PetEntry.COLUMN_PET_GENDER + ", "
+                            + PetEntry.COLUMN_PET_WEIGHT + ")");
+                    db.execSQL("CREATE INDEX " + INDEX_NAME + " ON " + PetEntry.TABLE_NAME
+                            + " (" + PetEntry.COLUMN_PET_NAME + " COLLATE NOCASE)");
+
+                    // Give the query planner statistics about the new indexes
+                    db.execSQL("ANALYZE " + PetEntry.TABLE_NAME);
+                }
+            },
+            new Migration(3) {
+                @Override
+                void migrate(SQLiteDatabase db) {
+                    db.execSQL("CREATE VIRTUAL TABLE " + PetSearchEntry.TABLE_NAME + " USING fts4("
+                            + PetEntry.COLUMN_PET_NAME + ", " + PetEntry.COLUMN_PET_BREED + ")");
+                    db.execSQL("INSERT INTO " + PetSearchEntry.TABLE_NAME + " ("
+                            + PetSearchEntry.COLUMN_DOCID + ", " + PetEntry.COLUMN_PET_NAME + ", "
+                            + PetEntry.COLUMN_PET_BREED + ") SELECT " + PetEntry._ID + ", "
+                            + PetEntry.COLUMN_PET_NAME + ", " + PetEntry.COLUMN_PET_BREED
+                            + " FROM " + PetEntry.TABLE_NAME);
+
+                    // Keep the index in sync with every write to the pets table
+                    db.execSQL("CREATE TRIGGER pets_fts_insert AFTER INSERT ON "
+                            + PetEntry.TABLE_NAME + " BEGIN INSERT INTO "
+                            + PetSearchEntry.TABLE_NAME + " (" + PetSearchEntry.COLUMN_DOCID + ", "
+                            + PetEntry.COLUMN_PET_NAME + ", " + PetEntry.COLUMN_PET_BREED
+                            + ") VALUES (new." + PetEntry._ID + ", new." + PetEntry.COLUMN_PET_NAME
+                            + ", new." + PetEntry.COLUMN_PET_BREED + "); END");
+                    db.execSQL("CREATE TRIGGER pets_fts_update AFTER UPDATE OF "
+                            + PetEntry.COLUMN_PET_NAME + ", " + PetEntry.COLUMN_PET_BREED + " ON "
+                            + PetEntry.TABLE_NAME + " BEGIN UPDATE " + PetSearchEntry.TABLE_NAME
+                            + " SET " + PetEntry.COLUMN_PET_NAME + " = new."
+                            + PetEntry.COLUMN_PET_NAME + ", " + PetEntry.COLUMN_PET_BREED
+                            + " = new." + PetEntry.COLUMN_PET_BREED + " WHERE "
+                            + PetSearchEntry.COLUMN_DOCID + " = old." + PetEntry._ID + "; END");
+                    db.execSQL("CREATE TRIGGER pets_fts_delete AFTER DELETE ON "
+                            + PetEntry.TABLE_NAME + " BEGIN DELETE FROM "
+                            + PetSearchEntry.TABLE_NAME + " WHERE " + PetSearchEntry.COLUMN_DOCID
+                            + " = old." + PetEntry._ID + "; END");
+                }
+            },
+            new Migration(4) {
+                @Override
+                void migrate(SQLiteDatabase db) {
+                    db.execSQL("CREATE TABLE " + PetStatsEntry.BREED_TABLE_NAME + " ("
+                            + PetStatsEntry.COLUMN_BREED + " TEXT PRIMARY KEY, "
+                            + PetStatsEntry.COLUMN_COUNT + " INTEGER NOT NULL)");
+                    db.execSQL("CREATE TABLE " + PetStatsEntry.GENDER_TABLE_NAME + " ("
+                            + PetStatsEntry.COLUMN_GENDER + " INTEGER PRIMARY KEY, "
+                            + PetStatsEntry.COLUMN_COUNT + " INTEGER NOT NULL)");
+                    db.execSQL("CREATE TABLE " + PetStatsEntry.WEIGHT_TABLE_NAME + " ("
+                            + PetStatsEntry.COLUMN_WEIGHT_BUCKET + " INTEGER PRIMARY KEY, "
+                            + PetStatsEntry.COLUMN_COUNT + " INTEGER NOT NULL)");
+
+                    for (String[] stat : statsKeys()) {
+                        // Count the pets that are already there
+                        db.execSQL("INSERT INTO " + stat[0] + " (" + stat[1] + ", "
+                                + PetStatsEntry.COLUMN_COUNT + ") SELECT "
+                                + String.format(stat[2], PetEntry.TABLE_NAME)
+                                + " AS stat_key, COUNT(*) FROM " + PetEntry.TABLE_NAME
+                                + " GROUP BY stat_key");
+                    }
+                    createStatsTriggers(db, false);
+                }
+            },
+            new Migration(5) {
+                @Override
+                void migrate(SQLiteDatabase db) {
+                    db.execSQL("ALTER TABLE " + PetEntry.TABLE_NAME + " ADD COLUMN "
+                            + PetEntry.COLUMN_PET_DELETED + " INTEGER NOT NULL DEFAULT 0");
+                    db.execSQL("CREATE INDEX " + INDEX_DELETED + " ON " + PetEntry.TABLE_NAME
+                            + " (" + PetEntry.COLUMN_PET_DELETED + ")");
+
+                    // Pets in the trash must not be counted, no pet is in the trash yet
+                    db.execSQL("DROP TRIGGER pets_stats_insert");
+                    db.execSQL("DROP TRIGGER pets_stats_update");
+                    db.execSQL("DROP TRIGGER pets_stats_delete");
+                    createStatsTriggers(db, true);
+                }
+            },
+            new Migration(6) {
+                @Override
+                void migrate(SQLiteDatabase db) {
+                    // AUTOINCREMENT so that a version is never handed out twice, even after the
+                    // row of the latest change was replaced
+                    db.execSQL("CREATE TABLE " + PetChangeEntry.TABLE_NAME + " ("
+                            + PetChangeEntry.COLUMN_VERSION
+                            + " INTEGER PRIMARY KEY AUTOINCREMENT, "
+                            + PetChangeEntry.COLUMN_PET_ID + " INTEGER NOT NULL UNIQUE)");
+
+                    // Replacing the row of the pet moves it to the end of the log. Pets that
+                    // are purged from the trash already left the lists when they were trashed.
+                    String logNew = " BEGIN INSERT OR REPLACE INTO " + PetChangeEntry.TABLE_NAME
+                            + " (" + PetChangeEntry.COLUMN_PET_ID + ") VALUES (new."
+                            + PetEntry._ID + "); END";
+                    db.execSQL("CREATE TRIGGER pets_changes_insert AFTER INSERT ON "
+                            + PetEntry.TABLE_NAME + logNew);
+                    db.execSQL("CREATE TRIGGER pets_changes_update AFTER UPDATE ON "
+                            + PetEntry.TABLE_NAME + logNew);
+                    db.execSQL("CREATE TRIGGER pets_changes_delete AFTER DELETE ON "
+                            + PetEntry.TABLE_NAME + " WHEN old." + PetEntry.COLUMN_PET_DELETED
+                            + " = 0 BEGIN INSERT OR REPLACE INTO " + PetChangeEntry.TABLE_NAME
+                            + " (" + PetChangeEntry.COLUMN_PET_ID + ") VALUES (old."
+                            + PetEntry._ID + "); END");
+                }
+            },
+            new Migration(7) {
+                @Override
+                void migrate(SQLiteDatabase db) {
+                    for (String[] index : COVERING_INDEXES) {
+                        db.execSQL(coveringIndexSql(index, COVERED_COLUMNS_V7));
+                    }
+
+                    // Each of these is the prefix of a covering index
+                    db.execSQL("DROP INDEX " + INDEX_BREED);
+                    db.execSQL("DROP INDEX " + INDEX_GENDER_WEIGHT);
+                    db.execSQL("DROP INDEX " + INDEX_NAME);
+
+                    // Give the query planner statistics about the new indexes
+                    db.execSQL("ANALYZE " + PetEntry.TABLE_NAME);
+                }
+            },
+            new Migration(8) {
+                @Override
+                void migrate(SQLiteDatabase db) {
+                    db.execSQL("ALTER TABLE " + PetEntry.TABLE_NAME + " ADD COLUMN "
+                            + PetEntry.COLUMN_PET_PHOTO + " TEXT");
+
+                    // The catalog shows the photos, so the covering indexes must hold them too
+                    for (String[] index : COVERING_INDEXES) {
+                        db.execSQL("DROP INDEX " + index[0]);
+                        db.execSQL(coveringIndexSql(index, COVERED_COLUMNS_V8));
+                    }
+                    db.execSQL("ANALYZE " + PetEntry.TABLE_NAME);
+                }
+            },
+            new Migration(9) {
+                @Override
+                void migrate(SQLiteDatabase db) {
+                    db.execSQL("ALTER TABLE " + PetEntry.TABLE_NAME + " ADD COLUMN "
+                            + PetEntry.COLUMN_PET_REMOTE_ID + " TEXT");
+                    db.execSQL("ALTER TABLE " + PetEntry.TABLE_NAME + " ADD COLUMN "
+                            + PetEntry.COLUMN_PET_REMOTE_VERSION + " INTEGER");
+                    db.execSQL("ALTER TABLE " + PetEntry.TABLE_NAME + " ADD COLUMN "
+                            + PetEntry.COLUMN_PET_LOCAL_VERSION + " INTEGER NOT NULL DEFAULT 1");
+                    db.execSQL("ALTER TABLE " + PetEntry.TABLE_NAME + " ADD COLUMN "
+                            + PetEntry.COLUMN_PET_SYNCED_VERSION + " INTEGER NOT NULL DEFAULT 0");
+                    db.execSQL("ALTER TABLE " + PetEntry.TABLE_NAME + " ADD COLUMN "
+                            + PetEntry.COLUMN_PET_MODIFIED + " INTEGER");
+
+                    // Every existing pet is new to the registry
+                    db.execSQL("UPDATE " + PetEntry.TABLE_NAME + " SET "
+                            + PetEntry.COLUMN_PET_REMOTE_ID + " = " + SQL_NEW_REMOTE_ID + ", "
+                            + PetEntry.COLUMN_PET_MODIFIED + " = " + SQL_NOW_MS);
+                    db.execSQL("CREATE UNIQUE INDEX " + INDEX_REMOTE_ID + " ON "
+                            + PetEntry.TABLE_NAME + " (" + PetEntry.COLUMN_PET_REMOTE_ID + ")");
+
+                    db.execSQL("CREATE TABLE " + PetSyncEntry.DELETES_TABLE_NAME + " ("
+                            + PetSyncEntry.COLUMN_REMOTE_ID + " TEXT PRIMARY KEY, "
+                            + PetSyncEntry.COLUMN_REMOTE_VERSION + " INTEGER NOT NULL, "
+                            + PetSyncEntry.COLUMN_MODIFIED + " INTEGER NOT NULL)");
+                    db.execSQL("CREATE TABLE " + PetSyncEntry.STATE_TABLE_NAME + " ("
+                            + PetSyncEntry.COLUMN_KEY + " TEXT PRIMARY KEY, "
+                            + PetSyncEntry.COLUMN_VALUE + " TEXT)");
+
+                    // Writes that don't set the ID or the time, such as the editor, get them here
+                    db.execSQL("CREATE TRIGGER pets_sync_insert AFTER INSERT ON "
+                            + PetEntry.TABLE_NAME + " WHEN new." + PetEntry.COLUMN_PET_REMOTE_ID
+                            + " IS NULL OR new." + PetEntry.COLUMN_PET_MODIFIED + " IS NULL"
+                            + " BEGIN UPDATE " + PetEntry.TABLE_NAME + " SET "
+                            + PetEntry.COLUMN_PET_REMOTE_ID + " = IFNULL(new."
+                            + PetEntry.COLUMN_PET_REMOTE_ID + ", " + SQL_NEW_REMOTE_ID + "), "
+                            + PetEntry.COLUMN_PET_MODIFIED + " = IFNULL(new."
+                            + PetEntry.COLUMN_PET_MODIFIED + ", " + SQL_NOW_MS + ")"
+                            + " WHERE " + PetEntry._ID + " = new." + PetEntry._ID + "; END");
+
+                    // A change that does not set the local version itself is a local change, so
+                    // it makes the pet dirty. The photo stays on the device, so it is left out.
+                    db.execSQL("CREATE TRIGGER pets_sync_update AFTER UPDATE OF "
+                            + PetEntry.COLUMN_PET_NAME + ", " + PetEntry.COLUMN_PET_BREED + ", "
+                            + PetEntry.COLUMN_PET_GENDER + ", " + PetEntry.COLUMN_PET_WEIGHT + ", "
+                            + PetEntry.COLUMN_PET_DELETED + " ON " + PetEntry.TABLE_NAME
+                            + " WHEN new." + PetEntry.COLUMN_PET_LOCAL_VERSION + " = old."
+                            + PetEntry.COLUMN_PET_LOCAL_VERSION
+                            + " BEGIN UPDATE " + PetEntry.TABLE_NAME + " SET "
+                            + PetEntry.COLUMN_PET_LOCAL_VERSION + " = old."
+                            + PetEntry.COLUMN_PET_LOCAL_VERSION + " + 1, "
+                            + PetEntry.COLUMN_PET_MODIFIED + " = " + SQL_NOW_MS
+                            + " WHERE " + PetEntry._ID + " = new." + PetEntry._ID + "; END");
+
+                    // A pet the registry knows is remembered when it is deleted for good, unless
+                    // it was already sent to the registry as deleted
+                    db.execSQL("CREATE TRIGGER pets_sync_delete AFTER DELETE ON "
+                            + PetEntry.TABLE_NAME + " WHEN old."
+                            + PetEntry.COLUMN_PET_REMOTE_VERSION + " IS NOT NULL AND (old."
+                            + PetEntry.COLUMN_PET_DELETED + " = 0 OR old."
+                            + PetEntry.COLUMN_PET_LOCAL_VERSION + " > old."
+                            + PetEntry.COLUMN_PET_SYNCED_VERSION + ")"
+                            + " BEGIN INSERT OR REPLACE INTO " + PetSyncEntry.DELETES_TABLE_NAME
+                            + " (" + PetSyncEntry.COLUMN_REMOTE_ID + ", "
+                            + PetSyncEntry.COLUMN_REMOTE_VERSION + ", "
+                            + PetSyncEntry.COLUMN_MODIFIED + ") VALUES (old."
+                            + PetEntry.COLUMN_PET_REMOTE_ID + ", old."
+                            + PetEntry.COLUMN_PET_REMOTE_VERSION + ", " + SQL_NOW_MS + "); END");
+                }
+            },
+    };
+
+    /** Version of the schema once every migration has run */
+    public static final int LATEST_VERSION = MIGRATIONS[MIGRATIONS.length - 1].toVersion;
+
+    // To prevent someone from accidentally instantiating this class,
+    // give it an empty constructor.
+    private PetMigrations() {}
+
+    /**
+     * Runs, in order, every migration needed to take the database from {@code fromVersion} to
+     * {@code toVersion}. Must be called inside a transaction, as {@link PetDbHelper#onUpgrade}
+     * is, so that a failed migration leaves the database untouched.
+     *
+     * @throws IllegalStateException if there is no path between the two versions
+     */
+    public static void migrate(SQLiteDatabase db, int fromVersion, int toVersion) {
+        if (toVersion > LATEST_VERSION) {
+            throw new IllegalStateException("No migration to version " + toVersion);
+        }
+
+        int version = fromVersion;
+        for (Migration migration : MIGRATIONS) {
+            if (migration.toVersion <= version) {
+                continue;
+            }
+            if (migration.toVersion > toVersion) {
+                break;
+            }
+            if (migration.toVersion != version + 1) {
+                throw new IllegalStateException("No migration from version " + version
+                        + " to " + (version + 1));
+            }
+
+            long start = SystemClock.elapsedRealtime();
+            migration.migrate(db);
+            version = migration.toVersion;
+            Log.i(LOG_TAG, "Migrated to version " + version + " in "
+                    + (SystemClock.elapsedRealtime() - start) + " ms");
+        }
+
+        if (version != toVersion) {
+            throw new IllegalStateException("Could not migrate from version " + fromVersion
+                    + " to " + toVersion);
+        }
+    }
+
+    /**
+     * Returns, for each summary table of {@link PetStatsEntry}: its name, its key column, and the
+     * expression that computes the key of a pet, with a placeholder for the row ("new", "old",
+     * or the pets table).
+     */
+    private static String[][] statsKeys() {
+        return new String[][] {
+                { PetStatsEntry.BREED_TABLE_NAME, PetStatsEntry.COLUMN_BREED,
+                        "IFNULL(%1$s." + PetEntry.COLUMN_PET_BREED + ", '')" },
+                { PetStatsEntry.GENDER_TABLE_NAME, PetStatsEntry.COLUMN_GENDER,
+                        "%1$s." + PetEntry.COLUMN_PET_GENDER },
+                { PetStatsEntry.WEIGHT_TABLE_NAME, PetStatsEntry.COLUMN_WEIGHT_BUCKET,
+                        "%1$s." + PetEntry.COLUMN_PET_WEIGHT + " / "
+                                + PetStatsEntry.WEIGHT_BUCKET_SIZE } };
+    }
+
+    /**
+     * Creates the triggers that keep the summary tables of {@link PetStatsEntry} up to date.
+     *
+     * @param skipTrash whether pets in the trash are left out of the counts, which needs the
+     *                  {@link PetEntry#COLUMN_PET_DELETED} column added in version 5
+     */
+    private static void createStatsTriggers(SQLiteDatabase db, boolean skipTrash) {
+        String newIsLive = skipTrash ? " AND new." + PetEntry.COLUMN_PET_DELETED + " = 0" : "";
+        String oldIsLive = skipTrash ? " AND old." + PetEntry.COLUMN_PET_DELETED + " = 0" : "";
+
+        StringBuilder onInsert = new StringBuilder();
+        StringBuilder onDelete = new StringBuilder();
+        for (String[] stat : statsKeys()) {
+            String table = stat[0];
+            String column = stat[1];
+            String newKey = String.format(stat[2], "new");
+            String oldKey = String.format(stat[2], "old");
+
+            // SQLite on older devices has no upsert, so make sure the row exists before adding
+            // to its count, and drop it once its count goes back to 0
+            onInsert.append("INSERT OR IGNORE INTO ").append(table).append(" (")
+                    .append(column).append(", ").append(PetStatsEntry.COLUMN_COUNT)
+                    .append(skipTrash ? ") SELECT " : ") VALUES (").append(newKey)
+                    .append(skipTrash ? ", 0 WHERE new." + PetEntry.COLUMN_PET_DELETED + " = 0; "
+                            : ", 0); ")
+                    .append("UPDATE ").append(table).append(" SET ")
+                    .append(PetStatsEntry.COLUMN_COUNT).append(" = ")
+                    .append(PetStatsEntry.COLUMN_COUNT).append(" + 1 WHERE ")
+                    .append(column).append(" = ").append(newKey).append(newIsLive).append("; ");
+            onDelete.append("UPDATE ").append(table).append(" SET ")
+                    .append(PetStatsEntry.COLUMN_COUNT).append(" = ")
+                    .append(PetStatsEntry.COLUMN_COUNT).append(" - 1 WHERE ")
+                    .append(column).append(" = ").append(oldKey).append(oldIsLive).append("; ")
+                    .append("DELETE FROM ").append(table).append(" WHERE ")
+                    .append(column).append(" = ").append(oldKey).append(" AND ")
+                    .append(PetStatsEntry.COLUMN_COUNT).append(" <= 0; ");
+        }
+
+        // Moving a pet to the trash or out of it changes the counts like a delete or an insert
+        String updatedColumns = PetEntry.COLUMN_PET_BREED + ", " + PetEntry.COLUMN_PET_GENDER
+                + ", " + PetEntry.COLUMN_PET_WEIGHT
+                + (skipTrash ? ", " + PetEntry.COLUMN_PET_DELETED : "");
+        db.execSQL("CREATE TRIGGER pets_stats_insert AFTER INSERT ON "
+                + PetEntry.TABLE_NAME + " BEGIN " + onInsert + "END");
+        db.execSQL("CREATE TRIGGER pets_stats_update AFTER UPDATE OF " + updatedColumns + " ON "
+                + PetEntry.TABLE_NAME + " BEGIN " + onDelete + onInsert + "END");
+        db.execSQL("CREATE TRIGGER pets_stats_delete AFTER DELETE ON "
+                + PetEntry.TABLE_NAME + " BEGIN " + onDelete + "END");
+    }
+
+    /**
+     * Drops every index of the pets table, to load many pets faster. Call {@link #createIndexes}
+     * in the same transaction once they are loaded.
+     */
+    static void dropIndexes(SQLiteDatabase db) {
+        db.execSQL("DROP INDEX IF EXISTS " + INDEX_DELETED);
+        db.execSQL("DROP INDEX IF EXISTS " + INDEX_REMOTE_ID);
+        for (String[] index : COVERING_INDEXES) {
+            db.execSQL("DROP INDEX IF EXISTS " + index[0]);
+        }
+    }
+
+    /**
+     * Creates again the indexes of the pets table dropped by {@link #dropIndexes}, as they are in
+     * the {@link #LATEST_VERSION} of the schema.
+     */
+    static void createIndexes(SQLiteDatabase db) {
+        db.execSQL("CREATE INDEX " + INDEX_DELETED + " ON " + PetEntry.TABLE_NAME
+                + " (" + PetEntry.COLUMN_PET_DELETED + ")");
+        db.execSQL("CREATE UNIQUE INDEX " + INDEX_REMOTE_ID + " ON " + PetEntry.TABLE_NAME
+                + " (" + PetEntry.COLUMN_PET_REMOTE_ID + ")");
+        for (String[] index : COVERING_INDEXES) {
+            db.execSQL(coveringIndexSql(index, Pet.PROJECTION));
+        }
+        db.execSQL("ANALYZE " + PetEntry.TABLE_NAME);
+    }
+
+    /**
+     * Drops every trigger of the pets table, so that a bulk load does not run them once per pet.
+     * Call {@link #createTriggers} with the returned statements in the same transaction once the
+     * pets are loaded, and bring the tables the triggers maintain up to date.
+     *
+     * @return the statements that create the triggers again, as stored by SQLite
+     */
+    static List<String> dropTriggers(SQLiteDatabase db) {
+        List<String> names = new ArrayList<>();
+        List<String> statements = new ArrayList<>();
+        Cursor cursor = db.rawQuery("SELECT name, sql FROM sqlite_master WHERE type = 'trigger'"
+                + " AND tbl_name = ?", new String[] { PetEntry.TABLE_NAME });
+        try {
+            while (cursor.moveToNext()) {
+                names.add(cursor.getString(0));
+                statements.add(cursor.getString(1));
+            }
+        } finally {
+            cursor.close();
+        }
+        for (String name : names) {
+            db.execSQL("DROP TRIGGER " + name);
+        }
+        return statements;
+    }
+
+    /**
+     * Creates again the triggers dropped by {@link #dropTriggers}.
+     */
+    static void createTriggers(SQLiteDatabase db, List<String> statements) {
+        for (String statement : statements) {
+            db.execSQL(statement);
+        }
+    }
+
+    /**
+     * Fills the full-text index again from the pets table, after a load without triggers.
+     */
+    static void rebuildSearchIndex(SQLiteDatabase db) {
+        db.execSQL("DELETE FROM " + PetSearchEntry.TABLE_NAME);
+        db.execSQL("INSERT INTO " + PetSearchEntry.TABLE_NAME + " ("
+                + PetSearchEntry.COLUMN_DOCID + ", " + PetEntry.COLUMN_PET_NAME + ", "
+                + PetEntry.COLUMN_PET_BREED + ") SELECT " + PetEntry._ID + ", "
+                + PetEntry.COLUMN_PET_NAME + ", " + PetEntry.COLUMN_PET_BREED
+                + " FROM " + PetEntry.TABLE_NAME);
+    }
+
+    /**
+     * Logs a change of every pet of the table in {@link PetChangeEntry}, with one statement
+     * instead of one trigger per pet. Pets in the trash already left the lists, as the trigger
+     * on delete assumes, so they are only logged if {@code includeTrash}.
+     */
+    static void logAllPets(SQLiteDatabase db, boolean includeTrash) {
+        db.execSQL("INSERT OR REPLACE INTO " + PetChangeEntry.TABLE_NAME + " ("
+                + PetChangeEntry.COLUMN_PET_ID + ") SELECT " + PetEntry._ID + " FROM "
+                + PetEntry.TABLE_NAME + (includeTrash ? ""
+                : " WHERE " + PetEntry.COLUMN_PET_DELETED + " = 0"));
+    }
+
+    /**
+     * Returns the statement that creates one of the {@link #COVERING_INDEXES}. The keys are
+     * followed by {@link PetEntry#_ID}, which breaks ties in the sort order, then by the other
+     * covered columns.
+     */
+    private static String coveringIndexSql(String[] index, String[] coveredColumns) {
+        List<String> columns = new ArrayList<>();
+        for (int i = 1; i < index.length; i++) {
+            columns.add(index[i]);
+        }
+        columns.add(PetEntry._ID);
+        for (String column : coveredColumns) {
+            if (!columns.contains(column) && !columns.contains(column + " COLLATE NOCASE")) {
+                columns.add(column);
+            }
+        }
+        columns.add(PetEntry.COLUMN_PET_DELETED);
+        return "CREATE INDEX " + index[0] + " ON " + PetEntry.TABLE_NAME + " ("
+                + TextUtils.join(", ", columns) + ")";
+    }
+
+    /**
+     * A single step of the schema history.
+     */
+    abstract static class Migration {
+
+        /** Version of the schema after this migration */
+        final int toVersion;
+
+        Migration(int toVersion) {
+            this.toVersion = toVersion;
+        }
+
+        /** Changes the schema from {@code toVersion - 1} to {@code toVersion}. */
+        abstract void migrate(SQLiteDatabase db);
+    }
+}
@@ -0,0 +1,339 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.pets.data;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Matrix;
+import android.media.ExifInterface;
+import android.util.Log;
+
+import com.example.android.pets.data.PetContract.PetEntry;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.UUID;
+
+/**
+ * Stores the photos of the pets as JPEG files in the private storage of the app, next to a small
+ * square thumbnail of each one for the catalog.
+ *
+ * The pets table only holds the file name of a photo, see {@link PetEntry#COLUMN_PET_PHOTO}. A
+ * new photo always gets a new name, so a name stands for the same image forever and can be used
+ * as a cache key. Photos that no pet refers to anymore are deleted by {@link #deleteUnused}.
+ *
+ * Every method reads or writes files, so it must be called on a background thread. An instance
+ * can be created on the main thread: the directories are only resolved on first use, as finding
+ * the files directory of the app may create it.
+ */
+public class PetPhotos {
+
+    public static final String LOG_TAG = PetPhotos.class.getSimpleName();
+
+    /** Side of the square thumbnails, in pixels. Every thumbnail has exactly this size. */
+    public static final int THUMBNAIL_SIZE = 192;
+
+    /** Directory of the photos, in the files directory of the app */
+    private static final String PHOTO_DIRECTORY = "photos";
+
+    /** Directory of the thumbnails, in the files directory of the app */
+    private static final String THUMBNAIL_DIRECTORY = "thumbnails";
+
+    /** Longest side of a stored photo, in pixels. Larger images are scaled down. */
+    private static final int MAX_PHOTO_SIZE = 1280;
+
+    private static final int JPEG_QUALITY = 85;
+
+    /**
+     * How long a photo that no pet refers to is kept, as it may have just been picked in the
+     * editor for a pet that is not saved yet.
+     */
+    private static final long UNUSED_PHOTO_AGE_MS = 24 * 60 * 60 * 1000;
+
+    private final Context mContext;
+
+    /** Directories of the photos and thumbnails, null until first used, guarded by this */
+    private File mPhotoDirectory;
+    private File mThumbnailDirectory;
+
+    /**
+     * Constructs a new {@link PetPhotos}.
+     *
+     * @param context of the app
+     */
+    public PetPhotos(Context context) {
+        mContext = context.getApplicationContext();
+    }
+
+    /**
+     * Returns the file of the photo with the given name.
+     */
+    public File getPhotoFile(String photo) {
+        return new File(getPhotoDirectory(), photo);
+    }
+
+    /**
+     * Returns the file of the thumbnail of the photo with the given name. It may not exist yet,
+     * see {@link #createThumbnail}.
+     */
+    public File getThumbnailFile(String photo) {
+        return new File(getThumbnailDirectory(), photo);
+    }
+
+    /**
+     * Stores the image of the given stream as a new photo, scaled down if it is larger than
+     * {@link #MAX_PHOTO_SIZE}, and creates its thumbnail. The stream is closed once read.
+     *
+     * @return the name of the new photo, to store in {@link PetEntry#COLUMN_PET_PHOTO}
+     * @throws IOException if the image cannot be read or stored
+     */
+    public String savePhoto(InputStream in) throws IOException {
+        makeDirectory(getPhotoDirectory());
+        String photo = UUID.randomUUID() + ".jpg";
+
+        // The size of the image must be known before decoding it, which takes a second pass
+        // over the image, so it is copied to a file first
+        File original = new File(getPhotoDirectory(), photo + ".tmp");
+        try {
+            copy(in, original);
+            Bitmap bitmap = decodeScaled(original, MAX_PHOTO_SIZE, false);
+            try {
+                writeJpeg(bitmap, getPhotoFile(photo));
+            } finally {
+                bitmap.recycle();
+            }
+        } finally {
+            if (!original.delete() && original.exists()) {
+                Log.w(LOG_TAG, "Could not delete " + original);
+            }
+        }
+
+        createThumbnail(photo);
+        return photo;
+    }
+
+    /**
+     * Creates the thumbnail of the photo with the given name: the center of the photo, scaled to
+     * a square of {@link #THUMBNAIL_SIZE} pixels.
+     *
+     * @return the file of the thumbnail
+     * @throws IOException if the photo cannot be read or the thumbnail cannot be written
+     */
+    public File createThumbnail(String photo) throws IOException {
+        makeDirectory(getThumbnailDirectory());
+        Bitmap bitmap = decodeScaled(getPhotoFile(photo), THUMBNAIL_SIZE, true);
+        Bitmap thumbnail = null;
+        try {
+            int side = Math.min(bitmap.getWidth(), bitmap.getHeight());
+            Bitmap square = Bitmap.createBitmap(bitmap, (bitmap.getWidth() - side) / 2,
+                    (bitmap.getHeight() - side) / 2, side, side);
+            thumbnail = Bitmap.createScaledBitmap(square, THUMBNAIL_SIZE, THUMBNAIL_SIZE, true);
+            if (square != bitmap && square != thumbnail) {
+                square.recycle();
+            }
+            File file = getThumbnailFile(photo);
+            writeJpeg(thumbnail, file);
+            return file;
+        } finally {
+            if (thumbnail != null && thumbnail != bitmap) {
+                thumbnail.recycle();
+            }
+            bitmap.recycle();
+        }
+    }
+
+    /**
+     * Deletes the photos, and their thumbnails, that no pet refers to, including the pets in the
+     * trash, and that are older than {@link #UNUSED_PHOTO_AGE_MS}. The photos are shared by
+     * every shelter, so the pets of all of them are checked.
+     *
+     * @return the number of photos deleted
+     */
+    public int deleteUnused(PetShelters shelters) {
+        File[] files = getPhotoDirectory().listFiles();
+        if (files == null || files.length == 0) {
+            return 0;
+        }
+
+        final Set<String> used = new HashSet<>();
+        for (String shelter : shelters.getShelters()) {
+            shelters.run(shelter, new PetDataSource.Operation<Void>() {
+                @Override
+                public Void run(PetDbHelper dbHelper) {
+                    readPhotos(dbHelper, used);
+                    return null;
+                }
+            });
+        }
+
+        long oldest = System.currentTimeMillis() - UNUSED_PHOTO_AGE_MS;
+        int deleted = 0;
+        for (File file : files) {
+            if (used.contains(file.getName()) || file.lastModified() > oldest) {
+                continue;
+            }
+            getThumbnailFile(file.getName()).delete();
+            if (file.delete()) {
+                deleted++;
+            }
+        }
+        if (deleted > 0) {
+            Log.i(LOG_TAG, "Deleted " + deleted + " unused photos");
+        }
+        return deleted;
+    }
+
+    /**
+     * Adds the names of the photos that the pets of a database refer to.
+     */
+    private static void readPhotos(PetDbHelper dbHelper, Set<String> photos) {
+        Cursor cursor = dbHelper.query("SELECT DISTINCT " + PetEntry.COLUMN_PET_PHOTO
+                + " FROM " + PetEntry.TABLE_NAME
+                + " WHERE " + PetEntry.COLUMN_PET_PHOTO + " IS NOT NULL", null);
+        try {
+            while (cursor.moveToNext()) {
+                photos.add(cursor.getString(0));
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private synchronized File getPhotoDirectory() {
+        if (mPhotoDirectory == null) {
+            mPhotoDirectory = new File(mContext.getFilesDir(), PHOTO_DIRECTORY);
+        }
+        return mPhotoDirectory;
+    }
+
+    private synchronized File getThumbnailDirectory() {
+        if (mThumbnailDirectory == null) {
+            mThumbnailDirectory = new File(mContext.getFilesDir(), THUMBNAIL_DIRECTORY);
+        }
+        return mThumbnailDirectory;
+    }
+
+    /**
+     * Decodes the image of the given file, upright, at the smallest power of two that keeps its
+     * sides at least {@code size} pixels (its shortest side if {@code fill}, otherwise its
+     * longest side), then scales it down to exactly that if it is still larger.
+     */
+    private static Bitmap decodeScaled(File file, int size, boolean fill) throws IOException {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeFile(file.getPath(), options);
+        if (options.outWidth <= 0 || options.outHeight <= 0) {
+            throw new IOException("Not an image: " + file);
+        }
+
+        int side = fill ? Math.min(options.outWidth, options.outHeight)
+                : Math.max(options.outWidth, options.outHeight);
+        options.inJustDecodeBounds = false;
+        options.inSampleSize = 1;
+        while (side / (options.inSampleSize * 2) >= size) {
+            options.inSampleSize *= 2;
+        }
+        Bitmap bitmap = BitmapFactory.decodeFile(file.getPath(), options);
+        if (bitmap == null) {
+            throw new IOException("Could not decode " + file);
+        }
+
+        Matrix matrix = new Matrix();
+        float scale = (float) size / (side / options.inSampleSize);
+        if (scale < 1) {
+            matrix.postScale(scale, scale);
+        }
+        matrix.postRotate(readRotation(file));
+        if (matrix.isIdentity()) {
+            return bitmap;
+        }
+        Bitmap transformed = Bitmap.createBitmap(bitmap, 0, 0, bitmap.getWidth(),
+                bitmap.getHeight(), matrix, true);
+        if (transformed != bitmap) {
+            bitmap.recycle();
+        }
+        return transformed;
+    }
+
+    /**
+     * Returns the rotation, in degrees, that turns the image of the given file upright, as
+     * recorded by the camera in its EXIF data.
+     */
+    private static int readRotation(File file) {
+        try {
+            switch (new ExifInterface(file.getPath()).getAttributeInt(
+                    ExifInterface.TAG_ORIENTATION, ExifInterface.ORIENTATION_NORMAL)) {
+                case ExifInterface.ORIENTATION_ROTATE_90:
+                    return 90;
+                case ExifInterface.ORIENTATION_ROTATE_180:
+                    return 180;
+                case ExifInterface.ORIENTATION_ROTATE_270:
+                    return 270;
+                default:
+                    return 0;
+            }
+        } catch (IOException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * Writes the bitmap to the given file as a JPEG. The image is written to a temporary file
+     * first, so that a reader never sees half of it.
+     */
+    private static void writeJpeg(Bitmap bitmap, File file) throws IOException {
+        File temporary = new File(file.getPath() + ".tmp");
+        OutputStream out = new FileOutputStream(temporary);
+        try {
+            if (!bitmap.compress(Bitmap.CompressFormat.JPEG, JPEG_QUALITY, out)) {
+                throw new IOException("Could not compress " + file);
+            }
+        } finally {
+            out.close();
+        }
+        if (!temporary.renameTo(file)) {
+            temporary.delete();
+            throw new IOException("Could not write " + file);
+        }
+    }
+
+    private static void copy(InputStream in, File file) throws IOException {
+        OutputStream out = new FileOutputStream(file);
+        try {
+            byte[] buffer = new byte[8192];
+            int count;
+            while ((count = in.read(buffer)) != -1) {
+                out.write(buffer, 0, count);
+            }
+        } finally {
+            out.close();
+            in.close();
+        }
+    }
+
+    private static void makeDirectory(File directory) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Could not create " + directory);
+        }
+    }
+}
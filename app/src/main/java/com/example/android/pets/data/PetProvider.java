@@ -0,0 +1,479 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.pets.data;
+
+import android.content.ContentProvider;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.content.OperationApplicationException;
+import android.content.UriMatcher;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.net.Uri;
+import android.util.Log;
+
+import com.example.android.pets.data.PetContract.PetEntry;
+
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * {@link ContentProvider} for Pets app.
+ *
+ * Change notifications are sent for the URI of each pet that changed, so an observer of
+ * {@link PetEntry#CONTENT_URI} (registered with notifyForDescendants) can re-query only those
+ * pets. When a single operation touches more than {@link #MAX_ROW_NOTIFICATIONS} pets, or touches
+ * pets it did not select by ID, a single notification is sent for the whole table instead.
+ *
+ * Pets in the trash are neither returned nor changed. Deleting pets moves them to the trash, in
+ * chunks, see {@link PetTrash}.
+ */
+public class PetProvider extends ContentProvider {
+
+    /** Tag for the log messages */
+    public static final String LOG_TAG = PetProvider.class.getSimpleName();
+
+    /** URI matcher code for the content URI for the pets table */
+    private static final int PETS = 100;
+
+    /** URI matcher code for the content URI for a single pet in the pets table */
+    private static final int PET_ID = 101;
+
+    /**
+     * Above this many changed pets, observers are told that the whole table changed rather than
+     * receiving one notification per pet.
+     */
+    private static final int MAX_ROW_NOTIFICATIONS = 50;
+
+    /** Selects the pets that are not in the trash, the only ones queries can see */
+    private static final String SELECTION_LIVE = PetEntry.COLUMN_PET_DELETED + " = 0";
+
+    /**
+     * UriMatcher object to match a content URI to a corresponding code.
+     * The input passed into the constructor represents the code to return for the root URI.
+     * It's common to use NO_MATCH as the input for this case.
+     */
+    private static final UriMatcher sUriMatcher = new UriMatcher(UriMatcher.NO_MATCH);
+
+    // Static initializer. This is run the first time anything is called from this class.
+    static {
+        // The content URI of the form "content://com.example.android.pets/pets" will map to the
+        // integer code {@link #PETS}. This URI is used to provide access to MULTIPLE rows
+        // of the pets table.
+        sUriMatcher.addURI(PetContract.CONTENT_AUTHORITY, PetContract.PATH_PETS, PETS);
+
+        // The content URI of the form "content://com.example.android.pets/pets/#" will map to the
+        // integer code {@link #PET_ID}. This URI is used to provide access to ONE single row
+        // of the pets table.
+        sUriMatcher.addURI(PetContract.CONTENT_AUTHORITY, PetContract.PATH_PETS + "/#", PET_ID);
+    }
+
+    /** Database helper object */
+    private PetDbHelper mDbHelper;
+
+    /**
+     * The batch running on the current thread, or null when no batch is running. Its
+     * notifications and its changes to the cache wait for it to commit.
+     */
+    private final ThreadLocal<PendingBatch> mPendingBatch = new ThreadLocal<>();
+
+    @Override
+    public boolean onCreate() {
+        mDbHelper = PetDbHelper.getInstance(getContext());
+        return true;
+    }
+
+    @Override
+    public Cursor query(Uri uri, String[] projection, String selection, String[] selectionArgs,
+            String sortOrder) {
+        // This cursor will hold the result of the query
+        Cursor cursor;
+
+        // Figure out if the URI matcher can match the URI to a specific code
+        int match = sUriMatcher.match(uri);
+        switch (match) {
+            case PETS:
+                // For the PETS code, query the pets table directly with the given
+                // projection, selection, selection arguments, and sort order. The cursor
+                // could contain multiple rows of the pets table. Pets in the trash are left
+                // out, whatever the selection.
+                String limit = uri.getQueryParameter(PetContract.QUERY_PARAMETER_LIMIT);
+                cursor = mDbHelper.query(PetEntry.TABLE_NAME, projection,
+                        DatabaseUtils.concatenateWhere(SELECTION_LIVE, selection), selectionArgs,
+                        sortOrder, limit);
+                break;
+            case PET_ID:
+                // For the PET_ID code, extract out the ID from the URI.
+                // For an example URI such as "content://com.example.android.pets/pets/3",
+                // the selection will be "_id=?" and the selection argument will be a
+                // String array containing the actual ID of 3 in this case.
+                selection = PetEntry._ID + "=? AND " + SELECTION_LIVE;
+                selectionArgs = new String[] { String.valueOf(ContentUris.parseId(uri)) };
+
+                // This will perform a query on the pets table where the _id equals 3 to return a
+                // Cursor containing that row of the table.
+                cursor = mDbHelper.query(PetEntry.TABLE_NAME, projection, selection,
+                        selectionArgs, sortOrder, null);
+                break;
+            default:
+                throw new IllegalArgumentException("Cannot query unknown URI " + uri);
+        }
+
+        // Set notification URI on the Cursor,
+        // so we know what content URI the Cursor was created for.
+        // If the data at this URI changes, then we know we need to update the Cursor.
+        cursor.setNotificationUri(getContext().getContentResolver(), uri);
+
+        return cursor;
+    }
+
+    @Override
+    public Uri insert(Uri uri, ContentValues contentValues) {
+        final int match = sUriMatcher.match(uri);
+        switch (match) {
+            case PETS:
+                return insertPet(uri, contentValues);
+            default:
+                throw new IllegalArgumentException("Insertion is not supported for " + uri);
+        }
+    }
+
+    /**
+     * Insert a pet into the database with the given content values. Return the new content URI
+     * for that specific row in the database.
+     */
+    private Uri insertPet(Uri uri, ContentValues values) {
+        validatePet(values, true);
+
+        // Insert the new pet with the given values
+        long id = mDbHelper.insert(PetEntry.TABLE_NAME, values);
+        // If the ID is -1, then the insertion failed. Log an error and return null.
+        if (id == -1) {
+            Log.e(LOG_TAG, "Failed to insert row for " + uri);
+            return null;
+        }
+
+        // The new pet is likely to be opened next, so keep it in the cache
+        cachePet(Pet.fromInsertedValues(id, values));
+
+        // Notify all listeners that the data has changed for the pet content URI
+        Uri petUri = ContentUris.withAppendedId(uri, id);
+        notifyChange(petUri);
+
+        // Return the new URI with the ID (of the newly inserted row) appended at the end
+        return petUri;
+    }
+
+    /**
+     * Inserts all the given pets in a single transaction. Either every pet is inserted, or, if
+     * one of them is invalid, none is.
+     */
+    @Override
+    public int bulkInsert(Uri uri, ContentValues[] values) {
+        if (sUriMatcher.match(uri) != PETS) {
+            throw new IllegalArgumentException("Insertion is not supported for " + uri);
+        }
+
+        for (ContentValues pet : values) {
+            validatePet(pet, true);
+        }
+
+        SQLiteDatabase database = mDbHelper.getWritableDatabase();
+        Set<Uri> changed = new LinkedHashSet<>();
+        long start = System.nanoTime();
+        database.beginTransactionNonExclusive();
+        try {
+            for (ContentValues pet : values) {
+                long id = database.insertOrThrow(PetEntry.TABLE_NAME, null, pet);
+                changed.add(ContentUris.withAppendedId(uri, id));
+            }
+            database.setTransactionSuccessful();
+        } finally {
+            database.endTransaction();
+        }
+        QueryMetrics.getInstance().record(database, "BULK INSERT INTO " + PetEntry.TABLE_NAME,
+                null, null, System.nanoTime() - start, values.length);
+
+        notifyChanges(changed);
+        return values.length;
+    }
+
+    /**
+     * Applies all the given operations in a single transaction, so a batch of changes costs one
+     * commit. If one operation fails, none of them is applied.
+     */
+    @Override
+    public ContentProviderResult[] applyBatch(ArrayList<ContentProviderOperation> operations)
+            throws OperationApplicationException {
+        SQLiteDatabase database = mDbHelper.getWritableDatabase();
+        PendingBatch batch = new PendingBatch();
+        ContentProviderResult[] results;
+
+        mPendingBatch.set(batch);
+        database.beginTransactionNonExclusive();
+        try {
+            results = super.applyBatch(operations);
+            database.setTransactionSuccessful();
+        } finally {
+            database.endTransaction();
+            mPendingBatch.remove();
+        }
+
+        PetCache cache = mDbHelper.getCache();
+        if (batch.invalidateAll) {
+            cache.invalidateAll();
+        } else {
+            for (long id : batch.invalidatedIds) {
+                cache.invalidate(id);
+            }
+        }
+        cache.putAll(batch.cachedPets.values());
+        notifyChanges(batch.notifications);
+        return results;
+    }
+
+    @Override
+    public int update(Uri uri, ContentValues contentValues, String selection,
+            String[] selectionArgs) {
+        final int match = sUriMatcher.match(uri);
+        switch (match) {
+            case PETS:
+                return updatePet(uri, contentValues,
+                        DatabaseUtils.concatenateWhere(SELECTION_LIVE, selection), selectionArgs);
+            case PET_ID:
+                // For the PET_ID code, extract out the ID from the URI,
+                // so we know which row to update. Selection will be "_id=?" and selection
+                // arguments will be a String array containing the actual ID.
+                selection = PetEntry._ID + "=? AND " + SELECTION_LIVE;
+                selectionArgs = new String[] { String.valueOf(ContentUris.parseId(uri)) };
+                return updatePet(uri, contentValues, selection, selectionArgs);
+            default:
+                throw new IllegalArgumentException("Update is not supported for " + uri);
+        }
+    }
+
+    /**
+     * Update pets in the database with the given content values. Apply the changes to the rows
+     * specified in the selection and selection arguments (which could be 0 or 1 or more pets).
+     * Return the number of rows that were successfully updated.
+     */
+    private int updatePet(Uri uri, ContentValues values, String selection, String[] selectionArgs) {
+        validatePet(values, false);
+
+        // If there are no values to update, then don't try to update the database
+        if (values.size() == 0) {
+            return 0;
+        }
+
+        // Otherwise, perform the update on the database and get the number of rows affected
+        int rowsUpdated = mDbHelper.update(PetEntry.TABLE_NAME, values, selection, selectionArgs);
+        invalidateCache(uri);
+
+        // If 1 or more rows were updated, then notify all listeners that the data at the
+        // given URI has changed
+        if (rowsUpdated != 0) {
+            notifyChange(uri);
+        }
+
+        // Return the number of rows updated
+        return rowsUpdated;
+    }
+
+    @Override
+    public int delete(Uri uri, String selection, String[] selectionArgs) {
+        // Track the number of rows that were deleted
+        int rowsDeleted;
+
+        final int match = sUriMatcher.match(uri);
+        switch (match) {
+            case PETS:
+                // Move every pet to the trash, a chunk at a time. Pets can only be picked for
+                // deletion by their URI.
+                if (selection != null) {
+                    throw new IllegalArgumentException(
+                            "Deletion with a selection is not supported for " + uri);
+                }
+                rowsDeleted = new PetTrash(mDbHelper).trashAll().count;
+                break;
+            case PET_ID:
+                // Move the single pet given by the ID in the URI to the trash
+                rowsDeleted = new PetTrash(mDbHelper).trash(ContentUris.parseId(uri)).count;
+                break;
+            default:
+                throw new IllegalArgumentException("Deletion is not supported for " + uri);
+        }
+
+        invalidateCache(uri);
+
+        // If 1 or more rows were deleted, then notify all listeners that the data at the
+        // given URI has changed
+        if (rowsDeleted != 0) {
+            notifyChange(uri);
+        }
+
+        // Return the number of rows deleted
+        return rowsDeleted;
+    }
+
+    @Override
+    public String getType(Uri uri) {
+        final int match = sUriMatcher.match(uri);
+        switch (match) {
+            case PETS:
+                return PetEntry.CONTENT_LIST_TYPE;
+            case PET_ID:
+                return PetEntry.CONTENT_ITEM_TYPE;
+            default:
+                throw new IllegalStateException("Unknown URI " + uri + " with match " + match);
+        }
+    }
+
+    /**
+     * Prints the {@link QueryMetrics} and the state of the {@link PetCache}, for
+     * {@code adb shell dumpsys activity provider com.example.android.pets}. Adding
+     * {@code --reset} clears the metrics, and {@code --slow-ms <threshold>} changes the latency
+     * above which statements go to the slow-query log.
+     */
+    @Override
+    public void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+        if (args != null && args.length > 0 && "--reset".equals(args[0])) {
+            QueryMetrics.getInstance().reset();
+            writer.println("Query metrics reset");
+            return;
+        }
+        if (args != null && args.length > 1 && "--slow-ms".equals(args[0])) {
+            QueryMetrics.getInstance().setSlowQueryThresholdMillis(Long.parseLong(args[1]));
+            writer.println("Slow query threshold set to " + args[1] + " ms");
+            return;
+        }
+        writer.println(mDbHelper.getCache());
+        writer.println();
+        QueryMetrics.getInstance().dump(writer);
+    }
+
+    /**
+     * Checks the attributes of a pet before they are written. When inserting, every required
+     * attribute must be present. When updating, only the attributes that are present are checked.
+     */
+    private static void validatePet(ContentValues values, boolean inserting) {
+        switch (PetEntry.validate(values, inserting)) {
+            case PetEntry.INVALID_NAME:
+                throw new IllegalArgumentException("Pet requires a name");
+            case PetEntry.INVALID_GENDER:
+                throw new IllegalArgumentException("Pet requires valid gender");
+            case PetEntry.INVALID_WEIGHT:
+                throw new IllegalArgumentException("Pet requires valid weight");
+        }
+    }
+
+    /**
+     * Puts a pet in the {@link PetCache}, or queues it if a batch is running on this thread, so
+     * that a batch that is rolled back leaves no pet in the cache.
+     */
+    private void cachePet(Pet pet) {
+        PendingBatch batch = mPendingBatch.get();
+        if (batch != null) {
+            batch.cachedPets.put(pet.id, pet);
+        } else {
+            mDbHelper.getCache().put(pet);
+        }
+    }
+
+    /**
+     * Drops the pets touched by a write to the given URI from the {@link PetCache}: the pet
+     * itself for a single pet URI, every pet otherwise. If a batch is running on this thread,
+     * they are dropped from the pets it would put in the cache, and from the cache once it
+     * commits: a reader on another thread still sees the old rows until then, and could cache
+     * one again right after it was dropped.
+     */
+    private void invalidateCache(Uri uri) {
+        PendingBatch batch = mPendingBatch.get();
+        if (sUriMatcher.match(uri) == PET_ID) {
+            long id = ContentUris.parseId(uri);
+            if (batch != null) {
+                batch.cachedPets.remove(id);
+                batch.invalidatedIds.add(id);
+            } else {
+                mDbHelper.getCache().invalidate(id);
+            }
+        } else {
+            if (batch != null) {
+                batch.cachedPets.clear();
+                batch.invalidateAll = true;
+            } else {
+                mDbHelper.getCache().invalidateAll();
+            }
+        }
+    }
+
+    /**
+     * Notifies the observers that the data at the given URI changed, or queues the notification
+     * if a batch is running on this thread.
+     */
+    private void notifyChange(Uri uri) {
+        PendingBatch batch = mPendingBatch.get();
+        if (batch != null) {
+            batch.notifications.add(uri);
+        } else {
+            getContext().getContentResolver().notifyChange(uri, null);
+        }
+    }
+
+    /**
+     * Notifies the observers of every given URI, or of the whole table if there are too many.
+     */
+    private void notifyChanges(Set<Uri> uris) {
+        if (uris.isEmpty()) {
+            return;
+        }
+        if (uris.size() > MAX_ROW_NOTIFICATIONS || uris.contains(PetEntry.CONTENT_URI)) {
+            notifyChange(PetEntry.CONTENT_URI);
+            return;
+        }
+        for (Uri uri : uris) {
+            notifyChange(uri);
+        }
+    }
+
+    /**
+     * What a batch does once it commits. Notifying from inside the transaction would let
+     * observers re-query before the changes are visible, and caching from inside it would keep
+     * pets that a rollback discards. The pets are dropped from the cache before the new ones are
+     * put in it, and nothing is done if the batch is rolled back.
+     */
+    private static final class PendingBatch {
+
+        /** URIs to notify */
+        final Set<Uri> notifications = new LinkedHashSet<>();
+
+        /** IDs of the pets to drop from the cache */
+        final Set<Long> invalidatedIds = new LinkedHashSet<>();
+
+        /** True to drop every pet from the cache */
+        boolean invalidateAll;
+
+        /** Pets to put in the cache, by ID */
+        final Map<Long, Pet> cachedPets = new LinkedHashMap<>();
+    }
+}
@@ -0,0 +1,262 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.pets.data;
+
+import android.database.Cursor;
+
+import com.example.android.pets.data.PetContract.PetEntry;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * A filtered and sorted list of pets, read a page at a time. Build one with {@link Builder}:
+ *
+ *   PetQuery query = new PetQuery.Builder()
+ *           .setGender(PetEntry.GENDER_FEMALE)
+ *           .setSortOrder(PetQuery.SORT_BY_WEIGHT, true)
+ *           .build();
+ *
+ * Pages are read with keyset pagination: each page starts right after the last pet of the
+ * previous one, found by seeking in an index rather than skipping rows with OFFSET, so a page
+ * deep in the list loads as fast as the first one. Ties in the sort key are broken by
+ * {@link PetEntry#_ID}, so every pet has a single place in the list.
+ *
+ * Each combination of filter and sort key is served by one of the covering indexes created in
+ * {@link PetMigrations}, which hold every column of {@link Pet#PROJECTION}, so a page is read
+ * from the index alone without looking up the pets table.
+ */
+public final class PetQuery implements Comparator<Pet> {
+
+    /** Sorts pets by {@link PetEntry#_ID}, the order in which they were added */
+    public static final int SORT_BY_ID = 0;
+
+    /** Sorts pets by name, ignoring case */
+    public static final int SORT_BY_NAME = 1;
+
+    /** Sorts pets by weight */
+    public static final int SORT_BY_WEIGHT = 2;
+
+    /** Value of {@link #mGender} when pets of every gender are shown */
+    private static final int ANY_GENDER = -1;
+
+    /** Every pet, in the order in which they were added */
+    public static final PetQuery ALL = new Builder().build();
+
+    private final int mSortBy;
+    private final boolean mDescending;
+    private final int mGender;
+    private final boolean mFilterBreed;
+    private final String mBreed;
+
+    private PetQuery(Builder builder) {
+        mSortBy = builder.mSortBy;
+        mDescending = builder.mDescending;
+        mGender = builder.mGender;
+        mFilterBreed = builder.mFilterBreed;
+        mBreed = builder.mBreed;
+    }
+
+    /**
+     * Returns the sort key, one of the {@code SORT_BY_*} constants.
+     */
+    public int getSortBy() {
+        return mSortBy;
+    }
+
+    /**
+     * Returns whether the pets are sorted in descending order.
+     */
+    public boolean isDescending() {
+        return mDescending;
+    }
+
+    /**
+     * Returns the gender of the pets shown, or -1 if pets of every gender are shown.
+     */
+    public int getGender() {
+        return mGender;
+    }
+
+    /**
+     * Returns a cursor on the page of pets that follows the given pet, with the columns of
+     * {@link Pet#PROJECTION}. Must be called on a background thread.
+     *
+     * @param dbHelper the database helper to read the pets from
+     * @param after the last pet of the previous page, or null for the first page
+     * @param limit the maximum number of pets in the page
+     */
+    public Cursor queryPage(PetDbHelper dbHelper, Pet after, int limit) {
+        StringBuilder selection = new StringBuilder(PetEntry.COLUMN_PET_DELETED + " = 0");
+        List<String> selectionArgs = new ArrayList<>();
+        if (mGender != ANY_GENDER) {
+            selection.append(" AND ").append(PetEntry.COLUMN_PET_GENDER).append(" = ?");
+            selectionArgs.add(String.valueOf(mGender));
+        }
+        if (mFilterBreed && mBreed == null) {
+            selection.append(" AND ").append(PetEntry.COLUMN_PET_BREED).append(" IS NULL");
+        } else if (mFilterBreed) {
+            selection.append(" AND ").append(PetEntry.COLUMN_PET_BREED).append(" = ?");
+            selectionArgs.add(mBreed);
+        }
+
+        String comparison = mDescending ? " < ?" : " > ?";
+        if (after != null && mSortBy == SORT_BY_ID) {
+            selection.append(" AND ").append(PetEntry._ID).append(comparison);
+            selectionArgs.add(String.valueOf(after.id));
+        } else if (after != null) {
+            // Older versions of SQLite have no row values, so (key, _id) > (?, ?) is spelled
+            // out. The first term alone is what lets the index seek to the start of the page.
+            String key = sortColumn();
+            String value = mSortBy == SORT_BY_NAME ? after.name : String.valueOf(after.weight);
+            selection.append(" AND ").append(key).append(mDescending ? " <= ?" : " >= ?")
+                    .append(" AND (").append(key).append(comparison)
+                    .append(" OR ").append(PetEntry._ID).append(comparison).append(")");
+            selectionArgs.add(value);
+            selectionArgs.add(value);
+            selectionArgs.add(String.valueOf(after.id));
+        }
+
+        String direction = mDescending ? " DESC" : " ASC";
+        String orderBy = mSortBy == SORT_BY_ID
+                ? PetEntry._ID + direction
+                : sortColumn() + direction + ", " + PetEntry._ID + direction;
+
+        return dbHelper.query(
+                PetEntry.TABLE_NAME,
+                Pet.PROJECTION,
+                selection.toString(),
+                selectionArgs.toArray(new String[selectionArgs.size()]),
+                orderBy,
+                String.valueOf(limit));
+    }
+
+    /**
+     * Returns whether the given pet is part of this list.
+     */
+    public boolean matches(Pet pet) {
+        if (mGender != ANY_GENDER && pet.gender != mGender) {
+            return false;
+        }
+        if (mFilterBreed) {
+            return mBreed == null ? pet.breed == null : mBreed.equals(pet.breed);
+        }
+        return true;
+    }
+
+    /**
+     * Compares two pets in the order of this list, the same order as the pages.
+     */
+    @Override
+    public int compare(Pet a, Pet b) {
+        int result = 0;
+        if (mSortBy == SORT_BY_NAME) {
+            result = compareNoCase(a.name, b.name);
+        } else if (mSortBy == SORT_BY_WEIGHT) {
+            result = a.weight < b.weight ? -1 : (a.weight == b.weight ? 0 : 1);
+        }
+        if (result == 0) {
+            result = a.id < b.id ? -1 : (a.id == b.id ? 0 : 1);
+        }
+        return mDescending ? -result : result;
+    }
+
+    /**
+     * Returns the column expression that the pets are sorted by, other than the ID.
+     */
+    private String sortColumn() {
+        return mSortBy == SORT_BY_NAME
+                ? PetEntry.COLUMN_PET_NAME + " COLLATE NOCASE"
+                : PetEntry.COLUMN_PET_WEIGHT;
+    }
+
+    /**
+     * Compares two strings like the NOCASE collation of SQLite, which only folds the case of
+     * ASCII letters.
+     */
+    private static int compareNoCase(String a, String b) {
+        int length = Math.min(a.length(), b.length());
+        for (int i = 0; i < length; i++) {
+            char x = a.charAt(i);
+            char y = b.charAt(i);
+            if (x >= 'A' && x <= 'Z') {
+                x += 'a' - 'A';
+            }
+            if (y >= 'A' && y <= 'Z') {
+                y += 'a' - 'A';
+            }
+            if (x != y) {
+                return x - y;
+            }
+        }
+        return a.length() - b.length();
+    }
+
+    /**
+     * Builds a {@link PetQuery}. By default, pets of every gender and breed are sorted by
+     * {@link PetEntry#_ID}.
+     */
+    public static final class Builder {
+
+        private int mSortBy = SORT_BY_ID;
+        private boolean mDescending;
+        private int mGender = ANY_GENDER;
+        private boolean mFilterBreed;
+        private String mBreed;
+
+        /**
+         * Sorts the pets by the given key, one of the {@code SORT_BY_*} constants.
+         *
+         * @throws IllegalArgumentException if the key is not one of the constants
+         */
+        public Builder setSortOrder(int sortBy, boolean descending) {
+            if (sortBy != SORT_BY_ID && sortBy != SORT_BY_NAME && sortBy != SORT_BY_WEIGHT) {
+                throw new IllegalArgumentException("Unknown sort key " + sortBy);
+            }
+            mSortBy = sortBy;
+            mDescending = descending;
+            return this;
+        }
+
+        /**
+         * Only keeps the pets of the given gender, one of the {@code GENDER_*} constants of
+         * {@link PetEntry}, or every pet if it is -1.
+         *
+         * @throws IllegalArgumentException if the gender is not valid
+         */
+        public Builder setGender(int gender) {
+            if (gender != ANY_GENDER && !PetEntry.isValidGender(gender)) {
+                throw new IllegalArgumentException("Pet requires valid gender");
+            }
+            mGender = gender;
+            return this;
+        }
+
+        /**
+         * Only keeps the pets of the given breed, or the pets without a breed if it is null.
+         */
+        public Builder setBreed(String breed) {
+            mFilterBreed = true;
+            mBreed = breed;
+            return this;
+        }
+
+        public PetQuery build() {
+            return new PetQuery(this);
+        }
+    }
+}
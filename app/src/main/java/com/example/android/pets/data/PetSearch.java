@@ -0,0 +1,160 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.pets.data;
+
+import android.database.Cursor;
+import android.database.MergeCursor;
+
+import com.example.android.pets.data.PetContract.PetEntry;
+import com.example.android.pets.data.PetContract.PetSearchEntry;
+
+import java.util.Locale;
+
+/**
+ * Searches pets by name and breed through the full-text index in {@link PetSearchEntry}.
+ *
+ * Every word of the query is matched as a prefix of a word of the name or the breed, so "ter"
+ * finds "Terrier" and "to te" finds "Toto the Terrier". A lookup in the index only costs as much
+ * as the number of pets that match, not the size of the table. Pets whose name starts with the
+ * first word of the query are ranked first, then results are sorted by name.
+ *
+ * The ranking takes two queries rather than one ORDER BY, which would sort every match before
+ * returning the first ones. The pets whose name starts with the word are read in order from the
+ * index on names, which stops at the limit. Only if there are fewer of them than the limit are
+ * the other matches read, to fill the rest.
+ */
+public class PetSearch {
+
+    /** Whether the name is in the range of names that start with a prefix */
+    private static final String SQL_NAME_IN_RANGE = "p." + PetEntry.COLUMN_PET_NAME
+            + " COLLATE NOCASE >= ? AND p." + PetEntry.COLUMN_PET_NAME + " COLLATE NOCASE < ?";
+
+    /**
+     * Selects the matches whose name starts with a prefix, with the columns of
+     * {@link Pet#PROJECTION} in the same order. The range of names is read from the index on
+     * names, and each pet is checked against the matches of the full-text index. The unary plus
+     * keeps SQLite from looking the pets up by ID instead, which would sort them all again.
+     */
+    private static final String SQL_SEARCH_PREFIX = "SELECT "
+            + "p." + PetEntry._ID + ", "
+            + "p." + PetEntry.COLUMN_PET_NAME + ", "
+            + "p." + PetEntry.COLUMN_PET_BREED + ", "
+            + "p." + PetEntry.COLUMN_PET_GENDER + ", "
+            + "p." + PetEntry.COLUMN_PET_WEIGHT + ", "
+            + "p." + PetEntry.COLUMN_PET_PHOTO
+            + " FROM " + PetEntry.TABLE_NAME + " p"
+            + " WHERE " + SQL_NAME_IN_RANGE
+            + " AND p." + PetEntry.COLUMN_PET_DELETED + " = 0"
+            + " AND +p." + PetEntry._ID + " IN (SELECT " + PetSearchEntry.COLUMN_DOCID
+            + " FROM " + PetSearchEntry.TABLE_NAME
+            + " WHERE " + PetSearchEntry.TABLE_NAME + " MATCH ?)"
+            + " ORDER BY p." + PetEntry.COLUMN_PET_NAME + " COLLATE NOCASE"
+            + " LIMIT ?";
+
+    /** Selects the other matches, like {@link #SQL_SEARCH_PREFIX} */
+    private static final String SQL_SEARCH_OTHERS = "SELECT "
+            + "p." + PetEntry._ID + ", "
+            + "p." + PetEntry.COLUMN_PET_NAME + ", "
+            + "p." + PetEntry.COLUMN_PET_BREED + ", "
+            + "p." + PetEntry.COLUMN_PET_GENDER + ", "
+            + "p." + PetEntry.COLUMN_PET_WEIGHT + ", "
+            + "p." + PetEntry.COLUMN_PET_PHOTO
+            + " FROM " + PetSearchEntry.TABLE_NAME + " f"
+            + " JOIN " + PetEntry.TABLE_NAME + " p"
+            + " ON p." + PetEntry._ID + " = f." + PetSearchEntry.COLUMN_DOCID
+            + " WHERE " + PetSearchEntry.TABLE_NAME + " MATCH ?"
+            + " AND p." + PetEntry.COLUMN_PET_DELETED + " = 0"
+            + " AND NOT (" + SQL_NAME_IN_RANGE + ")"
+            + " ORDER BY p." + PetEntry.COLUMN_PET_NAME + " COLLATE NOCASE"
+            + " LIMIT ?";
+
+    private final PetDbHelper mDbHelper;
+
+    /**
+     * Constructs a new {@link PetSearch}.
+     *
+     * @param dbHelper the database helper to search in
+     */
+    public PetSearch(PetDbHelper dbHelper) {
+        mDbHelper = dbHelper;
+    }
+
+    /**
+     * Returns the pets that match the query, best matches first. The cursor has the columns of
+     * {@link Pet#PROJECTION}. Returns null if the query has no word to search for.
+     *
+     * @param query what the user typed
+     * @param limit maximum number of pets to return
+     */
+    public Cursor search(String query, int limit) {
+        String[] words = splitWords(query);
+        if (words.length == 0) {
+            return null;
+        }
+
+        String match = toMatchExpression(words);
+        String from = words[0];
+        String to = prefixEnd(from);
+        Cursor prefixed = mDbHelper.query(SQL_SEARCH_PREFIX, new String[] {
+                from, to, match, String.valueOf(limit) });
+        int remaining = limit - prefixed.getCount();
+        if (remaining <= 0) {
+            return prefixed;
+        }
+        Cursor others = mDbHelper.query(SQL_SEARCH_OTHERS, new String[] {
+                match, from, to, String.valueOf(remaining) });
+        return new MergeCursor(new Cursor[] { prefixed, others });
+    }
+
+    /**
+     * Returns the smallest string that is greater than every string starting with the given
+     * prefix, in NOCASE order. The words of a query are lowercase letters and digits, so the last
+     * one only has to be followed by the next character.
+     */
+    static String prefixEnd(String prefix) {
+        int last = prefix.length() - 1;
+        return prefix.substring(0, last) + (char) (prefix.charAt(last) + 1);
+    }
+
+    /**
+     * Splits the query into words made of letters and digits only. Everything else, including
+     * the operators of the full-text query syntax, is treated as a separator.
+     */
+    static String[] splitWords(String query) {
+        if (query == null) {
+            return new String[0];
+        }
+        String cleaned = query.toLowerCase(Locale.ROOT)
+                .replaceAll("[^\\p{L}\\p{N}]+", " ")
+                .trim();
+        return cleaned.isEmpty() ? new String[0] : cleaned.split(" ");
+    }
+
+    /**
+     * Builds the MATCH expression that finds rows containing a word starting with each of the
+     * given words.
+     */
+    static String toMatchExpression(String[] words) {
+        StringBuilder match = new StringBuilder();
+        for (String word : words) {
+            if (match.length() > 0) {
+                match.append(' ');
+            }
+            match.append(word).append('*');
+        }
+        return match.toString();
+    }
+}
@@ -0,0 +1,411 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.pets.data;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Registry of the databases of the shelters. Each shelter keeps its pets in a database file of
+ * its own, with its own {@link PetDbHelper}, connections and {@link PetCache}, so the work on one
+ * shelter never touches the pets of the others.
+ *
+ * The pets of the app itself, in the database of {@link PetDbHelper#getInstance}, are the
+ * {@link #DEFAULT_SHELTER}. The databases of the other shelters are opened when first used, and
+ * at most {@link #MAX_OPEN_SHELTERS} of them stay open: the one used least recently is closed,
+ * with its cache, once nothing uses it anymore. Finding the database of a shelter is a lookup in
+ * a map, so it costs the same however many shelters there are.
+ *
+ * {@link #queryPage} reads a page of pets across every shelter, querying the shelters in
+ * parallel and merging their pages in the order of the query.
+ */
+public final class PetShelters {
+
+    public static final String LOG_TAG = PetShelters.class.getSimpleName();
+
+    /** The shelter whose pets are in the database of the app */
+    public static final String DEFAULT_SHELTER = "default";
+
+    /** Maximum number of shelter databases kept open when nothing uses them, besides the default */
+    private static final int MAX_OPEN_SHELTERS = 8;
+
+    /** Number of shelters queried at the same time by {@link #queryPage} */
+    private static final int THREAD_COUNT = 4;
+
+    /** Name of the database file of a shelter is its ID between this prefix and suffix */
+    private static final String FILE_NAME_PREFIX = "shelter-";
+    private static final String FILE_NAME_SUFFIX = ".db";
+
+    /** Database file names of the shelters, the ID of the shelter being the first group */
+    private static final Pattern FILE_NAME_PATTERN = Pattern.compile(
+            Pattern.quote(FILE_NAME_PREFIX) + "([a-z0-9_]+)" + Pattern.quote(FILE_NAME_SUFFIX));
+
+    /** IDs of shelters, which are used in file names */
+    private static final Pattern SHELTER_PATTERN = Pattern.compile("[a-z0-9_]{1,40}");
+
+    /** The one instance shared by the whole process */
+    private static PetShelters sInstance;
+
+    private final Context mContext;
+
+    private final PetDbHelper mDefaultDbHelper;
+
+    /** The open databases other than the default one, least recently used first, guarded by this */
+    private final LinkedHashMap<String, Shelter> mShelters = new LinkedHashMap<>(16, 0.75f, true);
+
+    private final ExecutorService mExecutor = Executors.newFixedThreadPool(THREAD_COUNT,
+            new ThreadFactory() {
+                private final AtomicInteger mCount = new AtomicInteger();
+
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable,
+                            "PetShelters #" + mCount.incrementAndGet());
+                    thread.setPriority(Thread.NORM_PRIORITY - 1);
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+    /**
+     * Returns the {@link PetShelters} of the process.
+     *
+     * @param context of the app
+     */
+    public static synchronized PetShelters getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new PetShelters(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private PetShelters(Context context) {
+        mContext = context;
+        mDefaultDbHelper = PetDbHelper.getInstance(context);
+    }
+
+    /**
+     * Returns whether the given string can be the ID of a shelter: 1 to 40 lowercase ASCII
+     * letters, digits or underscores.
+     */
+    public static boolean isValidShelter(String shelter) {
+        return shelter != null && SHELTER_PATTERN.matcher(shelter).matches();
+    }
+
+    /**
+     * Returns the IDs of every shelter that has a database, the default one first, then the
+     * others in alphabetical order.
+     */
+    public List<String> getShelters() {
+        List<String> shelters = new ArrayList<>();
+        for (String fileName : mContext.databaseList()) {
+            Matcher matcher = FILE_NAME_PATTERN.matcher(fileName);
+            if (matcher.matches() && !DEFAULT_SHELTER.equals(matcher.group(1))) {
+                shelters.add(matcher.group(1));
+            }
+        }
+        Collections.sort(shelters);
+        shelters.add(0, DEFAULT_SHELTER);
+        return shelters;
+    }
+
+    /**
+     * Runs an operation against the database of a shelter, creating the database if the shelter
+     * has none yet. The database stays open while the operation runs. Must be called on a
+     * background thread.
+     *
+     * @throws IllegalArgumentException if the ID of the shelter is not valid
+     */
+    public <T> T run(String shelter, PetDataSource.Operation<T> operation) {
+        if (DEFAULT_SHELTER.equals(shelter)) {
+            return operation.run(mDefaultDbHelper);
+        }
+        Shelter open = acquire(shelter);
+        try {
+            return operation.run(open.dbHelper);
+        } finally {
+            release(open);
+        }
+    }
+
+    /**
+     * Deletes a shelter and every pet in it. Must be called on a background thread.
+     *
+     * @throws IllegalArgumentException if the shelter is the default one, or its ID is not valid
+     * @throws IllegalStateException if an operation is running against the shelter
+     */
+    public void deleteShelter(String shelter) {
+        if (DEFAULT_SHELTER.equals(shelter) || !isValidShelter(shelter)) {
+            throw new IllegalArgumentException("Cannot delete shelter " + shelter);
+        }
+        synchronized (this) {
+            Shelter open = mShelters.get(shelter);
+            if (open != null && open.leases > 0) {
+                throw new IllegalStateException("Shelter " + shelter + " is in use");
+            }
+            mShelters.remove(shelter);
+            if (open != null) {
+                open.dbHelper.close();
+            }
+            mContext.deleteDatabase(fileName(shelter));
+        }
+    }
+
+    /**
+     * Returns the page of pets, across every shelter, that follows the given pet in the order of
+     * the query. Pets that compare equal in the query are ordered by shelter. Each shelter reads
+     * at most one page of its own, all of them in parallel, so a page costs about as much as the
+     * slowest shelter rather than the sum of them. Must be called on a background thread.
+     *
+     * @param query the filter and order of the pets
+     * @param after the last pet of the previous page, or null for the first page
+     * @param limit the maximum number of pets in the page
+     */
+    public List<ShelterPet> queryPage(final PetQuery query, final ShelterPet after,
+            final int limit) {
+        List<String> shelters = getShelters();
+        List<Future<List<ShelterPet>>> pages = new ArrayList<>(shelters.size());
+        for (final String shelter : shelters) {
+            pages.add(mExecutor.submit(new Callable<List<ShelterPet>>() {
+                @Override
+                public List<ShelterPet> call() {
+                    return readPage(shelter, query, after, limit);
+                }
+            }));
+        }
+
+        // Merge the pages, which are each in the order of the query, keeping the first pets
+        PriorityQueue<PeekingIterator> heads = new PriorityQueue<>(shelters.size(),
+                new HeadComparator(query));
+        List<PeekingIterator> iterators = new ArrayList<>(shelters.size());
+        try {
+            for (Future<List<ShelterPet>> page : pages) {
+                iterators.add(new PeekingIterator(page.get().iterator()));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while querying the shelters", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IllegalStateException("Could not query the shelters", e.getCause());
+        } finally {
+            for (Future<List<ShelterPet>> page : pages) {
+                page.cancel(false);
+            }
+        }
+        for (PeekingIterator iterator : iterators) {
+            if (iterator.hasNext()) {
+                heads.add(iterator);
+            }
+        }
+
+        List<ShelterPet> merged = new ArrayList<>(limit);
+        while (merged.size() < limit && !heads.isEmpty()) {
+            PeekingIterator head = heads.poll();
+            merged.add(head.next());
+            if (head.hasNext()) {
+                heads.add(head);
+            }
+        }
+        return merged;
+    }
+
+    /**
+     * Reads the page of a shelter that follows the given pet in the order of {@link #queryPage},
+     * and caches its pets.
+     */
+    private List<ShelterPet> readPage(final String shelter, final PetQuery query,
+            final ShelterPet after, final int limit) {
+        // The pets of the shelters after the one of the last pet come after it even if they
+        // compare equal in the query, so for them the page starts at that pet rather than after
+        // it. IDs are integers, so this is the page after the ID just before it.
+        Pet start = null;
+        if (after != null && shelter.compareTo(after.shelter) > 0) {
+            Pet pet = after.pet;
+            long id = query.isDescending() ? pet.id + 1 : pet.id - 1;
+            start = new Pet(id, pet.name, pet.breed, pet.gender, pet.weight, pet.photo);
+        } else if (after != null) {
+            start = after.pet;
+        }
+        final Pet from = start;
+
+        return run(shelter, new PetDataSource.Operation<List<ShelterPet>>() {
+            @Override
+            public List<ShelterPet> run(PetDbHelper dbHelper) {
+                List<ShelterPet> page = new ArrayList<>();
+                Cursor cursor = query.queryPage(dbHelper, from, limit);
+                try {
+                    while (cursor.moveToNext()) {
+                        Pet pet = Pet.fromCursor(cursor);
+                        dbHelper.getCache().put(pet);
+                        page.add(new ShelterPet(shelter, pet));
+                    }
+                } finally {
+                    cursor.close();
+                }
+                return page;
+            }
+        });
+    }
+
+    private Shelter acquire(String shelter) {
+        if (!isValidShelter(shelter)) {
+            throw new IllegalArgumentException("Not a valid shelter: " + shelter);
+        }
+        synchronized (this) {
+            Shelter open = mShelters.get(shelter);
+            if (open == null) {
+                // Opening the database file is left to the first query, outside of the lock
+                open = new Shelter(new PetDbHelper(mContext, fileName(shelter)));
+                mShelters.put(shelter, open);
+            }
+            open.leases++;
+            return open;
+        }
+    }
+
+    private void release(Shelter shelter) {
+        List<PetDbHelper> unused = new ArrayList<>();
+        synchronized (this) {
+            shelter.leases--;
+            // Close the shelters used least recently, skipping the ones that are in use
+            Iterator<Map.Entry<String, Shelter>> entries = mShelters.entrySet().iterator();
+            while (mShelters.size() > MAX_OPEN_SHELTERS && entries.hasNext()) {
+                Shelter open = entries.next().getValue();
+                if (open.leases == 0) {
+                    entries.remove();
+                    unused.add(open.dbHelper);
+                }
+            }
+        }
+        // Closing a database waits for its last checkpoint, so other shelters go on meanwhile
+        for (PetDbHelper dbHelper : unused) {
+            dbHelper.close();
+        }
+        if (!unused.isEmpty()) {
+            Log.d(LOG_TAG, "Closed " + unused.size() + " shelter databases");
+        }
+    }
+
+    private static String fileName(String shelter) {
+        return FILE_NAME_PREFIX + shelter + FILE_NAME_SUFFIX;
+    }
+
+    /**
+     * A pet and the shelter it is in. The ID of a pet is only unique within its shelter.
+     */
+    public static final class ShelterPet {
+
+        /** ID of the shelter */
+        public final String shelter;
+
+        public final Pet pet;
+
+        public ShelterPet(String shelter, Pet pet) {
+            this.shelter = shelter;
+            this.pet = pet;
+        }
+    }
+
+    /**
+     * An open shelter database and the number of operations running against it.
+     */
+    private static final class Shelter {
+        final PetDbHelper dbHelper;
+        int leases;
+
+        Shelter(PetDbHelper dbHelper) {
+            this.dbHelper = dbHelper;
+        }
+    }
+
+    /**
+     * Orders the pages being merged by their next pet, in the order of {@link #queryPage}.
+     */
+    private static final class HeadComparator implements Comparator<PeekingIterator> {
+
+        private final PetQuery mQuery;
+
+        HeadComparator(PetQuery query) {
+            mQuery = query;
+        }
+
+        @Override
+        public int compare(PeekingIterator a, PeekingIterator b) {
+            ShelterPet x = a.peek();
+            ShelterPet y = b.peek();
+            int result = mQuery.compare(x.pet, y.pet);
+            return result != 0 ? result : x.shelter.compareTo(y.shelter);
+        }
+    }
+
+    /**
+     * An iterator whose next pet can be looked at without taking it.
+     */
+    private static final class PeekingIterator implements Iterator<ShelterPet> {
+
+        private final Iterator<ShelterPet> mIterator;
+
+        private ShelterPet mNext;
+
+        PeekingIterator(Iterator<ShelterPet> iterator) {
+            mIterator = iterator;
+            mNext = iterator.hasNext() ? iterator.next() : null;
+        }
+
+        ShelterPet peek() {
+            return mNext;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return mNext != null;
+        }
+
+        @Override
+        public ShelterPet next() {
+            ShelterPet next = mNext;
+            mNext = mIterator.hasNext() ? mIterator.next() : null;
+            return next;
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
@@ -0,0 +1,251 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.pets.data;
+
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+
+import com.example.android.pets.data.PetContract.PetEntry;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Read-only, in-memory copy of the whole pets table, for dashboards that work offline.
+ *
+ * Instead of one {@link Pet} object per row, each column is stored in a primitive array, and
+ * pets are referred to by their row index in those arrays. Breeds are dictionary encoded: every
+ * distinct breed is stored once, and each pet only keeps the int code of its breed. A row costs
+ * 13 bytes, against well over 100 for a {@link Pet} with its own name and breed strings. Names
+ * are not part of the snapshot.
+ *
+ * Filters return the matching row indexes, which can then be sorted or passed to other filters.
+ */
+public final class PetSnapshot {
+
+    /** Breed code of the pets whose breed is unknown */
+    public static final int NO_BREED = -1;
+
+    /** Matches any gender in {@link #filter} */
+    public static final int ANY_GENDER = -1;
+
+    /** Matches any breed in {@link #filter} */
+    public static final int ANY_BREED = -2;
+
+    /** Code of a breed that no pet of the snapshot has, matches no pet in {@link #filter} */
+    public static final int MISSING_BREED = -3;
+
+    private static final String SQL_LOAD = "SELECT "
+            + PetEntry._ID + ", "
+            + PetEntry.COLUMN_PET_GENDER + ", "
+            + PetEntry.COLUMN_PET_WEIGHT + ", "
+            + PetEntry.COLUMN_PET_BREED
+            + " FROM " + PetEntry.TABLE_NAME
+            + " WHERE " + PetEntry.COLUMN_PET_DELETED + " = 0"
+            + " ORDER BY " + PetEntry._ID;
+
+    private final int mSize;
+    private final int[] mIds;
+    private final byte[] mGenders;
+    private final int[] mWeights;
+    private final int[] mBreedCodes;
+
+    /** Distinct breeds, indexed by breed code */
+    private final String[] mBreeds;
+
+    private PetSnapshot(int size, int[] ids, byte[] genders, int[] weights, int[] breedCodes,
+            String[] breeds) {
+        mSize = size;
+        mIds = ids;
+        mGenders = genders;
+        mWeights = weights;
+        mBreedCodes = breedCodes;
+        mBreeds = breeds;
+    }
+
+    /**
+     * Reads the whole pets table into a new snapshot. Must be called on a background thread.
+     */
+    public static PetSnapshot load(PetDbHelper dbHelper) {
+        SQLiteDatabase db = dbHelper.getReadableDatabase();
+
+        // Size the arrays for the current number of pets, so they don't have to grow while the
+        // rows are read, unless pets are added in the meantime
+        int capacity = Math.max(16, (int) DatabaseUtils.queryNumEntries(db, PetEntry.TABLE_NAME,
+                PetEntry.COLUMN_PET_DELETED + " = 0"));
+        int[] ids = new int[capacity];
+        byte[] genders = new byte[capacity];
+        int[] weights = new int[capacity];
+        int[] breedCodes = new int[capacity];
+        Map<String, Integer> dictionary = new HashMap<>();
+        List<String> breeds = new ArrayList<>();
+
+        int size = 0;
+        Cursor cursor = dbHelper.query(SQL_LOAD, null);
+        try {
+            while (cursor.moveToNext()) {
+                if (size == capacity) {
+                    capacity *= 2;
+                    ids = Arrays.copyOf(ids, capacity);
+                    genders = Arrays.copyOf(genders, capacity);
+                    weights = Arrays.copyOf(weights, capacity);
+                    breedCodes = Arrays.copyOf(breedCodes, capacity);
+                }
+
+                long id = cursor.getLong(0);
+                if (id > Integer.MAX_VALUE) {
+                    throw new IllegalStateException("Pet ID " + id + " does not fit an int");
+                }
+                ids[size] = (int) id;
+                genders[size] = (byte) cursor.getInt(1);
+                weights[size] = cursor.getInt(2);
+
+                if (cursor.isNull(3)) {
+                    breedCodes[size] = NO_BREED;
+                } else {
+                    String breed = cursor.getString(3);
+                    Integer code = dictionary.get(breed);
+                    if (code == null) {
+                        code = breeds.size();
+                        dictionary.put(breed, code);
+                        breeds.add(breed);
+                    }
+                    breedCodes[size] = code;
+                }
+                size++;
+            }
+        } finally {
+            cursor.close();
+        }
+
+        return new PetSnapshot(size, ids, genders, weights, breedCodes,
+                breeds.toArray(new String[breeds.size()]));
+    }
+
+    /** Number of pets in the snapshot */
+    public int size() {
+        return mSize;
+    }
+
+    /** ID of the pet at the given row */
+    public int getId(int row) {
+        return mIds[row];
+    }
+
+    /** Gender of the pet at the given row, one of the {@code GENDER_*} constants */
+    public int getGender(int row) {
+        return mGenders[row];
+    }
+
+    /** Weight of the pet at the given row */
+    public int getWeight(int row) {
+        return mWeights[row];
+    }
+
+    /** Breed of the pet at the given row, or null if it is unknown */
+    public String getBreed(int row) {
+        int code = mBreedCodes[row];
+        return code == NO_BREED ? null : mBreeds[code];
+    }
+
+    /** Code of the breed of the pet at the given row, or {@link #NO_BREED} */
+    public int getBreedCode(int row) {
+        return mBreedCodes[row];
+    }
+
+    /** Number of distinct breeds */
+    public int getBreedCount() {
+        return mBreeds.length;
+    }
+
+    /** Breed with the given code */
+    public String getBreedName(int code) {
+        return mBreeds[code];
+    }
+
+    /**
+     * Returns the code of the given breed, {@link #NO_BREED} if the breed is null, or
+     * {@link #MISSING_BREED} if no pet of the snapshot has this breed.
+     */
+    public int findBreedCode(String breed) {
+        if (breed == null) {
+            return NO_BREED;
+        }
+        for (int code = 0; code < mBreeds.length; code++) {
+            if (mBreeds[code].equals(breed)) {
+                return code;
+            }
+        }
+        return MISSING_BREED;
+    }
+
+    /**
+     * Returns the rows of the pets that match every given criteria, in ID order.
+     *
+     * @param gender one of the {@code GENDER_*} constants, or {@link #ANY_GENDER}
+     * @param breedCode a code returned by {@link #findBreedCode}, or {@link #ANY_BREED}
+     * @param minWeight lowest weight to match, inclusive
+     * @param maxWeight highest weight to match, inclusive
+     */
+    public int[] filter(int gender, int breedCode, int minWeight, int maxWeight) {
+        int[] rows = new int[mSize];
+        int count = 0;
+        for (int row = 0; row < mSize; row++) {
+            if ((gender == ANY_GENDER || mGenders[row] == gender)
+                    && (breedCode == ANY_BREED || mBreedCodes[row] == breedCode)
+                    && mWeights[row] >= minWeight
+                    && mWeights[row] <= maxWeight) {
+                rows[count++] = row;
+            }
+        }
+        return Arrays.copyOf(rows, count);
+    }
+
+    /**
+     * Sorts the given rows by weight, lightest first. Pets of the same weight stay in ID order.
+     * The rows are modified in place and returned.
+     */
+    public int[] sortByWeight(int[] rows) {
+        // Pack the weight and the row in one long, so that a primitive sort does all the work
+        // without boxing. Weights are never negative, so the packed values sort like the weights.
+        long[] keys = new long[rows.length];
+        for (int i = 0; i < rows.length; i++) {
+            keys[i] = ((long) mWeights[rows[i]] << 32) | rows[i];
+        }
+        Arrays.sort(keys);
+        for (int i = 0; i < rows.length; i++) {
+            rows[i] = (int) keys[i];
+        }
+        return rows;
+    }
+
+    /**
+     * Returns an estimate of the heap used by the snapshot, in bytes.
+     */
+    public long estimateSizeBytes() {
+        // The arrays may have spare room at the end, it is part of the heap they use too
+        long bytes = (long) mIds.length * (4 + 1 + 4 + 4);
+        for (String breed : mBreeds) {
+            // String object and its char array
+            bytes += 40 + 2L * breed.length();
+        }
+        return bytes;
+    }
+}
@@ -0,0 +1,211 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.pets.data;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.util.Log;
+
+import com.example.android.pets.data.PetContract.PetEntry;
+import com.example.android.pets.data.PetContract.PetStatsEntry;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * Counts of pets per breed, per gender and per range of weight, read from the summary tables of
+ * {@link PetStatsEntry}.
+ *
+ * The summary tables are updated by triggers in the same transaction as every write to the pets
+ * table, so reading them costs the same whether there are ten pets or a million. Pets in the
+ * trash are not counted. {@link #verify} recomputes the counts from the pets table to check that
+ * the summaries are still right, and {@link #rebuild} replaces them with the recomputed ones.
+ */
+public class PetStats {
+
+    public static final String LOG_TAG = PetStats.class.getSimpleName();
+
+    /**
+     * For each summary table: its name, its key column, and the expression over the pets table
+     * that computes that key.
+     */
+    private static final String[][] STATS = {
+            { PetStatsEntry.BREED_TABLE_NAME, PetStatsEntry.COLUMN_BREED,
+                    "IFNULL(" + PetEntry.COLUMN_PET_BREED + ", '')" },
+            { PetStatsEntry.GENDER_TABLE_NAME, PetStatsEntry.COLUMN_GENDER,
+                    PetEntry.COLUMN_PET_GENDER },
+            { PetStatsEntry.WEIGHT_TABLE_NAME, PetStatsEntry.COLUMN_WEIGHT_BUCKET,
+                    PetEntry.COLUMN_PET_WEIGHT + " / " + PetStatsEntry.WEIGHT_BUCKET_SIZE } };
+
+    /** Pets in the trash are not counted */
+    private static final String WHERE_LIVE = " WHERE " + PetEntry.COLUMN_PET_DELETED + " = 0";
+
+    private final PetDbHelper mDbHelper;
+
+    /**
+     * Constructs a new {@link PetStats}.
+     *
+     * @param dbHelper the database helper to read the statistics from
+     */
+    public PetStats(PetDbHelper dbHelper) {
+        mDbHelper = dbHelper;
+    }
+
+    /**
+     * Returns the number of pets.
+     */
+    public long getTotalCount() {
+        // Every pet has exactly one gender, and there are only a few of them
+        return mDbHelper.longForQuery(
+                "SELECT IFNULL(SUM(" + PetStatsEntry.COLUMN_COUNT + "), 0) FROM "
+                        + PetStatsEntry.GENDER_TABLE_NAME, null);
+    }
+
+    /**
+     * Returns the number of pets of the given breed, or without a breed if it is null.
+     */
+    public long getBreedCount(String breed) {
+        return countOf(PetStatsEntry.BREED_TABLE_NAME, PetStatsEntry.COLUMN_BREED,
+                breed == null ? "" : breed);
+    }
+
+    /**
+     * Returns the number of pets of the given gender, one of the {@code GENDER_*} constants of
+     * {@link PetEntry}.
+     */
+    public long getGenderCount(int gender) {
+        return countOf(PetStatsEntry.GENDER_TABLE_NAME, PetStatsEntry.COLUMN_GENDER,
+                String.valueOf(gender));
+    }
+
+    /**
+     * Returns the number of pets of each breed, the most common breeds first. Pets without a
+     * breed are counted under a null key.
+     */
+    public Map<String, Long> getBreedCounts() {
+        Map<String, Long> counts = new LinkedHashMap<>();
+        Cursor cursor = mDbHelper.query(
+                PetStatsEntry.BREED_TABLE_NAME,
+                new String[] { PetStatsEntry.COLUMN_BREED, PetStatsEntry.COLUMN_COUNT },
+                null,
+                null,
+                PetStatsEntry.COLUMN_COUNT + " DESC, " + PetStatsEntry.COLUMN_BREED,
+                null);
+        try {
+            while (cursor.moveToNext()) {
+                String breed = cursor.getString(0);
+                counts.put(breed.isEmpty() ? null : breed, cursor.getLong(1));
+            }
+        } finally {
+            cursor.close();
+        }
+        return counts;
+    }
+
+    /**
+     * Returns the number of pets in each range of weight, keyed by the lowest weight of the
+     * range. Each range is {@link PetStatsEntry#WEIGHT_BUCKET_SIZE} kg wide, and ranges without
+     * any pet are left out.
+     */
+    public SortedMap<Integer, Long> getWeightHistogram() {
+        SortedMap<Integer, Long> histogram = new TreeMap<>();
+        Cursor cursor = mDbHelper.query(
+                PetStatsEntry.WEIGHT_TABLE_NAME,
+                new String[] { PetStatsEntry.COLUMN_WEIGHT_BUCKET, PetStatsEntry.COLUMN_COUNT },
+                null,
+                null,
+                null,
+                null);
+        try {
+            while (cursor.moveToNext()) {
+                histogram.put(cursor.getInt(0) * PetStatsEntry.WEIGHT_BUCKET_SIZE,
+                        cursor.getLong(1));
+            }
+        } finally {
+            cursor.close();
+        }
+        return histogram;
+    }
+
+    /**
+     * Recomputes every count from the pets table and compares it with the summary tables. This
+     * scans the whole pets table, so it must be called on a background thread.
+     *
+     * @return a description of each count that differs, or an empty list if the summary tables
+     *         are right
+     */
+    public List<String> verify() {
+        List<String> differences = new ArrayList<>();
+        for (String[] stat : STATS) {
+            // A single statement reads the summary and the pets from the same snapshot, so a
+            // write in between cannot look like a difference, and no lock is taken
+            Cursor cursor = mDbHelper.query("SELECT stat_key, MAX(stored), MAX(actual) FROM ("
+                    + "SELECT " + stat[1] + " AS stat_key, " + PetStatsEntry.COLUMN_COUNT
+                    + " AS stored, NULL AS actual FROM " + stat[0]
+                    + " UNION ALL SELECT " + stat[2] + " AS stat_key, NULL, COUNT(*) FROM "
+                    + PetEntry.TABLE_NAME + WHERE_LIVE + " GROUP BY stat_key)"
+                    + " GROUP BY stat_key HAVING MAX(stored) IS NOT MAX(actual)", null);
+            try {
+                while (cursor.moveToNext()) {
+                    differences.add(stat[0] + ": " + stat[1] + " '" + cursor.getString(0)
+                            + "' has " + cursor.getString(1) + " pets instead of "
+                            + cursor.getString(2));
+                }
+            } finally {
+                cursor.close();
+            }
+        }
+
+        if (!differences.isEmpty()) {
+            Log.w(LOG_TAG, differences.size() + " counts are wrong: " + differences);
+        }
+        return differences;
+    }
+
+    /**
+     * Replaces every summary table with the counts recomputed from the pets table. This scans
+     * the whole pets table, so it must be called on a background thread.
+     */
+    public void rebuild() {
+        SQLiteDatabase db = mDbHelper.getWritableDatabase();
+        db.beginTransactionNonExclusive();
+        try {
+            for (String[] stat : STATS) {
+                db.delete(stat[0], null, null);
+                db.execSQL("INSERT INTO " + stat[0] + " (" + stat[1] + ", "
+                        + PetStatsEntry.COLUMN_COUNT + ") SELECT " + stat[2]
+                        + " AS stat_key, COUNT(*) FROM " + PetEntry.TABLE_NAME + WHERE_LIVE
+                        + " GROUP BY stat_key");
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * Returns the count of the row with the given key in a summary table, or 0 if there is none.
+     */
+    private long countOf(String table, String column, String key) {
+        return mDbHelper.longForQuery(
+                "SELECT IFNULL((SELECT " + PetStatsEntry.COLUMN_COUNT + " FROM " + table
+                        + " WHERE " + column + " = ?), 0)", new String[] { key });
+    }
+}
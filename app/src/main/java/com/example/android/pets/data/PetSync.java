@@ -0,0 +1,945 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.pets.data;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.os.SystemClock;
+import android.text.TextUtils;
+import android.util.JsonReader;
+import android.util.JsonToken;
+import android.util.JsonWriter;
+import android.util.Log;
+
+import com.example.android.pets.data.PetContract.PetEntry;
+import com.example.android.pets.data.PetContract.PetSyncEntry;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.net.HttpURLConnection;
+import java.net.ProtocolException;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Syncs the pets with the registry shared by the shelters, over HTTP.
+ *
+ * A sync first pulls the changes made on the registry since the last sync, then pushes the local
+ * ones. Every pet has an ID on the registry, {@link PetEntry#COLUMN_PET_REMOTE_ID}, and a version
+ * that the registry increments with each change it accepts:
+ *
+ *   GET {base}/pets/changes?limit=500&cursor=...
+ *   {"changes":[{"id":"...","version":3,"modified":1470000000000,"deleted":false,
+ *                "name":"Toto","breed":"Terrier","gender":1,"weight":7}, ...],
+ *    "cursor":"...","more":true}
+ *
+ *   POST {base}/pets/changes, gzipped
+ *   {"changes":[{"id":"...","base_version":3,"modified":..., "deleted":false, "name":..., ...}]}
+ *   {"results":[{"id":"...","version":4}, {"id":"...","conflict":true}, ...]}
+ *
+ * Pulled changes are applied a page at a time, each page in one transaction along with the
+ * cursor of the registry, so an interrupted sync resumes after the last page it applied.
+ * Applying a change again is harmless. Local changes are found from the dirty pets, see
+ * {@link PetEntry#COLUMN_PET_SYNCED_VERSION}, and from the pets deleted for good in
+ * {@link PetSyncEntry#DELETES_TABLE_NAME}, and are pushed in gzipped batches.
+ *
+ * The registry only accepts a change based on its current version of the pet. When a pet changed
+ * on both sides, the change with the latest {@link PetEntry#COLUMN_PET_MODIFIED} time wins, and
+ * the registry wins ties. Every device applies the same rule to the same data, so they all end up
+ * with the same pet whatever order they sync in. A change rejected by the registry is settled by
+ * pulling again, so a sync that hits conflicts runs one more round.
+ *
+ * A request that fails because of the network or the server is retried with exponential backoff
+ * and jitter, or after the delay asked by the server. Everything runs on the calling thread, so
+ * {@link #sync} must be called on a background thread.
+ */
+public class PetSync {
+
+    public static final String LOG_TAG = PetSync.class.getSimpleName();
+
+    /** Number of changes pulled from the registry at once */
+    public static final int PULL_PAGE_SIZE = 500;
+
+    /** Number of local changes pushed to the registry at once */
+    public static final int PUSH_BATCH_SIZE = 500;
+
+    /** Number of times a request is sent before giving up */
+    private static final int MAX_ATTEMPTS = 5;
+
+    /** Delay before the first retry, doubled for each retry after it */
+    private static final long INITIAL_BACKOFF_MS = 1000;
+
+    /** Longest delay between two attempts */
+    private static final long MAX_BACKOFF_MS = 60 * 1000;
+
+    private static final int TIMEOUT_MS = 30 * 1000;
+
+    private static final String PATH_CHANGES = "/pets/changes";
+
+    private static final String KEY_CHANGES = "changes";
+    private static final String KEY_CURSOR = "cursor";
+    private static final String KEY_MORE = "more";
+    private static final String KEY_RESULTS = "results";
+    private static final String KEY_ID = "id";
+    private static final String KEY_VERSION = "version";
+    private static final String KEY_BASE_VERSION = "base_version";
+    private static final String KEY_CONFLICT = "conflict";
+    private static final String KEY_MODIFIED = "modified";
+    private static final String KEY_DELETED = "deleted";
+    private static final String KEY_NAME = "name";
+    private static final String KEY_BREED = "breed";
+    private static final String KEY_GENDER = "gender";
+    private static final String KEY_WEIGHT = "weight";
+
+    /**
+     * Applies a change of the registry over a local pet. Setting the local version makes the
+     * trigger leave it alone, and setting the synced version to the same value leaves the pet
+     * clean. Both are computed from the values before the update.
+     */
+    private static final String SQL_APPLY_UPDATE = "UPDATE " + PetEntry.TABLE_NAME + " SET "
+            + PetEntry.COLUMN_PET_NAME + " = ?, "
+            + PetEntry.COLUMN_PET_BREED + " = ?, "
+            + PetEntry.COLUMN_PET_GENDER + " = ?, "
+            + PetEntry.COLUMN_PET_WEIGHT + " = ?, "
+            + PetEntry.COLUMN_PET_DELETED + " = ?, "
+            + PetEntry.COLUMN_PET_MODIFIED + " = ?, "
+            + PetEntry.COLUMN_PET_REMOTE_VERSION + " = ?, "
+            + PetEntry.COLUMN_PET_LOCAL_VERSION + " = "
+            + PetEntry.COLUMN_PET_LOCAL_VERSION + " + 1, "
+            + PetEntry.COLUMN_PET_SYNCED_VERSION + " = "
+            + PetEntry.COLUMN_PET_LOCAL_VERSION + " + 1"
+            + " WHERE " + PetEntry._ID + " = ?";
+
+    /** Inserts a pet of the registry, clean */
+    private static final String SQL_APPLY_INSERT = "INSERT INTO " + PetEntry.TABLE_NAME + " ("
+            + PetEntry.COLUMN_PET_NAME + ", "
+            + PetEntry.COLUMN_PET_BREED + ", "
+            + PetEntry.COLUMN_PET_GENDER + ", "
+            + PetEntry.COLUMN_PET_WEIGHT + ", "
+            + PetEntry.COLUMN_PET_MODIFIED + ", "
+            + PetEntry.COLUMN_PET_REMOTE_ID + ", "
+            + PetEntry.COLUMN_PET_REMOTE_VERSION + ", "
+            + PetEntry.COLUMN_PET_LOCAL_VERSION + ", "
+            + PetEntry.COLUMN_PET_SYNCED_VERSION + ") VALUES (?, ?, ?, ?, ?, ?, ?, 1, 1)";
+
+    /** Bases a local change that won a conflict on the latest version of the registry */
+    private static final String SQL_REBASE_PET = "UPDATE " + PetEntry.TABLE_NAME + " SET "
+            + PetEntry.COLUMN_PET_REMOTE_VERSION + " = ? WHERE " + PetEntry._ID + " = ?";
+
+    private static final String SQL_REBASE_DELETE = "UPDATE " + PetSyncEntry.DELETES_TABLE_NAME
+            + " SET " + PetSyncEntry.COLUMN_REMOTE_VERSION + " = ? WHERE "
+            + PetSyncEntry.COLUMN_REMOTE_ID + " = ?";
+
+    private static final String SQL_DROP_DELETE = "DELETE FROM "
+            + PetSyncEntry.DELETES_TABLE_NAME + " WHERE " + PetSyncEntry.COLUMN_REMOTE_ID + " = ?";
+
+    /** Marks a pushed pet as accepted, it stays dirty if it changed again meanwhile */
+    private static final String SQL_ACCEPT_PET = "UPDATE " + PetEntry.TABLE_NAME + " SET "
+            + PetEntry.COLUMN_PET_REMOTE_VERSION + " = ?, "
+            + PetEntry.COLUMN_PET_SYNCED_VERSION + " = ? WHERE " + PetEntry._ID + " = ?";
+
+    private static final String SQL_ACCEPT_DELETE = SQL_DROP_DELETE + " AND "
+            + PetSyncEntry.COLUMN_MODIFIED + " = ?";
+
+    private static final String SQL_WRITE_CURSOR = "INSERT OR REPLACE INTO "
+            + PetSyncEntry.STATE_TABLE_NAME + " (" + PetSyncEntry.COLUMN_KEY + ", "
+            + PetSyncEntry.COLUMN_VALUE + ") VALUES ('" + PetSyncEntry.KEY_CURSOR + "', ?)";
+
+    private static final String SQL_READ_CURSOR = "SELECT " + PetSyncEntry.COLUMN_VALUE
+            + " FROM " + PetSyncEntry.STATE_TABLE_NAME
+            + " WHERE " + PetSyncEntry.COLUMN_KEY + " = '" + PetSyncEntry.KEY_CURSOR + "'";
+
+    /** Selects the dirty pets after a given ID, as read by {@link Outgoing#fromPet} */
+    private static final String SQL_SELECT_DIRTY = "SELECT "
+            + PetEntry._ID + ", "
+            + PetEntry.COLUMN_PET_REMOTE_ID + ", "
+            + PetEntry.COLUMN_PET_REMOTE_VERSION + ", "
+            + PetEntry.COLUMN_PET_LOCAL_VERSION + ", "
+            + PetEntry.COLUMN_PET_MODIFIED + ", "
+            + PetEntry.COLUMN_PET_DELETED + ", "
+            + PetEntry.COLUMN_PET_NAME + ", "
+            + PetEntry.COLUMN_PET_BREED + ", "
+            + PetEntry.COLUMN_PET_GENDER + ", "
+            + PetEntry.COLUMN_PET_WEIGHT
+            + " FROM " + PetEntry.TABLE_NAME
+            + " WHERE " + PetEntry.COLUMN_PET_LOCAL_VERSION + " > "
+            + PetEntry.COLUMN_PET_SYNCED_VERSION
+            + " AND " + PetEntry._ID + " > ?"
+            + " ORDER BY " + PetEntry._ID
+            + " LIMIT " + PUSH_BATCH_SIZE;
+
+    /** Selects the pets deleted for good, as read by {@link Outgoing#fromDelete} */
+    private static final String SQL_SELECT_DELETES = "SELECT "
+            + PetSyncEntry.COLUMN_REMOTE_ID + ", "
+            + PetSyncEntry.COLUMN_REMOTE_VERSION + ", "
+            + PetSyncEntry.COLUMN_MODIFIED
+            + " FROM " + PetSyncEntry.DELETES_TABLE_NAME
+            + " WHERE " + PetSyncEntry.COLUMN_REMOTE_ID + " > ?"
+            + " ORDER BY " + PetSyncEntry.COLUMN_REMOTE_ID
+            + " LIMIT " + PUSH_BATCH_SIZE;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /**
+     * Receives progress updates while a sync runs. Called on the syncing thread, once per page of
+     * changes pulled from the registry.
+     */
+    public interface Listener {
+        void onPulled(int applied);
+    }
+
+    private final PetDbHelper mDbHelper;
+
+    private final String mBaseUrl;
+
+    private final Random mRandom = new Random();
+
+    private Listener mListener;
+
+    /**
+     * Constructs a new {@link PetSync}.
+     *
+     * @param dbHelper the database helper of the pets to sync
+     * @param baseUrl the URL of the registry, without a trailing slash
+     */
+    public PetSync(PetDbHelper dbHelper, String baseUrl) {
+        mDbHelper = dbHelper;
+        mBaseUrl = baseUrl;
+    }
+
+    /**
+     * Sets the listener that receives progress updates, may be null.
+     */
+    public void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Pulls the changes of the registry, then pushes the local ones.
+     *
+     * @return how many changes went each way
+     * @throws IOException if the registry cannot be reached even after retrying, or rejects the
+     *         requests. The changes applied so far are kept.
+     */
+    public Result sync() throws IOException {
+        long start = SystemClock.elapsedRealtime();
+        Result result = new Result();
+        pull(result);
+        push(result);
+        if (result.mConflicts > 0) {
+            // The changes the registry rejected lost or won against newer ones, which the pull
+            // settles, and the winners are pushed again
+            pull(result);
+            push(result);
+        }
+        result.mElapsedMillis = SystemClock.elapsedRealtime() - start;
+        Log.i(LOG_TAG, "Synced in " + result.mElapsedMillis + " ms: " + result);
+        return result;
+    }
+
+    private void pull(Result result) throws IOException {
+        String cursor = readCursor();
+        boolean more = true;
+        while (more) {
+            String path = PATH_CHANGES + "?limit=" + PULL_PAGE_SIZE
+                    + (cursor == null ? "" : "&cursor=" + URLEncoder.encode(cursor, "UTF-8"));
+            Page page = request("GET", path, null, new ResponseReader<Page>() {
+                @Override
+                public Page read(JsonReader reader) throws IOException {
+                    return readPage(reader);
+                }
+            });
+            int applied = applyPage(page);
+            result.mPulled += applied;
+            if (mListener != null) {
+                mListener.onPulled(applied);
+            }
+            cursor = page.cursor;
+            more = page.more && !page.changes.isEmpty();
+        }
+    }
+
+    /**
+     * Applies a page of changes of the registry and saves its cursor, in a single transaction.
+     * The local state of the pets is read inside that transaction, and no other writer runs
+     * before it commits, so a pet edited during the sync is either seen as dirty here or edited
+     * after the change is applied. A page is small enough to hold the lock for.
+     *
+     * @return the number of local pets that changed
+     */
+    private int applyPage(Page page) {
+        SQLiteDatabase db = mDbHelper.getWritableDatabase();
+        SQLiteStatement update = db.compileStatement(SQL_APPLY_UPDATE);
+        SQLiteStatement insert = db.compileStatement(SQL_APPLY_INSERT);
+        SQLiteStatement rebasePet = db.compileStatement(SQL_REBASE_PET);
+        SQLiteStatement rebaseDelete = db.compileStatement(SQL_REBASE_DELETE);
+        SQLiteStatement dropDelete = db.compileStatement(SQL_DROP_DELETE);
+        int applied = 0;
+        db.beginTransaction();
+        try {
+            Map<String, LocalPet> locals = readLocalPets(page.changes);
+            Map<String, Long> deletes = readDeletes(page.changes);
+            for (Change change : page.changes) {
+                if (!change.isValid()) {
+                    Log.w(LOG_TAG, "Skipped invalid pet " + change.remoteId);
+                    continue;
+                }
+                LocalPet local = locals.get(change.remoteId);
+                Long deletedAt = deletes.get(change.remoteId);
+
+                if (local != null && local.remoteVersion >= change.version) {
+                    // Already applied by an earlier sync, or pushed from this device
+                    continue;
+                } else if (local != null && local.isDirty() && !wins(change, local.modified)) {
+                    rebasePet.bindLong(1, change.version);
+                    rebasePet.bindLong(2, local.id);
+                    rebasePet.executeUpdateDelete();
+                } else if (local != null) {
+                    bindPet(update, change);
+                    // A pet moved to the trash keeps the time it was moved there
+                    update.bindLong(5, !change.deleted ? 0
+                            : local.deleted != 0 ? local.deleted : change.modified);
+                    update.bindLong(6, change.modified);
+                    update.bindLong(7, change.version);
+                    update.bindLong(8, local.id);
+                    update.executeUpdateDelete();
+                    applied++;
+                } else if (deletedAt != null && !wins(change, deletedAt)) {
+                    rebaseDelete.bindLong(1, change.version);
+                    rebaseDelete.bindString(2, change.remoteId);
+                    rebaseDelete.executeUpdateDelete();
+                } else {
+                    if (deletedAt != null) {
+                        dropDelete.bindString(1, change.remoteId);
+                        dropDelete.executeUpdateDelete();
+                    }
+                    if (!change.deleted) {
+                        bindPet(insert, change);
+                        insert.bindLong(5, change.modified);
+                        insert.bindString(6, change.remoteId);
+                        insert.bindLong(7, change.version);
+                        insert.executeInsert();
+                        applied++;
+                    }
+                }
+            }
+            if (page.cursor != null) {
+                db.execSQL(SQL_WRITE_CURSOR, new Object[] { page.cursor });
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+            update.close();
+            insert.close();
+            rebasePet.close();
+            rebaseDelete.close();
+            dropDelete.close();
+        }
+
+        if (applied > 0) {
+            mDbHelper.getCache().invalidateAll();
+        }
+        return applied;
+    }
+
+    /**
+     * Returns whether a change of the registry wins against a local change made at the given
+     * time. The registry wins ties, so every device settles a conflict the same way.
+     */
+    private static boolean wins(Change change, long localModified) {
+        return change.modified >= localModified;
+    }
+
+    private static void bindPet(SQLiteStatement statement, Change change) {
+        statement.bindString(1, change.name);
+        if (change.breed == null) {
+            statement.bindNull(2);
+        } else {
+            statement.bindString(2, change.breed);
+        }
+        statement.bindLong(3, change.gender);
+        statement.bindLong(4, change.weight);
+    }
+
+    /**
+     * Reads the local pets that the given changes are about, with a single query. Must be called
+     * inside the transaction that applies the changes.
+     */
+    private Map<String, LocalPet> readLocalPets(List<Change> changes) {
+        Map<String, LocalPet> locals = new HashMap<>();
+        if (changes.isEmpty()) {
+            return locals;
+        }
+        Cursor cursor = mDbHelper.query("SELECT "
+                + PetEntry.COLUMN_PET_REMOTE_ID + ", "
+                + PetEntry._ID + ", "
+                + PetEntry.COLUMN_PET_REMOTE_VERSION + ", "
+                + PetEntry.COLUMN_PET_LOCAL_VERSION + ", "
+                + PetEntry.COLUMN_PET_SYNCED_VERSION + ", "
+                + PetEntry.COLUMN_PET_MODIFIED + ", "
+                + PetEntry.COLUMN_PET_DELETED
+                + " FROM " + PetEntry.TABLE_NAME
+                + " WHERE " + PetEntry.COLUMN_PET_REMOTE_ID + " IN (" + placeholders(changes.size())
+                + ")", remoteIds(changes));
+        try {
+            while (cursor.moveToNext()) {
+                LocalPet local = new LocalPet();
+                local.id = cursor.getLong(1);
+                local.remoteVersion = cursor.isNull(2) ? -1 : cursor.getLong(2);
+                local.localVersion = cursor.getLong(3);
+                local.syncedVersion = cursor.getLong(4);
+                local.modified = cursor.getLong(5);
+                local.deleted = cursor.getLong(6);
+                locals.put(cursor.getString(0), local);
+            }
+        } finally {
+            cursor.close();
+        }
+        return locals;
+    }
+
+    /**
+     * Reads the time at which the pets that the given changes are about were deleted for good,
+     * for the ones that were.
+     */
+    private Map<String, Long> readDeletes(List<Change> changes) {
+        Map<String, Long> deletes = new HashMap<>();
+        if (changes.isEmpty()) {
+            return deletes;
+        }
+        Cursor cursor = mDbHelper.query("SELECT "
+                + PetSyncEntry.COLUMN_REMOTE_ID + ", "
+                + PetSyncEntry.COLUMN_MODIFIED
+                + " FROM " + PetSyncEntry.DELETES_TABLE_NAME
+                + " WHERE " + PetSyncEntry.COLUMN_REMOTE_ID + " IN ("
+                + placeholders(changes.size()) + ")", remoteIds(changes));
+        try {
+            while (cursor.moveToNext()) {
+                deletes.put(cursor.getString(0), cursor.getLong(1));
+            }
+        } finally {
+            cursor.close();
+        }
+        return deletes;
+    }
+
+    private String readCursor() {
+        Cursor cursor = mDbHelper.query(SQL_READ_CURSOR, null);
+        try {
+            return cursor.moveToFirst() ? cursor.getString(0) : null;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private void push(Result result) throws IOException {
+        long afterId = 0;
+        while (true) {
+            List<Outgoing> batch = new ArrayList<>(PUSH_BATCH_SIZE);
+            Cursor cursor = mDbHelper.query(SQL_SELECT_DIRTY,
+                    new String[] { String.valueOf(afterId) });
+            try {
+                while (cursor.moveToNext()) {
+                    batch.add(Outgoing.fromPet(cursor));
+                }
+            } finally {
+                cursor.close();
+            }
+            if (batch.isEmpty()) {
+                break;
+            }
+            afterId = batch.get(batch.size() - 1).id;
+            pushBatch(batch, result);
+        }
+
+        String afterRemoteId = "";
+        while (true) {
+            List<Outgoing> batch = new ArrayList<>(PUSH_BATCH_SIZE);
+            Cursor cursor = mDbHelper.query(SQL_SELECT_DELETES, new String[] { afterRemoteId });
+            try {
+                while (cursor.moveToNext()) {
+                    batch.add(Outgoing.fromDelete(cursor));
+                }
+            } finally {
+                cursor.close();
+            }
+            if (batch.isEmpty()) {
+                break;
+            }
+            afterRemoteId = batch.get(batch.size() - 1).remoteId;
+            pushBatch(batch, result);
+        }
+    }
+
+    /**
+     * Sends a batch of local changes to the registry, and marks the ones it accepted.
+     */
+    private void pushBatch(List<Outgoing> batch, Result result) throws IOException {
+        final Map<String, Long> versions = new HashMap<>();
+        request("POST", PATH_CHANGES, gzip(toJson(batch)), new ResponseReader<Void>() {
+            @Override
+            public Void read(JsonReader reader) throws IOException {
+                readResults(reader, versions);
+                return null;
+            }
+        });
+
+        SQLiteDatabase db = mDbHelper.getWritableDatabase();
+        SQLiteStatement acceptPet = db.compileStatement(SQL_ACCEPT_PET);
+        SQLiteStatement acceptDelete = db.compileStatement(SQL_ACCEPT_DELETE);
+        db.beginTransaction();
+        try {
+            for (Outgoing change : batch) {
+                Long version = versions.get(change.remoteId);
+                if (version == null) {
+                    result.mConflicts++;
+                } else if (change.id == Outgoing.NO_ID) {
+                    acceptDelete.bindString(1, change.remoteId);
+                    acceptDelete.bindLong(2, change.modified);
+                    acceptDelete.executeUpdateDelete();
+                    result.mPushed++;
+                } else {
+                    acceptPet.bindLong(1, version);
+                    acceptPet.bindLong(2, change.localVersion);
+                    acceptPet.bindLong(3, change.id);
+                    acceptPet.executeUpdateDelete();
+                    result.mPushed++;
+                }
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+            acceptPet.close();
+            acceptDelete.close();
+        }
+    }
+
+    /**
+     * Sends a request to the registry, retrying it with exponential backoff if the network or
+     * the server fails, and reads its JSON response.
+     *
+     * @param body the gzipped JSON body of the request, or null if it has none
+     */
+    private <T> T request(String method, String path, byte[] body, ResponseReader<T> reader)
+            throws IOException {
+        for (int attempt = 1; ; attempt++) {
+            long delay = Math.min(MAX_BACKOFF_MS, INITIAL_BACKOFF_MS << (attempt - 1));
+            // Half of the delay is random, so that devices that failed together don't all
+            // retry at the same time
+            delay = delay / 2 + (long) (mRandom.nextDouble() * delay / 2);
+            try {
+                return send(method, path, body, reader);
+            } catch (HttpException e) {
+                if (!e.isRetryable() || attempt == MAX_ATTEMPTS) {
+                    throw e;
+                }
+                delay = Math.max(delay, e.retryAfterMillis);
+            } catch (ProtocolException e) {
+                throw e;
+            } catch (IOException e) {
+                if (attempt == MAX_ATTEMPTS) {
+                    throw e;
+                }
+            }
+            Log.w(LOG_TAG, method + " " + path + " failed, retrying in " + delay + " ms");
+            try {
+                Thread.sleep(delay);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Sync interrupted");
+            }
+        }
+    }
+
+    private <T> T send(String method, String path, byte[] body, ResponseReader<T> reader)
+            throws IOException {
+        HttpURLConnection connection =
+                (HttpURLConnection) new URL(mBaseUrl + path).openConnection();
+        try {
+            connection.setConnectTimeout(TIMEOUT_MS);
+            connection.setReadTimeout(TIMEOUT_MS);
+            connection.setRequestMethod(method);
+            connection.setRequestProperty("Accept", "application/json");
+            // Asked for explicitly, so the response is decoded below on every version of Android
+            connection.setRequestProperty("Accept-Encoding", "gzip");
+            if (body != null) {
+                connection.setDoOutput(true);
+                connection.setRequestProperty("Content-Type", "application/json");
+                connection.setRequestProperty("Content-Encoding", "gzip");
+                connection.setFixedLengthStreamingMode(body.length);
+                OutputStream out = connection.getOutputStream();
+                try {
+                    out.write(body);
+                } finally {
+                    out.close();
+                }
+            }
+
+            int status = connection.getResponseCode();
+            if (status != HttpURLConnection.HTTP_OK) {
+                throw new HttpException(method + " " + path, status,
+                        connection.getHeaderField("Retry-After"));
+            }
+            InputStream in = new BufferedInputStream(connection.getInputStream());
+            if ("gzip".equalsIgnoreCase(connection.getContentEncoding())) {
+                in = new GZIPInputStream(in);
+            }
+            JsonReader json = new JsonReader(new InputStreamReader(in, UTF_8));
+            try {
+                return reader.read(json);
+            } catch (IllegalStateException | NumberFormatException e) {
+                throw new ProtocolException("Malformed response to " + method + " " + path);
+            } finally {
+                json.close();
+            }
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    private static Page readPage(JsonReader reader) throws IOException {
+        Page page = new Page();
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String key = reader.nextName();
+            if (KEY_CHANGES.equals(key)) {
+                reader.beginArray();
+                while (reader.hasNext()) {
+                    page.changes.add(readChange(reader));
+                }
+                reader.endArray();
+            } else if (KEY_CURSOR.equals(key)) {
+                page.cursor = reader.nextString();
+            } else if (KEY_MORE.equals(key)) {
+                page.more = reader.nextBoolean();
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+        return page;
+    }
+
+    private static Change readChange(JsonReader reader) throws IOException {
+        Change change = new Change();
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String key = reader.nextName();
+            if (reader.peek() == JsonToken.NULL) {
+                reader.nextNull();
+            } else if (KEY_ID.equals(key)) {
+                change.remoteId = reader.nextString();
+            } else if (KEY_VERSION.equals(key)) {
+                change.version = reader.nextLong();
+            } else if (KEY_MODIFIED.equals(key)) {
+                change.modified = reader.nextLong();
+            } else if (KEY_DELETED.equals(key)) {
+                change.deleted = reader.nextBoolean();
+            } else if (KEY_NAME.equals(key)) {
+                change.name = reader.nextString();
+            } else if (KEY_BREED.equals(key)) {
+                change.breed = reader.nextString();
+            } else if (KEY_GENDER.equals(key)) {
+                change.gender = reader.nextInt();
+            } else if (KEY_WEIGHT.equals(key)) {
+                change.weight = reader.nextInt();
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+        return change;
+    }
+
+    /**
+     * Reads the results of a push into the version of each accepted change, by ID. Rejected
+     * changes are left out.
+     */
+    private static void readResults(JsonReader reader, Map<String, Long> versions)
+            throws IOException {
+        reader.beginObject();
+        while (reader.hasNext()) {
+            if (!KEY_RESULTS.equals(reader.nextName())) {
+                reader.skipValue();
+                continue;
+            }
+            reader.beginArray();
+            while (reader.hasNext()) {
+                String remoteId = null;
+                long version = -1;
+                boolean conflict = false;
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    String key = reader.nextName();
+                    if (KEY_ID.equals(key)) {
+                        remoteId = reader.nextString();
+                    } else if (KEY_VERSION.equals(key)) {
+                        version = reader.nextLong();
+                    } else if (KEY_CONFLICT.equals(key)) {
+                        conflict = reader.nextBoolean();
+                    } else {
+                        reader.skipValue();
+                    }
+                }
+                reader.endObject();
+                if (remoteId != null && version >= 0 && !conflict) {
+                    versions.put(remoteId, version);
+                }
+            }
+            reader.endArray();
+        }
+        reader.endObject();
+    }
+
+    private static byte[] toJson(List<Outgoing> batch) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        JsonWriter writer = new JsonWriter(new OutputStreamWriter(bytes, UTF_8));
+        writer.beginObject();
+        writer.name(KEY_CHANGES).beginArray();
+        for (Outgoing change : batch) {
+            writer.beginObject();
+            writer.name(KEY_ID).value(change.remoteId);
+            if (change.baseVersion >= 0) {
+                writer.name(KEY_BASE_VERSION).value(change.baseVersion);
+            }
+            writer.name(KEY_MODIFIED).value(change.modified);
+            writer.name(KEY_DELETED).value(change.deleted);
+            if (change.name != null) {
+                writer.name(KEY_NAME).value(change.name);
+                writer.name(KEY_BREED).value(change.breed);
+                writer.name(KEY_GENDER).value(change.gender);
+                writer.name(KEY_WEIGHT).value(change.weight);
+            }
+            writer.endObject();
+        }
+        writer.endArray();
+        writer.endObject();
+        writer.close();
+        return bytes.toByteArray();
+    }
+
+    private static byte[] gzip(byte[] data) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(data.length / 4);
+        GZIPOutputStream gzip = new GZIPOutputStream(bytes);
+        try {
+            gzip.write(data);
+        } finally {
+            gzip.close();
+        }
+        return bytes.toByteArray();
+    }
+
+    private static String placeholders(int count) {
+        StringBuilder placeholders = new StringBuilder(count * 3);
+        for (int i = 0; i < count; i++) {
+            placeholders.append(i == 0 ? "?" : ", ?");
+        }
+        return placeholders.toString();
+    }
+
+    private static String[] remoteIds(List<Change> changes) {
+        String[] remoteIds = new String[changes.size()];
+        for (int i = 0; i < remoteIds.length; i++) {
+            remoteIds[i] = changes.get(i).remoteId;
+        }
+        return remoteIds;
+    }
+
+    /**
+     * Reads the JSON response of a request.
+     */
+    private interface ResponseReader<T> {
+        T read(JsonReader reader) throws IOException;
+    }
+
+    /**
+     * Outcome of a sync.
+     */
+    public static final class Result {
+
+        private int mPulled;
+
+        private int mPushed;
+
+        private int mConflicts;
+
+        private long mElapsedMillis;
+
+        /** Number of local pets changed by the registry */
+        public int getPulledCount() {
+            return mPulled;
+        }
+
+        /** Number of local changes accepted by the registry */
+        public int getPushedCount() {
+            return mPushed;
+        }
+
+        /** Number of local changes the registry rejected because it had newer ones */
+        public int getConflictCount() {
+            return mConflicts;
+        }
+
+        /** Wall clock time the sync took, in milliseconds */
+        public long getElapsedMillis() {
+            return mElapsedMillis;
+        }
+
+        @Override
+        public String toString() {
+            return "Result{pulled=" + mPulled + ", pushed=" + mPushed
+                    + ", conflicts=" + mConflicts + "}";
+        }
+    }
+
+    /**
+     * A request the registry answered with an error status.
+     */
+    public static final class HttpException extends IOException {
+
+        /** HTTP status of the response */
+        public final int status;
+
+        /** Not defined by {@link HttpURLConnection} */
+        private static final int HTTP_TOO_MANY_REQUESTS = 429;
+
+        /** Delay asked by the server before trying again, or 0 */
+        final long retryAfterMillis;
+
+        HttpException(String request, int status, String retryAfter) {
+            super(request + " failed with HTTP " + status);
+            this.status = status;
+            long seconds = 0;
+            if (!TextUtils.isEmpty(retryAfter) && TextUtils.isDigitsOnly(retryAfter)) {
+                seconds = Long.parseLong(retryAfter);
+            }
+            retryAfterMillis = Math.min(MAX_BACKOFF_MS, seconds * 1000);
+        }
+
+        /** Whether the request may succeed if it is sent again */
+        boolean isRetryable() {
+            return status >= HttpURLConnection.HTTP_INTERNAL_ERROR
+                    || status == HTTP_TOO_MANY_REQUESTS
+                    || status == HttpURLConnection.HTTP_CLIENT_TIMEOUT;
+        }
+    }
+
+    /**
+     * A page of changes pulled from the registry.
+     */
+    private static final class Page {
+        final List<Change> changes = new ArrayList<>(PULL_PAGE_SIZE);
+        String cursor;
+        boolean more;
+    }
+
+    /**
+     * A change of a pet on the registry.
+     */
+    private static final class Change {
+        String remoteId;
+        long version = -1;
+        long modified;
+        boolean deleted;
+        String name;
+        String breed;
+        int gender = -1;
+        int weight = -1;
+
+        boolean isValid() {
+            return remoteId != null && version >= 0
+                    && (deleted || (!TextUtils.isEmpty(name) && PetEntry.isValidGender(gender)
+                    && weight >= 0));
+        }
+    }
+
+    /**
+     * The sync state of a local pet that the registry changed.
+     */
+    private static final class LocalPet {
+        long id;
+        long remoteVersion;
+        long localVersion;
+        long syncedVersion;
+        long modified;
+        long deleted;
+
+        boolean isDirty() {
+            return localVersion > syncedVersion;
+        }
+    }
+
+    /**
+     * A local change to push: a dirty pet, or a pet deleted for good.
+     */
+    private static final class Outgoing {
+
+        /** Value of {@link #id} for a pet deleted for good */
+        static final long NO_ID = -1;
+
+        long id = NO_ID;
+        String remoteId;
+        long baseVersion = -1;
+        long localVersion;
+        long modified;
+        boolean deleted;
+        String name;
+        String breed;
+        int gender;
+        int weight;
+
+        /** Reads a row of {@link #SQL_SELECT_DIRTY} */
+        static Outgoing fromPet(Cursor cursor) {
+            Outgoing change = new Outgoing();
+            change.id = cursor.getLong(0);
+            change.remoteId = cursor.getString(1);
+            change.baseVersion = cursor.isNull(2) ? -1 : cursor.getLong(2);
+            change.localVersion = cursor.getLong(3);
+            change.modified = cursor.getLong(4);
+            change.deleted = cursor.getLong(5) != 0;
+            change.name = cursor.getString(6);
+            change.breed = cursor.getString(7);
+            change.gender = cursor.getInt(8);
+            change.weight = cursor.getInt(9);
+            return change;
+        }
+
+        /** Reads a row of {@link #SQL_SELECT_DELETES} */
+        static Outgoing fromDelete(Cursor cursor) {
+            Outgoing change = new Outgoing();
+            change.remoteId = cursor.getString(0);
+            change.baseVersion = cursor.getLong(1);
+            change.modified = cursor.getLong(2);
+            change.deleted = true;
+            return change;
+        }
+    }
+}
@@ -0,0 +1,304 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.pets.data;
+
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.util.Log;
+
+import com.example.android.pets.data.PetContract.PetEntry;
+
+/**
+ * Deletes pets in two steps: they are first moved to the trash, where they can still be restored,
+ * then permanently deleted when the trash is emptied.
+ *
+ * Every bulk change is split into chunks of {@link #CHUNK_SIZE} pets, each in its own short
+ * transaction, so that deleting a large table never holds the write lock for long. Once pets are
+ * permanently deleted, {@link #compact} gives the space they used back to the file system, once
+ * {@link #convertToIncrementalVacuum} has rebuilt the database so that it can.
+ */
+public class PetTrash {
+
+    public static final String LOG_TAG = PetTrash.class.getSimpleName();
+
+    /** Number of pets changed in a single transaction */
+    public static final int CHUNK_SIZE = 500;
+
+    /** Number of free pages given back to the file system in a single step of compaction */
+    private static final int VACUUM_PAGES_PER_STEP = 256;
+
+    /**
+     * When the database is not in incremental vacuum mode yet, it is only converted (which
+     * rewrites the whole file) once at least 1 page out of this many is free.
+     */
+    private static final int FULL_VACUUM_FREE_PAGE_RATIO = 4;
+
+    /** Value of PRAGMA auto_vacuum when free pages can be given back a few at a time */
+    private static final int AUTO_VACUUM_INCREMENTAL = 2;
+
+    /** Moves up to a chunk of live pets to the trash */
+    private static final String SQL_TRASH_CHUNK = "UPDATE " + PetEntry.TABLE_NAME
+            + " SET " + PetEntry.COLUMN_PET_DELETED + " = ?"
+            + " WHERE " + PetEntry._ID + " IN (SELECT " + PetEntry._ID
+            + " FROM " + PetEntry.TABLE_NAME
+            + " WHERE " + PetEntry.COLUMN_PET_DELETED + " = 0"
+            + " LIMIT " + CHUNK_SIZE + ")";
+
+    /** Moves a single live pet to the trash */
+    private static final String SQL_TRASH_PET = "UPDATE " + PetEntry.TABLE_NAME
+            + " SET " + PetEntry.COLUMN_PET_DELETED + " = ?"
+            + " WHERE " + PetEntry._ID + " = ?"
+            + " AND " + PetEntry.COLUMN_PET_DELETED + " = 0";
+
+    /** Reads the latest time a pet was moved to the trash, or 0 */
+    private static final String SQL_LAST_DELETED = "SELECT IFNULL(MAX("
+            + PetEntry.COLUMN_PET_DELETED + "), 0) FROM " + PetEntry.TABLE_NAME;
+
+    /** Brings up to a chunk of the pets moved to the trash at the given time back */
+    private static final String SQL_RESTORE_CHUNK = "UPDATE " + PetEntry.TABLE_NAME
+            + " SET " + PetEntry.COLUMN_PET_DELETED + " = 0"
+            + " WHERE " + PetEntry._ID + " IN (SELECT " + PetEntry._ID
+            + " FROM " + PetEntry.TABLE_NAME
+            + " WHERE " + PetEntry.COLUMN_PET_DELETED + " = ?"
+            + " LIMIT " + CHUNK_SIZE + ")";
+
+    /** Permanently deletes up to a chunk of the pets moved to the trash in the given range */
+    private static final String SQL_PURGE_CHUNK = "DELETE FROM " + PetEntry.TABLE_NAME
+            + " WHERE " + PetEntry._ID + " IN (SELECT " + PetEntry._ID
+            + " FROM " + PetEntry.TABLE_NAME
+            + " WHERE " + PetEntry.COLUMN_PET_DELETED + " BETWEEN ? AND ?"
+            + " LIMIT " + CHUNK_SIZE + ")";
+
+    private final PetDbHelper mDbHelper;
+
+    /**
+     * Constructs a new {@link PetTrash}.
+     *
+     * @param dbHelper the database helper of the pets to delete
+     */
+    public PetTrash(PetDbHelper dbHelper) {
+        mDbHelper = dbHelper;
+    }
+
+    /**
+     * Moves every pet to the trash. Must be called on a background thread.
+     *
+     * @return the pets that were moved, to restore or purge them later
+     */
+    public Batch trashAll() {
+        Batch batch = trashInChunks(SQL_TRASH_CHUNK);
+        mDbHelper.getCache().invalidateAll();
+        return batch;
+    }
+
+    /**
+     * Moves a single pet to the trash. Must be called on a background thread.
+     *
+     * @return the pet that was moved, empty if there is no such pet
+     */
+    public Batch trash(long id) {
+        Batch batch = trashInChunks(SQL_TRASH_PET, id);
+        mDbHelper.getCache().invalidate(id);
+        return batch;
+    }
+
+    /**
+     * Brings the pets of the given batch back from the trash. Must be called on a background
+     * thread.
+     *
+     * @return the number of pets restored
+     */
+    public int restore(Batch batch) {
+        return runInChunks(SQL_RESTORE_CHUNK, batch.deletedAt);
+    }
+
+    /**
+     * Permanently deletes the pets of the given batch. Must be called on a background thread.
+     *
+     * @return the number of pets deleted
+     */
+    public int purge(Batch batch) {
+        return runInChunks(SQL_PURGE_CHUNK, batch.deletedAt, batch.deletedAt);
+    }
+
+    /**
+     * Permanently deletes every pet in the trash. Must be called on a background thread.
+     *
+     * @return the number of pets deleted
+     */
+    public int purgeAll() {
+        return runInChunks(SQL_PURGE_CHUNK, 1, Long.MAX_VALUE);
+    }
+
+    /**
+     * Shrinks the database file by giving its free pages back to the file system, a few at a
+     * time, each step in a short transaction of its own. Does nothing until the database is in
+     * incremental vacuum mode, see {@link #convertToIncrementalVacuum}. Must be called on a
+     * background thread, outside of any transaction.
+     */
+    public void compact() {
+        SQLiteDatabase db = mDbHelper.getWritableDatabase();
+        long freePages = pragma(db, "freelist_count");
+        if (freePages == 0 || pragma(db, "auto_vacuum") != AUTO_VACUUM_INCREMENTAL) {
+            return;
+        }
+
+        long start = System.nanoTime();
+        while (freePages > 0) {
+            db.execSQL("PRAGMA incremental_vacuum(" + VACUUM_PAGES_PER_STEP + ")");
+            long remaining = pragma(db, "freelist_count");
+            if (remaining >= freePages) {
+                break;
+            }
+            freePages = remaining;
+        }
+        QueryMetrics.getInstance().record(db, "PRAGMA incremental_vacuum", null, null,
+                System.nanoTime() - start, 0);
+        Log.i(LOG_TAG, "Compacted " + freePages + " free pages in "
+                + (System.nanoTime() - start) / 1000000 + " ms");
+    }
+
+    /**
+     * Rebuilds the database in incremental vacuum mode, so that {@link #compact} can shrink it,
+     * once there is enough free space for it to be worth it. This takes about as long as copying
+     * the file and blocks every writer meanwhile, so it is only meant to run while nobody uses
+     * the app. Does nothing once the database is in that mode. Must be called on a background
+     * thread, outside of any transaction.
+     *
+     * @return whether the database was rebuilt
+     */
+    public boolean convertToIncrementalVacuum() {
+        SQLiteDatabase db = mDbHelper.getWritableDatabase();
+        if (pragma(db, "auto_vacuum") == AUTO_VACUUM_INCREMENTAL) {
+            return false;
+        }
+        long freePages = pragma(db, "freelist_count");
+        if (freePages * FULL_VACUUM_FREE_PAGE_RATIO < pragma(db, "page_count")
+                || freePages == 0) {
+            return false;
+        }
+
+        long start = System.nanoTime();
+        // The new mode only applies once VACUUM has rebuilt the file
+        db.execSQL("PRAGMA auto_vacuum = INCREMENTAL");
+        db.execSQL("VACUUM");
+        QueryMetrics.getInstance().record(db, "VACUUM", null, null, System.nanoTime() - start, 0);
+        Log.i(LOG_TAG, "Rebuilt the database without " + freePages + " free pages in "
+                + (System.nanoTime() - start) / 1000000 + " ms");
+        return true;
+    }
+
+    /**
+     * Moves pets to the trash as a new batch, like {@link #runInChunks}. The time of the batch is
+     * bound as the first argument of the statement, before the given ones. It is read in the
+     * transaction of the first chunk, and is later than that of any pet already in the trash, so
+     * two batches never share it even if they are made within the same millisecond.
+     */
+    private Batch trashInChunks(String sql, long... args) {
+        SQLiteDatabase db = mDbHelper.getWritableDatabase();
+        SQLiteStatement statement = db.compileStatement(sql);
+        long deletedAt;
+        int count;
+        try {
+            long start = System.nanoTime();
+            db.beginTransactionNonExclusive();
+            try {
+                deletedAt = Math.max(System.currentTimeMillis(),
+                        mDbHelper.longForQuery(SQL_LAST_DELETED, null) + 1);
+                statement.bindLong(1, deletedAt);
+                for (int i = 0; i < args.length; i++) {
+                    statement.bindLong(i + 2, args[i]);
+                }
+                count = statement.executeUpdateDelete();
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+            QueryMetrics.getInstance().record(db, sql, null, null, System.nanoTime() - start,
+                    count);
+        } finally {
+            statement.close();
+        }
+
+        if (count == CHUNK_SIZE) {
+            long[] chunkArgs = new long[args.length + 1];
+            chunkArgs[0] = deletedAt;
+            System.arraycopy(args, 0, chunkArgs, 1, args.length);
+            count += runInChunks(sql, chunkArgs);
+        }
+        return new Batch(deletedAt, count);
+    }
+
+    /**
+     * Runs the given statement, which changes at most {@link #CHUNK_SIZE} pets, again and again
+     * until it changes fewer pets than that. Each run commits on its own, so that other writers
+     * only wait for one chunk.
+     *
+     * @return the total number of pets changed
+     */
+    private int runInChunks(String sql, long... args) {
+        SQLiteDatabase db = mDbHelper.getWritableDatabase();
+        SQLiteStatement statement = db.compileStatement(sql);
+        int total = 0;
+        try {
+            for (int i = 0; i < args.length; i++) {
+                statement.bindLong(i + 1, args[i]);
+            }
+            int changed;
+            do {
+                long start = System.nanoTime();
+                db.beginTransactionNonExclusive();
+                try {
+                    changed = statement.executeUpdateDelete();
+                    db.setTransactionSuccessful();
+                } finally {
+                    db.endTransaction();
+                }
+                QueryMetrics.getInstance().record(db, sql, null, null, System.nanoTime() - start,
+                        changed);
+                total += changed;
+            } while (changed == CHUNK_SIZE);
+        } finally {
+            statement.close();
+        }
+        return total;
+    }
+
+    private static long pragma(SQLiteDatabase db, String pragma) {
+        return DatabaseUtils.longForQuery(db, "PRAGMA " + pragma, null);
+    }
+
+    /**
+     * Pets that were moved to the trash together.
+     */
+    public static final class Batch {
+
+        /**
+         * Time the pets were moved to the trash, shared by every pet of the batch and by no other
+         * batch
+         */
+        public final long deletedAt;
+
+        /** Number of pets moved to the trash */
+        public final int count;
+
+        Batch(long deletedAt, int count) {
+            this.deletedAt = deletedAt;
+            this.count = count;
+        }
+    }
+}
@@ -0,0 +1,351 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.pets.data;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.content.Context;
+import android.content.OperationApplicationException;
+import android.net.Uri;
+import android.os.RemoteException;
+import android.util.Log;
+
+import com.example.android.pets.data.PetContract.PetEntry;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Saves pets on a single writer thread, combining the saves that arrive close together into one
+ * transaction (group commit).
+ *
+ * Each save is validated as soon as it is queued, and an invalid pet never reaches the database:
+ * the problem comes back in the {@link Result}, like any other outcome. The writer thread takes
+ * the first waiting save, waits up to {@link #GROUP_COMMIT_WINDOW_MS} for more, and applies up to
+ * {@link #MAX_GROUP_SIZE} of them as a single batch through the {@link PetProvider}, so the
+ * group costs one commit and observers are notified once. If the batch fails, its saves are
+ * applied one by one, so that a single failing save cannot fail the others.
+ */
+public class PetWriteQueue {
+
+    public static final String LOG_TAG = PetWriteQueue.class.getSimpleName();
+
+    /** How long the writer waits for more saves before committing the ones it has */
+    private static final long GROUP_COMMIT_WINDOW_MS = 5;
+
+    /** Maximum number of saves committed in a single transaction */
+    private static final int MAX_GROUP_SIZE = 64;
+
+    /** The one instance shared by the whole process */
+    private static PetWriteQueue sInstance;
+
+    /**
+     * Receives the outcome of a save. Called on the writer thread once the save is committed, or
+     * right away if it is not valid.
+     */
+    public interface Listener {
+        void onSaved(Result result);
+    }
+
+    private final ContentResolver mContentResolver;
+
+    private final LinkedBlockingQueue<Save> mQueue = new LinkedBlockingQueue<>();
+
+    /** Number of saves queued or being committed */
+    private final AtomicInteger mPendingCount = new AtomicInteger();
+
+    /**
+     * Returns the {@link PetWriteQueue} of the process, starting its writer thread the first time.
+     *
+     * @param context of the app
+     */
+    public static synchronized PetWriteQueue getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new PetWriteQueue(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private PetWriteQueue(Context context) {
+        mContentResolver = context.getContentResolver();
+        Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                drain();
+            }
+        }, "PetWriter");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Queues the insertion of a new pet.
+     *
+     * @param values the attributes of the new pet
+     * @param listener receives the outcome, may be null
+     * @return the outcome, whose {@link Result#getId} is the ID of the new pet
+     */
+    public Future<Result> insert(ContentValues values, Listener listener) {
+        return enqueue(new Save(PetEntry.CONTENT_URI, true, values, listener));
+    }
+
+    /**
+     * Queues an update of an existing pet.
+     *
+     * @param id the ID of the pet
+     * @param values the attributes to change
+     * @param listener receives the outcome, may be null
+     */
+    public Future<Result> update(long id, ContentValues values, Listener listener) {
+        Uri uri = ContentUris.withAppendedId(PetEntry.CONTENT_URI, id);
+        return enqueue(new Save(uri, false, values, listener));
+    }
+
+    private Future<Result> enqueue(Save save) {
+        int validation = PetEntry.validate(save.values, save.inserting);
+        if (validation != PetEntry.VALID) {
+            save.complete(new Result(validation, -1));
+            return save;
+        }
+        // The weight may come as text from the editor, store it as a number
+        if (save.values.get(PetEntry.COLUMN_PET_WEIGHT) != null) {
+            save.values.put(PetEntry.COLUMN_PET_WEIGHT,
+                    save.values.getAsInteger(PetEntry.COLUMN_PET_WEIGHT));
+        }
+        mPendingCount.incrementAndGet();
+        mQueue.add(save);
+        return save;
+    }
+
+    /**
+     * Returns whether every save queued so far is committed.
+     */
+    public boolean isIdle() {
+        return mPendingCount.get() == 0;
+    }
+
+    /**
+     * Runs forever on the writer thread, committing the saves in groups.
+     */
+    private void drain() {
+        List<Save> group = new ArrayList<>(MAX_GROUP_SIZE);
+        while (true) {
+            try {
+                group.add(mQueue.take());
+                long deadline = System.nanoTime()
+                        + TimeUnit.MILLISECONDS.toNanos(GROUP_COMMIT_WINDOW_MS);
+                while (group.size() < MAX_GROUP_SIZE) {
+                    Save next = mQueue.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+                    if (next == null) {
+                        break;
+                    }
+                    group.add(next);
+                }
+            } catch (InterruptedException e) {
+                // Only this class runs the writer thread, so nobody is meant to interrupt it
+                Log.w(LOG_TAG, "Writer interrupted", e);
+            }
+
+            if (!group.isEmpty()) {
+                commit(group);
+                mPendingCount.addAndGet(-group.size());
+                group.clear();
+            }
+        }
+    }
+
+    /**
+     * Applies the given saves in a single transaction, or one by one if that fails.
+     */
+    private void commit(List<Save> group) {
+        ArrayList<ContentProviderOperation> operations = new ArrayList<>(group.size());
+        for (Save save : group) {
+            operations.add(save.toOperation());
+        }
+
+        ContentProviderResult[] results;
+        try {
+            results = mContentResolver.applyBatch(PetContract.CONTENT_AUTHORITY, operations);
+        } catch (RemoteException | OperationApplicationException | RuntimeException e) {
+            Log.w(LOG_TAG, "Group of " + group.size() + " saves failed, saving them one by one",
+                    e);
+            for (Save save : group) {
+                commitOne(save);
+            }
+            return;
+        }
+
+        for (int i = 0; i < group.size(); i++) {
+            group.get(i).complete(group.get(i).toResult(results[i]));
+        }
+    }
+
+    private void commitOne(Save save) {
+        ArrayList<ContentProviderOperation> operations = new ArrayList<>(1);
+        operations.add(save.toOperation());
+        try {
+            ContentProviderResult[] results =
+                    mContentResolver.applyBatch(PetContract.CONTENT_AUTHORITY, operations);
+            save.complete(save.toResult(results[0]));
+        } catch (RemoteException | OperationApplicationException | RuntimeException e) {
+            Log.e(LOG_TAG, "Could not save pet to " + save.uri, e);
+            save.complete(new Result(Result.FAILED, -1));
+        }
+    }
+
+    /**
+     * Outcome of a save. A save that could not be done is not an exception, the reason is
+     * given by {@link #getStatus}.
+     */
+    public static final class Result {
+
+        /** The pet was saved */
+        public static final int SAVED = PetEntry.VALID;
+
+        /** The pet was not saved because its name is missing */
+        public static final int INVALID_NAME = PetEntry.INVALID_NAME;
+
+        /** The pet was not saved because its gender is not valid */
+        public static final int INVALID_GENDER = PetEntry.INVALID_GENDER;
+
+        /** The pet was not saved because its weight is not a number of 0 kg or more */
+        public static final int INVALID_WEIGHT = PetEntry.INVALID_WEIGHT;
+
+        /** The pet to update does not exist anymore */
+        public static final int NOT_FOUND = 100;
+
+        /** The database could not save the pet */
+        public static final int FAILED = 101;
+
+        private final int mStatus;
+
+        private final long mId;
+
+        Result(int status, long id) {
+            mStatus = status;
+            mId = id;
+        }
+
+        /** Whether the pet was saved */
+        public boolean isSaved() {
+            return mStatus == SAVED;
+        }
+
+        /** One of {@link #SAVED}, the {@code INVALID_*} constants, or another failure */
+        public int getStatus() {
+            return mStatus;
+        }
+
+        /** ID of the pet that was saved, or -1 if it was not saved */
+        public long getId() {
+            return mId;
+        }
+
+        @Override
+        public String toString() {
+            return "Result{status=" + mStatus + ", id=" + mId + "}";
+        }
+    }
+
+    /**
+     * A save waiting in the queue, and the future of its outcome. The outcome is set once by the
+     * writer thread, see {@link #complete}. A queued save cannot be cancelled, since it may
+     * already be part of a group being committed.
+     */
+    private static final class Save implements Future<Result> {
+
+        final Uri uri;
+        final boolean inserting;
+        final ContentValues values;
+        final Listener listener;
+
+        /** Counted down once the outcome is set */
+        private final CountDownLatch mDone = new CountDownLatch(1);
+
+        /** The outcome, published to other threads by {@link #mDone} */
+        private Result mResult;
+
+        Save(Uri uri, boolean inserting, ContentValues values, Listener listener) {
+            this.uri = uri;
+            this.inserting = inserting;
+            // The caller may reuse its values once the save is queued
+            this.values = new ContentValues(values);
+            this.listener = listener;
+        }
+
+        ContentProviderOperation toOperation() {
+            return (inserting ? ContentProviderOperation.newInsert(uri)
+                    : ContentProviderOperation.newUpdate(uri)).withValues(values).build();
+        }
+
+        Result toResult(ContentProviderResult result) {
+            if (inserting) {
+                return result.uri == null ? new Result(Result.FAILED, -1)
+                        : new Result(Result.SAVED, ContentUris.parseId(result.uri));
+            }
+            return result.count == null || result.count == 0
+                    ? new Result(Result.NOT_FOUND, -1)
+                    : new Result(Result.SAVED, ContentUris.parseId(uri));
+        }
+
+        void complete(Result result) {
+            mResult = result;
+            mDone.countDown();
+            if (listener != null) {
+                listener.onSaved(result);
+            }
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            return false;
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return false;
+        }
+
+        @Override
+        public boolean isDone() {
+            return mDone.getCount() == 0;
+        }
+
+        @Override
+        public Result get() throws InterruptedException {
+            mDone.await();
+            return mResult;
+        }
+
+        @Override
+        public Result get(long timeout, TimeUnit unit)
+                throws InterruptedException, TimeoutException {
+            if (!mDone.await(timeout, unit)) {
+                throw new TimeoutException("Pet not saved to " + uri + " yet");
+            }
+            return mResult;
+        }
+    }
+}
@@ -0,0 +1,452 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.pets.data;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.util.Log;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Timing of the statements that go through {@link PetDbHelper}.
+ *
+ * Statements are grouped by shape: their SQL with every number replaced by "?", so that the same
+ * query with a different LIMIT is counted once. For each shape, the metrics keep the number of
+ * executions, the rows they returned or changed, and a histogram of their latency. Recording a
+ * statement only costs a couple of clock reads and a short lock, so the metrics are always on.
+ *
+ * Statements slower than the threshold are also kept in a slow-query log, with the output of
+ * EXPLAIN QUERY PLAN to show whether they used an index. The plan is captured later on a thread
+ * of its own, so that a slow statement does not keep its thread, or the write lock, any longer.
+ * The metrics can be read with
+ * {@link #dump}, which {@link PetProvider} exposes to
+ * {@code adb shell dumpsys activity provider com.example.android.pets}.
+ */
+public final class QueryMetrics {
+
+    public static final String LOG_TAG = QueryMetrics.class.getSimpleName();
+
+    /** Upper bounds of the latency buckets, in microseconds. The last bucket has no bound. */
+    static final long[] BUCKET_BOUNDS_MICROS = {
+            100, 250, 500, 1000, 2500, 5000, 10000, 25000, 50000, 100000, 250000, 500000, 1000000 };
+
+    /** Default latency above which a statement is logged as slow */
+    private static final long DEFAULT_SLOW_QUERY_THRESHOLD_MILLIS = 100;
+
+    /** Number of slow statements kept, the oldest are dropped first */
+    private static final int MAX_SLOW_QUERIES = 50;
+
+    /**
+     * Maximum number of shapes tracked, in case some code builds its SQL with values instead of
+     * arguments. Shapes beyond this are counted together under {@link #OTHER_SHAPE}.
+     */
+    private static final int MAX_SHAPES = 200;
+
+    private static final String OTHER_SHAPE = "(other statements)";
+
+    /** The one instance shared by the whole process */
+    private static final QueryMetrics sInstance = new QueryMetrics();
+
+    private final Map<String, StatementStats> mStats = new ConcurrentHashMap<>();
+    private final Deque<SlowQuery> mSlowQueries = new ArrayDeque<>();
+    private volatile long mSlowQueryThresholdNanos = DEFAULT_SLOW_QUERY_THRESHOLD_MILLIS * 1000000;
+
+    /**
+     * Captures the plans of the slow statements. When more statements are waiting than the
+     * slow-query log holds, the new ones are logged without their plan.
+     */
+    private final ThreadPoolExecutor mPlanExecutor = new ThreadPoolExecutor(1, 1,
+            30, TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(MAX_SLOW_QUERIES),
+            new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "QueryPlans");
+                    thread.setPriority(Thread.MIN_PRIORITY);
+                    return thread;
+                }
+            },
+            new ThreadPoolExecutor.DiscardPolicy());
+
+    private QueryMetrics() {
+        mPlanExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Returns the metrics of the process.
+     */
+    public static QueryMetrics getInstance() {
+        return sInstance;
+    }
+
+    /**
+     * Sets the latency above which statements are added to the slow-query log.
+     */
+    public void setSlowQueryThresholdMillis(long thresholdMillis) {
+        mSlowQueryThresholdNanos = thresholdMillis * 1000000;
+    }
+
+    /**
+     * Records one execution of a statement.
+     *
+     * @param db the database the statement ran on, to explain it later if it was slow
+     * @param sql the statement, used as its shape
+     * @param planSql a query whose plan is the one of the statement, usually the statement
+     *                itself, or null if there is no plan worth capturing
+     * @param planArgs the arguments of {@code planSql}
+     * @param elapsedNanos time the statement took
+     * @param rows number of rows the statement returned or changed
+     */
+    void record(SQLiteDatabase db, String sql, String planSql, String[] planArgs,
+            long elapsedNanos, int rows) {
+        String shape = toShape(sql);
+        StatementStats stats = mStats.get(shape);
+        if (stats == null) {
+            if (mStats.size() >= MAX_SHAPES) {
+                shape = OTHER_SHAPE;
+            }
+            synchronized (mStats) {
+                stats = mStats.get(shape);
+                if (stats == null) {
+                    stats = new StatementStats(shape);
+                    mStats.put(shape, stats);
+                }
+            }
+        }
+        stats.record(elapsedNanos, rows);
+
+        if (elapsedNanos >= mSlowQueryThresholdNanos) {
+            SlowQuery slowQuery = new SlowQuery(sql, elapsedNanos / 1000000, rows,
+                    System.currentTimeMillis());
+            Log.w(LOG_TAG, slowQuery.toString());
+            synchronized (mSlowQueries) {
+                if (mSlowQueries.size() == MAX_SLOW_QUERIES) {
+                    mSlowQueries.removeFirst();
+                }
+                mSlowQueries.addLast(slowQuery);
+            }
+            if (planSql != null) {
+                explainLater(db, slowQuery, planSql, planArgs);
+            }
+        }
+    }
+
+    /**
+     * Captures the plan of a slow statement on the plan thread. That thread holds no transaction,
+     * so with write-ahead logging it reads the plan on a reader connection, without waiting for
+     * the writer the statement may have run in.
+     */
+    private void explainLater(final SQLiteDatabase db, final SlowQuery slowQuery,
+            final String sql, final String[] args) {
+        mPlanExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                String plan = explain(db, sql, args);
+                if (plan != null) {
+                    slowQuery.setPlan(plan);
+                    Log.w(LOG_TAG, "Plan of the slow statement " + slowQuery.sql + ":\n  "
+                            + plan.replace("\n", "\n  "));
+                }
+            }
+        });
+    }
+
+    /**
+     * Returns the statistics of every shape, the ones that took the most time in total first.
+     */
+    public List<StatementStats> getStatementStats() {
+        List<StatementStats> stats = new ArrayList<>();
+        for (StatementStats shapeStats : mStats.values()) {
+            stats.add(shapeStats.copy());
+        }
+        Collections.sort(stats, new Comparator<StatementStats>() {
+            @Override
+            public int compare(StatementStats a, StatementStats b) {
+                long difference = b.getTotalNanos() - a.getTotalNanos();
+                return difference > 0 ? 1 : (difference < 0 ? -1 : 0);
+            }
+        });
+        return stats;
+    }
+
+    /**
+     * Returns the slow statements that were logged, the most recent first.
+     */
+    public List<SlowQuery> getSlowQueries() {
+        List<SlowQuery> slowQueries;
+        synchronized (mSlowQueries) {
+            slowQueries = new ArrayList<>(mSlowQueries);
+        }
+        Collections.reverse(slowQueries);
+        return slowQueries;
+    }
+
+    /**
+     * Forgets every statistic and slow statement recorded so far.
+     */
+    public void reset() {
+        synchronized (mStats) {
+            mStats.clear();
+        }
+        synchronized (mSlowQueries) {
+            mSlowQueries.clear();
+        }
+    }
+
+    /**
+     * Prints the statistics of every shape, then the slow-query log.
+     */
+    public void dump(PrintWriter writer) {
+        writer.println("Statements (count, rows, mean / p50 / p95 / p99 / max in ms):");
+        for (StatementStats stats : getStatementStats()) {
+            writer.println(stats);
+        }
+        writer.println();
+        writer.println("Slow statements (over "
+                + mSlowQueryThresholdNanos / 1000000 + " ms), most recent first:");
+        for (SlowQuery slowQuery : getSlowQueries()) {
+            writer.println(slowQuery);
+        }
+        writer.flush();
+    }
+
+    /**
+     * Returns what {@link #dump(PrintWriter)} prints, as a string.
+     */
+    public String dump() {
+        StringWriter writer = new StringWriter();
+        dump(new PrintWriter(writer));
+        return writer.toString();
+    }
+
+    /**
+     * Replaces every number of the statement with "?". Numbers inside identifiers, like the 4 of
+     * "pets_fts4", are kept.
+     */
+    static String toShape(String sql) {
+        StringBuilder shape = null;
+        int length = sql.length();
+        for (int i = 0; i < length; i++) {
+            char c = sql.charAt(i);
+            boolean startsNumber = Character.isDigit(c)
+                    && (i == 0 || !isIdentifierChar(sql.charAt(i - 1)));
+            if (!startsNumber) {
+                if (shape != null) {
+                    shape.append(c);
+                }
+                continue;
+            }
+            if (shape == null) {
+                shape = new StringBuilder(length).append(sql, 0, i);
+            }
+            shape.append('?');
+            while (i + 1 < length && Character.isDigit(sql.charAt(i + 1))) {
+                i++;
+            }
+        }
+        return shape == null ? sql : shape.toString();
+    }
+
+    private static boolean isIdentifierChar(char c) {
+        return Character.isLetterOrDigit(c) || c == '_';
+    }
+
+    /**
+     * Returns the plan SQLite chose for the given query, one step per line.
+     */
+    private static String explain(SQLiteDatabase db, String sql, String[] args) {
+        try {
+            Cursor cursor = db.rawQuery("EXPLAIN QUERY PLAN " + sql, args);
+            try {
+                StringBuilder plan = new StringBuilder();
+                int detailColumnIndex = cursor.getColumnCount() - 1;
+                while (cursor.moveToNext()) {
+                    if (plan.length() > 0) {
+                        plan.append('\n');
+                    }
+                    plan.append(cursor.getString(detailColumnIndex));
+                }
+                return plan.toString();
+            } finally {
+                cursor.close();
+            }
+        } catch (RuntimeException e) {
+            // For example, the database of a shelter may have been closed in the meantime
+            Log.w(LOG_TAG, "Could not explain " + sql, e);
+            return null;
+        }
+    }
+
+    /**
+     * Statistics of all the executions of one statement shape.
+     */
+    public static final class StatementStats {
+
+        private final String mShape;
+        private final long[] mBuckets;
+        private long mCount;
+        private long mRows;
+        private long mTotalNanos;
+        private long mMaxNanos;
+
+        StatementStats(String shape) {
+            mShape = shape;
+            mBuckets = new long[BUCKET_BOUNDS_MICROS.length + 1];
+        }
+
+        private StatementStats(StatementStats other) {
+            mShape = other.mShape;
+            mBuckets = other.mBuckets.clone();
+            mCount = other.mCount;
+            mRows = other.mRows;
+            mTotalNanos = other.mTotalNanos;
+            mMaxNanos = other.mMaxNanos;
+        }
+
+        synchronized void record(long elapsedNanos, int rows) {
+            long micros = elapsedNanos / 1000;
+            int bucket = 0;
+            while (bucket < BUCKET_BOUNDS_MICROS.length && micros > BUCKET_BOUNDS_MICROS[bucket]) {
+                bucket++;
+            }
+            mBuckets[bucket]++;
+            mCount++;
+            mRows += rows;
+            mTotalNanos += elapsedNanos;
+            mMaxNanos = Math.max(mMaxNanos, elapsedNanos);
+        }
+
+        synchronized StatementStats copy() {
+            return new StatementStats(this);
+        }
+
+        /** SQL of the statement, with its numbers replaced by "?" */
+        public String getShape() {
+            return mShape;
+        }
+
+        /** Number of times the statement ran */
+        public long getCount() {
+            return mCount;
+        }
+
+        /** Total number of rows the statement returned or changed */
+        public long getRows() {
+            return mRows;
+        }
+
+        /** Total time spent running the statement */
+        public long getTotalNanos() {
+            return mTotalNanos;
+        }
+
+        /** Longest time a single execution took */
+        public long getMaxNanos() {
+            return mMaxNanos;
+        }
+
+        /**
+         * Returns an upper bound of the given percentile of the latency, in microseconds, read
+         * from the histogram.
+         *
+         * @param fraction between 0 and 1, for example 0.95 for the 95th percentile
+         */
+        public long getPercentileMicros(double fraction) {
+            long rank = (long) Math.ceil(fraction * mCount);
+            long seen = 0;
+            for (int bucket = 0; bucket < BUCKET_BOUNDS_MICROS.length; bucket++) {
+                seen += mBuckets[bucket];
+                if (seen >= rank) {
+                    return Math.min(BUCKET_BOUNDS_MICROS[bucket], mMaxNanos / 1000);
+                }
+            }
+            return mMaxNanos / 1000;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US, "%6d %8d  %7.2f / %7.2f / %7.2f / %7.2f / %7.2f  %s",
+                    mCount, mRows,
+                    mCount == 0 ? 0 : mTotalNanos / 1e6 / mCount,
+                    getPercentileMicros(0.5) / 1e3,
+                    getPercentileMicros(0.95) / 1e3,
+                    getPercentileMicros(0.99) / 1e3,
+                    mMaxNanos / 1e6,
+                    mShape);
+        }
+    }
+
+    /**
+     * One execution of a statement that took longer than the slow-query threshold.
+     */
+    public static final class SlowQuery {
+
+        /** SQL of the statement */
+        public final String sql;
+
+        /** Time the statement took */
+        public final long elapsedMillis;
+
+        /** Number of rows the statement returned or changed */
+        public final int rows;
+
+        /** When the statement ran, in milliseconds since the epoch */
+        public final long timestamp;
+
+        /** Output of EXPLAIN QUERY PLAN, once it is captured */
+        private volatile String mPlan;
+
+        SlowQuery(String sql, long elapsedMillis, int rows, long timestamp) {
+            this.sql = sql;
+            this.elapsedMillis = elapsedMillis;
+            this.rows = rows;
+            this.timestamp = timestamp;
+        }
+
+        /**
+         * Returns the output of EXPLAIN QUERY PLAN, or null if it is not captured yet or could
+         * not be.
+         */
+        public String getPlan() {
+            return mPlan;
+        }
+
+        void setPlan(String plan) {
+            mPlan = plan;
+        }
+
+        @Override
+        public String toString() {
+            String plan = mPlan;
+            return "Slow statement (" + elapsedMillis + " ms, " + rows + " rows): " + sql
+                    + (plan == null ? "" : "\n  plan: " + plan.replace("\n", "\n        "));
+        }
+    }
+}